@@ -0,0 +1,120 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import org.gvsig.mvtrenderer.lib.impl.MVTTileId;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * The checked-in vector tiles used by the benchmarks. See
+ * {@link FixtureWriter} for how they are generated.
+ *
+ * @author fdiaz
+ */
+public enum Fixture {
+  RURAL_Z14("rural", 14, 8166, 6233, false),
+  RURAL_Z14_GZIP("rural", 14, 8166, 6233, true),
+  URBAN_Z14("urban", 14, 8166, 6233, false),
+  URBAN_Z14_GZIP("urban", 14, 8166, 6233, true),
+  URBAN_Z16("urban", 16, 32663, 24933, false),
+  URBAN_Z16_GZIP("urban", 16, 32663, 24933, true);
+
+  /**
+   * Classpath location of the style used to render the fixtures.
+   */
+  public static final String STYLE_RESOURCE = "/fixtures/style.json";
+
+  private final String density;
+  private final int z;
+  private final int x;
+  private final int y;
+  private final boolean gzip;
+
+  Fixture(String density, int z, int x, int y, boolean gzip) {
+    this.density = density;
+    this.z = z;
+    this.x = x;
+    this.y = y;
+    this.gzip = gzip;
+  }
+
+  public String getDensity() {
+    return density;
+  }
+
+  public int getZ() {
+    return z;
+  }
+
+  public int getX() {
+    return x;
+  }
+
+  public int getY() {
+    return y;
+  }
+
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  public String getFileName() {
+    return this.name().toLowerCase() + ".pbf";
+  }
+
+  /**
+   * Reads the raw (possibly gzipped) tile bytes from the classpath.
+   *
+   * @return The tile bytes.
+   * @throws IOException If the fixture can't be read.
+   */
+  public byte[] load() throws IOException {
+    try (InputStream is = Fixture.class.getResourceAsStream("/fixtures/" + getFileName())) {
+      if (is == null) {
+        throw new IOException("Fixture " + getFileName() + " not found");
+      }
+      return is.readAllBytes();
+    }
+  }
+
+  /**
+   * Returns the envelope of the tile in Web Mercator (EPSG:3857).
+   *
+   * @return The envelope of the tile.
+   */
+  public Envelope getEnvelope() {
+    return getTile().getEnvelope();
+  }
+
+  public MVTTileId getTile() {
+    return new MVTTileId(z, x, y);
+  }
+
+  public static URL getStyleURL() {
+    return Fixture.class.getResource(STYLE_RESOURCE);
+  }
+}
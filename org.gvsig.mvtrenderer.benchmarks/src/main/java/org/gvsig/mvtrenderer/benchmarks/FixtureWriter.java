@@ -0,0 +1,351 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates the synthetic vector tiles used as benchmark fixtures.
+ * <p>
+ * The tiles are written with a minimal Mapbox Vector Tile (v2) protobuf
+ * encoder that depends only on the JDK, so the fixtures can be regenerated
+ * without network access to a tile server. The output is deterministic
+ * (fixed random seeds), so regenerating them does not change the benchmark
+ * baseline.
+ * <p>
+ * Usage: {@code FixtureWriter <output folder>}
+ *
+ * @author fdiaz
+ */
+public class FixtureWriter {
+
+  private static final int EXTENT = 4096;
+
+  private static final int GEOM_POINT = 1;
+  private static final int GEOM_LINESTRING = 2;
+  private static final int GEOM_POLYGON = 3;
+
+  private static final int CMD_MOVE_TO = 1;
+  private static final int CMD_LINE_TO = 2;
+  private static final int CMD_CLOSE_PATH = 7;
+
+  public static void main(String[] args) throws IOException {
+    File folder = new File(args.length > 0 ? args[0] : "src/main/resources/fixtures");
+    folder.mkdirs();
+    for (Fixture fixture : Fixture.values()) {
+      byte[] data = createTile(fixture);
+      if (fixture.isGzip()) {
+        data = gzip(data);
+      }
+      try (OutputStream os = new FileOutputStream(new File(folder, fixture.getFileName()))) {
+        os.write(data);
+      }
+      System.out.println(fixture.getFileName() + ": " + data.length + " bytes");
+    }
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzos = new GZIPOutputStream(bos)) {
+      gzos.write(data);
+    }
+    return bos.toByteArray();
+  }
+
+  private static byte[] createTile(Fixture fixture) {
+    switch (fixture.getDensity()) {
+      case "rural":
+        return createRuralTile();
+      case "urban":
+      default:
+        return createUrbanTile(fixture.getZ());
+    }
+  }
+
+  private static byte[] createRuralTile() {
+    Random random = new Random(14);
+    LayerWriter landuse = new LayerWriter("landuse");
+    String[] classes = {"farmland", "forest", "grass", "orchard"};
+    for (int i = 0; i < 12; i++) {
+      int x = random.nextInt(EXTENT - 1200);
+      int y = random.nextInt(EXTENT - 1200);
+      landuse.addPolygon(irregularRing(random, x + 600, y + 600, 300 + random.nextInt(300), 48),
+              attrs("class", classes[i % classes.length]));
+    }
+    LayerWriter water = new LayerWriter("water");
+    water.addPolygon(irregularRing(random, 3200, 800, 500, 160), attrs("class", "lake"));
+
+    LayerWriter waterway = new LayerWriter("waterway");
+    waterway.addLine(wavyLine(random, 0, 2000, EXTENT, 2400, 200), attrs("class", "river", "name", "Riu Millars"));
+
+    LayerWriter road = new LayerWriter("road");
+    for (int i = 0; i < 8; i++) {
+      road.addLine(wavyLine(random, random.nextInt(EXTENT), 0, random.nextInt(EXTENT), EXTENT, 60),
+              attrs("class", i < 2 ? "secondary" : "track", "name", "Cami " + i));
+    }
+    LayerWriter place = new LayerWriter("place");
+    for (int i = 0; i < 3; i++) {
+      place.addPoint(random.nextInt(EXTENT), random.nextInt(EXTENT), attrs("class", "village", "name", "Poble " + i));
+    }
+    return tile(landuse, water, waterway, road, place);
+  }
+
+  private static byte[] createUrbanTile(int z) {
+    Random random = new Random(z);
+    int blocks = z >= 16 ? 12 : 24;
+    int cell = EXTENT / blocks;
+
+    LayerWriter landuse = new LayerWriter("landuse");
+    for (int i = 0; i < 6; i++) {
+      int bx = random.nextInt(blocks) * cell;
+      int by = random.nextInt(blocks) * cell;
+      landuse.addPolygon(rectangle(bx + 8, by + 8, cell - 16, cell - 16), attrs("class", "park", "name", "Parc " + i));
+    }
+    LayerWriter water = new LayerWriter("water");
+    water.addPolygon(irregularRing(random, EXTENT, EXTENT, EXTENT / 3, 400), attrs("class", "sea"));
+
+    LayerWriter road = new LayerWriter("road");
+    for (int i = 0; i <= blocks; i++) {
+      String roadClass = i % 6 == 0 ? "primary" : (i % 3 == 0 ? "secondary" : "residential");
+      road.addLine(wavyLine(random, i * cell, -64, i * cell, EXTENT + 64, 2), attrs("class", roadClass, "name", "Carrer " + i));
+      road.addLine(wavyLine(random, -64, i * cell, EXTENT + 64, i * cell, 2), attrs("class", roadClass, "name", "Avinguda " + i));
+    }
+
+    LayerWriter building = new LayerWriter("building");
+    int perBlock = z >= 16 ? 9 : 6;
+    int lot = (cell - 24) / perBlock;
+    for (int bx = 0; bx < blocks; bx++) {
+      for (int by = 0; by < blocks; by++) {
+        for (int i = 0; i < perBlock; i++) {
+          int x = bx * cell + 12 + i * lot;
+          building.addPolygon(rectangle(x, by * cell + 12, lot - 4, lot * 2), attrs("height", 6 + random.nextInt(40)));
+          building.addPolygon(rectangle(x, (by + 1) * cell - 12 - lot * 2, lot - 4, lot * 2), attrs("height", 6 + random.nextInt(40)));
+        }
+      }
+    }
+
+    LayerWriter poi = new LayerWriter("poi");
+    String[] classes = {"shop", "restaurant", "school", "pharmacy", "bank"};
+    for (int i = 0; i < blocks * blocks / 2; i++) {
+      poi.addPoint(random.nextInt(EXTENT), random.nextInt(EXTENT), attrs("class", classes[i % classes.length], "name", "Local " + i));
+    }
+    LayerWriter place = new LayerWriter("place");
+    place.addPoint(EXTENT / 2, EXTENT / 2, attrs("class", "city", "name", "Valencia"));
+    return tile(landuse, water, road, building, poi, place);
+  }
+
+  private static Map<String, Object> attrs(Object... keyValues) {
+    Map<String, Object> attrs = new LinkedHashMap<>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      attrs.put((String) keyValues[i], keyValues[i + 1]);
+    }
+    return attrs;
+  }
+
+  private static int[][] rectangle(int x, int y, int w, int h) {
+    // Clockwise in tile coordinates (y down), as required for exterior rings.
+    return new int[][]{{x, y}, {x + w, y}, {x + w, y + h}, {x, y + h}};
+  }
+
+  private static int[][] irregularRing(Random random, int cx, int cy, int radius, int vertices) {
+    int[][] ring = new int[vertices][];
+    for (int i = 0; i < vertices; i++) {
+      double angle = 2 * Math.PI * i / vertices;
+      double r = radius * (0.85 + random.nextDouble() * 0.3);
+      ring[i] = new int[]{cx + (int) (Math.cos(angle) * r), cy + (int) (Math.sin(angle) * r)};
+    }
+    return ring;
+  }
+
+  private static int[][] wavyLine(Random random, int x0, int y0, int x1, int y1, int vertices) {
+    int[][] line = new int[vertices][];
+    for (int i = 0; i < vertices; i++) {
+      double t = vertices == 1 ? 0 : (double) i / (vertices - 1);
+      int jitter = vertices > 2 ? random.nextInt(24) - 12 : 0;
+      line[i] = new int[]{(int) (x0 + (x1 - x0) * t) + jitter, (int) (y0 + (y1 - y0) * t) + jitter};
+    }
+    return line;
+  }
+
+  private static byte[] tile(LayerWriter... layers) {
+    ProtoWriter tile = new ProtoWriter();
+    for (LayerWriter layer : layers) {
+      tile.writeBytes(3, layer.toBytes());
+    }
+    return tile.toByteArray();
+  }
+
+  /**
+   * Accumulates the features of one layer together with its key and value
+   * tables.
+   */
+  private static class LayerWriter {
+
+    private final String name;
+    private final Map<String, Integer> keys = new LinkedHashMap<>();
+    private final Map<Object, Integer> values = new LinkedHashMap<>();
+    private final List<byte[]> features = new ArrayList<>();
+
+    LayerWriter(String name) {
+      this.name = name;
+    }
+
+    void addPoint(int x, int y, Map<String, Object> attributes) {
+      int[] geometry = {command(CMD_MOVE_TO, 1), zigzag(x), zigzag(y)};
+      addFeature(GEOM_POINT, geometry, attributes);
+    }
+
+    void addLine(int[][] points, Map<String, Object> attributes) {
+      addFeature(GEOM_LINESTRING, encodePath(points, false), attributes);
+    }
+
+    void addPolygon(int[][] ring, Map<String, Object> attributes) {
+      addFeature(GEOM_POLYGON, encodePath(ring, true), attributes);
+    }
+
+    private int[] encodePath(int[][] points, boolean close) {
+      List<Integer> geometry = new ArrayList<>();
+      int cx = 0;
+      int cy = 0;
+      geometry.add(command(CMD_MOVE_TO, 1));
+      geometry.add(zigzag(points[0][0] - cx));
+      geometry.add(zigzag(points[0][1] - cy));
+      cx = points[0][0];
+      cy = points[0][1];
+      geometry.add(command(CMD_LINE_TO, points.length - 1));
+      for (int i = 1; i < points.length; i++) {
+        geometry.add(zigzag(points[i][0] - cx));
+        geometry.add(zigzag(points[i][1] - cy));
+        cx = points[i][0];
+        cy = points[i][1];
+      }
+      if (close) {
+        geometry.add(command(CMD_CLOSE_PATH, 1));
+      }
+      return geometry.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void addFeature(int type, int[] geometry, Map<String, Object> attributes) {
+      ProtoWriter feature = new ProtoWriter();
+      feature.writeVarintField(1, features.size() + 1);
+      int[] tags = new int[attributes.size() * 2];
+      int n = 0;
+      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+        tags[n++] = keys.computeIfAbsent(entry.getKey(), k -> keys.size());
+        tags[n++] = values.computeIfAbsent(entry.getValue(), v -> values.size());
+      }
+      feature.writePacked(2, tags);
+      feature.writeVarintField(3, type);
+      feature.writePacked(4, geometry);
+      features.add(feature.toByteArray());
+    }
+
+    byte[] toBytes() {
+      ProtoWriter layer = new ProtoWriter();
+      layer.writeVarintField(15, 2);
+      layer.writeString(1, name);
+      for (byte[] feature : features) {
+        layer.writeBytes(2, feature);
+      }
+      for (String key : keys.keySet()) {
+        layer.writeString(3, key);
+      }
+      for (Object value : values.keySet()) {
+        ProtoWriter v = new ProtoWriter();
+        if (value instanceof String s) {
+          v.writeString(1, s);
+        } else if (value instanceof Integer i) {
+          v.writeVarintField(4, i);
+        } else {
+          v.writeString(1, String.valueOf(value));
+        }
+        layer.writeBytes(4, v.toByteArray());
+      }
+      layer.writeVarintField(5, EXTENT);
+      return layer.toByteArray();
+    }
+  }
+
+  private static int command(int id, int count) {
+    return (id & 0x7) | (count << 3);
+  }
+
+  private static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  /**
+   * Minimal protobuf wire format writer.
+   */
+  private static class ProtoWriter {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+
+    void writeVarintField(int field, long value) {
+      writeVarint((field << 3) | 0);
+      writeVarint(value);
+    }
+
+    void writeBytes(int field, byte[] bytes) {
+      writeVarint((field << 3) | 2);
+      writeVarint(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+
+    void writeString(int field, String s) {
+      writeBytes(field, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void writePacked(int field, int[] values) {
+      ProtoWriter packed = new ProtoWriter();
+      for (int value : values) {
+        packed.writeVarint(value & 0xFFFFFFFFL);
+      }
+      writeBytes(field, packed.toByteArray());
+    }
+
+    byte[] toByteArray() {
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import org.gvsig.mvtrenderer.lib.impl.MVTStyles;
+import org.gvsig.mvtrenderer.lib.impl.MVTTile;
+import org.locationtech.jts.geom.Envelope;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark state shared by all the phases: the fixture tile bytes, the
+ * loaded style and an already decoded tile for the phases that come after
+ * the decode.
+ *
+ * @author fdiaz
+ */
+@State(Scope.Benchmark)
+public class TileState {
+
+  @Param
+  public Fixture fixture;
+
+  public byte[] data;
+  public Envelope envelope;
+  public MVTStyles styles;
+  public Map<String, Set<String>> fieldsByLayer;
+  public MVTTile tile;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    this.styles = new MVTStyles();
+    this.styles.addVariant(false, 10.0);
+    this.styles.download(Fixture.getStyleURL());
+    this.fieldsByLayer = this.styles.extractFieldsFromStyles();
+    this.data = this.fixture.load();
+    this.envelope = this.fixture.getEnvelope();
+    this.tile = decode();
+  }
+
+  /**
+   * Decodes the fixture into a new tile.
+   *
+   * @return The decoded tile.
+   * @throws IOException If the tile can't be decoded.
+   */
+  public MVTTile decode() throws IOException {
+    MVTTile theTile = new MVTTile();
+    theTile.setParams(Map.of(
+            "assignScaleDenominator", "true",
+            "textMaxSizeLimit", "10.0"
+    ));
+    theTile.download(new ByteArrayInputStream(this.data), this.envelope, this.fieldsByLayer);
+    return theTile;
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.MvtReader;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.TagKeyValueMapConverter;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsLayer;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsMvt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.gvsig.mvtrenderer.benchmarks.TileState;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the conversion of the layers decoded by {@code MvtReader} to
+ * feature collections, isolated from the protobuf decode, next to
+ * {@link MVTDecoder}, which does the decode and the conversion in a single
+ * pass. The conversion is kept here as the baseline of the decoder, which
+ * replaced it in the library.
+ *
+ * @author fdiaz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ConvertBenchmark {
+
+  private JtsMvt mvt;
+  private MVTDecoder decoder;
+  private ByteBuffer data;
+
+  @Setup(Level.Trial)
+  public void setup(TileState state) throws IOException {
+    InputStream is = new ByteArrayInputStream(state.data);
+    if (state.fixture.isGzip()) {
+      is = new GZIPInputStream(is);
+    }
+    this.mvt = MvtReader.loadMvt(is, new GeometryFactory(), new TagKeyValueMapConverter());
+    this.decoder = new MVTDecoder();
+    this.data = MVTDecoder.uncompress(ByteBuffer.wrap(state.data));
+  }
+
+  @Benchmark
+  public void convertToFeatureCollection(TileState state, Blackhole blackhole) {
+    for (JtsLayer layer : this.mvt.getLayers()) {
+      blackhole.consume(convertToFeatureCollection(
+              layer,
+              state.fieldsByLayer.get(layer.getName()),
+              createTransformation(layer.getExtent(), state.envelope)
+      ));
+    }
+  }
+
+  @Benchmark
+  public Map<String, MVTFeatureCollection> directDecode(TileState state) throws IOException {
+    return this.decoder.decode(this.data, state.envelope, state.fieldsByLayer);
+  }
+
+  /**
+   * Creates the transformation from the tile coordinate space (0..extent,
+   * y pointing down) to the coordinates of the envelope.
+   */
+  private static AffineTransformation createTransformation(int extent, Envelope envelope) {
+    double scaleX = envelope.getWidth() / extent;
+    double scaleY = envelope.getHeight() / extent;
+
+    AffineTransformation t = new AffineTransformation();
+    t.scale(scaleX, -scaleY);
+    t.translate(envelope.getMinX(), envelope.getMaxY());
+    return t;
+  }
+
+  /**
+   * Converts a layer to a feature collection with all its attributes plus
+   * the requested ones, transforming the geometries to the envelope.
+   */
+  private static SimpleFeatureCollection convertToFeatureCollection(JtsLayer layer, Set<String> fieldNames, AffineTransformation t) {
+    Set<String> attributeNames = new HashSet<>();
+    if(fieldNames != null) {
+      attributeNames.addAll(fieldNames);
+    }
+    for (Geometry geom : layer.getGeometries()) {
+      Object userData = geom.getUserData();
+      if (userData instanceof Map) {
+        attributeNames.addAll(((Map<String, Object>) userData).keySet());
+      }
+    }
+    SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+    tb.setName(layer.getName());
+    tb.add("geometry", Geometry.class);
+    for (String attr : attributeNames) {
+      tb.add(attr, Object.class);
+    }
+    SimpleFeatureType type = tb.buildFeatureType();
+
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(type);
+    List<String> names = new ArrayList<>(attributeNames);
+    int[] indexes = new int[names.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = type.indexOf(names.get(i));
+    }
+    for (Geometry geom : layer.getGeometries()) {
+      builder.add(t.transform(geom));
+
+      Object userData = geom.getUserData();
+      if (userData instanceof Map) {
+        Map<String, Object> attributes = (Map<String, Object>) userData;
+        for (int i = 0; i < indexes.length; i++) {
+          builder.set(indexes[i], attributes.get(names.get(i)));
+        }
+      }
+    }
+    return builder.build();
+  }
+}
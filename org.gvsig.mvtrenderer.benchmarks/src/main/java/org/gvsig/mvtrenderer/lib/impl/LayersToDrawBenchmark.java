@@ -0,0 +1,73 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.gvsig.mvtrenderer.benchmarks.TileState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MVTStyles#getLayersToDraw}: style lookup and the matching
+ * of style layers with the decoded source layers, for all the visible style
+ * layers and for those drawn at the zoom level of the fixture.
+ *
+ * @author fdiaz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LayersToDrawBenchmark {
+
+  @Benchmark
+  public List<MVTLayer> getLayersToDraw(TileState state) {
+    return state.styles.getLayersToDraw(
+            state.tile.getSourceLayers(),
+            state.envelope,
+            null,
+            state.tile.isEnableTextPartials(),
+            state.tile.getTextMaxSizeLimit()
+    );
+  }
+
+  @Benchmark
+  public List<MVTLayer> getLayersToDrawAtZoom(TileState state) {
+    return state.styles.getLayersToDraw(
+            state.tile.getSourceLayers(),
+            state.envelope,
+            null,
+            state.tile.isEnableTextPartials(),
+            state.tile.getTextMaxSizeLimit(),
+            state.fixture.getZ()
+    );
+  }
+}
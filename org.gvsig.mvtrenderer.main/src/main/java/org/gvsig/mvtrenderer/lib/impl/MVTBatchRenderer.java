@@ -0,0 +1,914 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.gvsig.mvtrenderer.lib.impl.MVTTile.MVTDataSource;
+
+/**
+ * Renders a batch of tiles in parallel sharing a single {@link MVTStyles}.
+ * <p>
+ * The tiles go through a pipeline of four {@link MVTPipelineStage}s, each
+ * with its own threads: fetch, decode, render and encode. The stages are
+ * connected by bounded queues, so the downloads keep the network busy while
+ * the render threads keep the processors busy, and a slow stage holds back
+ * the ones that feed it. The number of tiles in flight is bounded too, and
+ * the results are handed to the caller, in the calling thread, as soon as
+ * each tile is finished. Optionally the tiles are rendered in metatiles, see
+ * {@link #setMetaTileSize(int, int)}; then the tiles of the band of metatile
+ * rows being grouped are held besides those in flight.
+ *
+ * @author fdiaz
+ */
+public class MVTBatchRenderer {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTBatchRenderer.class.getName());
+
+  /**
+   * The outcome of rendering one tile of the batch.
+   */
+  public static class Result {
+
+    private final MVTTileId tile;
+    private final BufferedImage image;
+    private final byte[] data;
+    private final Throwable error;
+
+    Result(MVTTileId tile, BufferedImage image, byte[] data, Throwable error) {
+      this.tile = tile;
+      this.image = image;
+      this.data = data;
+      this.error = error;
+    }
+
+    public MVTTileId getTile() {
+      return tile;
+    }
+
+    /**
+     * Returns the rendered image, or null if an output format was set or the
+     * tile failed.
+     *
+     * @return The rendered image.
+     */
+    public BufferedImage getImage() {
+      return image;
+    }
+
+    /**
+     * Returns the encoded image when an output format was set.
+     *
+     * @return The encoded image, or null.
+     */
+    public byte[] getData() {
+      return data;
+    }
+
+    public Throwable getError() {
+      return error;
+    }
+
+    public boolean isOk() {
+      return error == null;
+    }
+  }
+
+  private final MVTStyles styles;
+  private final MVTTileSource source;
+  private int concurrency;
+  private int ioConcurrency;
+  private int decodeConcurrency;
+  private int encodeConcurrency;
+  private int queueCapacity;
+  private volatile List<MVTPipelineStage> stages;
+  private int width;
+  private int height;
+  private MVTImageEncoder encoder;
+  private Map<String, String> params;
+  private int metaTileColumns;
+  private int metaTileRows;
+  private MVTDecodedTileCache decodedCache;
+  private MVTImageCache imageCache;
+  private MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> singleFlight;
+  private MVTImagePool imagePool;
+  private MVTMetrics metrics;
+  private MVTRenderProfiler profiler;
+
+  /**
+   * Creates a batch renderer.
+   *
+   * @param styles The loaded style shared by all the tiles.
+   * @param source The source of the vector tiles.
+   */
+  public MVTBatchRenderer(MVTStyles styles, MVTTileSource source) {
+    this.styles = styles;
+    this.source = source;
+    this.concurrency = Runtime.getRuntime().availableProcessors();
+    this.ioConcurrency = this.concurrency * 4;
+    this.decodeConcurrency = this.concurrency;
+    this.encodeConcurrency = Math.max(1, this.concurrency / 2);
+    this.queueCapacity = 0;
+    this.stages = Collections.emptyList();
+    this.width = 512;
+    this.height = 512;
+    this.encoder = null;
+    this.params = Collections.emptyMap();
+    this.metaTileColumns = 1;
+    this.metaTileRows = 1;
+    this.decodedCache = null;
+    this.imageCache = null;
+    this.singleFlight = null;
+    this.imagePool = new MVTImagePool();
+  }
+
+  /**
+   * Sets the number of threads that render tiles. Defaults to the number of
+   * available processors.
+   *
+   * @param concurrency The number of render threads.
+   */
+  public void setConcurrency(int concurrency) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be greater than 0");
+    }
+    this.concurrency = concurrency;
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Sets the maximum number of downloads in progress at the same time. It
+   * also bounds the number of tiles in flight. Defaults to four times the
+   * number of render threads.
+   *
+   * @param ioConcurrency The number of concurrent downloads.
+   */
+  public void setIOConcurrency(int ioConcurrency) {
+    if (ioConcurrency < 1) {
+      throw new IllegalArgumentException("ioConcurrency must be greater than 0");
+    }
+    this.ioConcurrency = ioConcurrency;
+  }
+
+  public int getIOConcurrency() {
+    return ioConcurrency;
+  }
+
+  /**
+   * Sets the number of threads that decode tiles. Defaults to the number of
+   * available processors.
+   *
+   * @param decodeConcurrency The number of decode threads.
+   */
+  public void setDecodeConcurrency(int decodeConcurrency) {
+    if (decodeConcurrency < 1) {
+      throw new IllegalArgumentException("decodeConcurrency must be greater than 0");
+    }
+    this.decodeConcurrency = decodeConcurrency;
+  }
+
+  public int getDecodeConcurrency() {
+    return decodeConcurrency;
+  }
+
+  /**
+   * Sets the number of threads that encode images. Defaults to half the
+   * number of available processors.
+   *
+   * @param encodeConcurrency The number of encode threads.
+   */
+  public void setEncodeConcurrency(int encodeConcurrency) {
+    if (encodeConcurrency < 1) {
+      throw new IllegalArgumentException("encodeConcurrency must be greater than 0");
+    }
+    this.encodeConcurrency = encodeConcurrency;
+  }
+
+  public int getEncodeConcurrency() {
+    return encodeConcurrency;
+  }
+
+  /**
+   * Sets the number of tasks that can wait in the queue of each stage before
+   * the stages that feed it are blocked, or 0 to use twice the number of
+   * threads of the stage. Defaults to 0.
+   *
+   * @param queueCapacity The capacity of the queues.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 0) {
+      throw new IllegalArgumentException("queueCapacity must not be negative");
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Returns the stages of the running render, or of the last one when no
+   * render is running, to read their metrics.
+   *
+   * @return The fetch, decode, render and encode stages.
+   */
+  public List<MVTPipelineStage> getStages() {
+    return stages;
+  }
+
+  public void setTileSize(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Sets the format used to encode the images (e.g. "png", "png8" or
+   * "jpeg"), with the default settings of its encoder, see
+   * {@link MVTImageEncoder#get(String)}. When null, the results hold the
+   * BufferedImage instead of the encoded bytes.
+   *
+   * @param format The image format, or null.
+   */
+  public void setFormat(String format) {
+    this.encoder = format == null ? null : MVTImageEncoder.get(format);
+  }
+
+  public String getFormat() {
+    return this.encoder == null ? null : this.encoder.getFormat();
+  }
+
+  /**
+   * Sets the encoder of the images. When null, the results hold the
+   * BufferedImage instead of the encoded bytes.
+   *
+   * @param encoder The encoder, or null.
+   */
+  public void setEncoder(MVTImageEncoder encoder) {
+    this.encoder = encoder;
+  }
+
+  public MVTImageEncoder getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * Sets the parameters applied to each tile with {@link MVTTile#setParams(java.util.Map)}.
+   *
+   * @param params The render parameters.
+   */
+  public void setParams(Map<String, String> params) {
+    this.params = params == null ? Collections.emptyMap() : new HashMap<>(params);
+  }
+
+  /**
+   * Renders the tiles in blocks of columns x rows tiles (see
+   * {@link MVTMetaTile}). With 1 x 1, the default, each tile is rendered on
+   * its own.
+   * <p>
+   * The requested tiles are grouped in blocks as they are read, and the
+   * blocks of a band of metatile rows are rendered when the tiles leave the
+   * band, so the tiles should be passed row by row, as
+   * {@link MVTTileId#range(int, int, int, int, int)} returns them. A tile
+   * that comes back to a band already rendered is rendered in another block.
+   *
+   * @param columns The number of tile columns of each block.
+   * @param rows The number of tile rows of each block.
+   */
+  public void setMetaTileSize(int columns, int rows) {
+    if (columns < 1 || rows < 1) {
+      throw new IllegalArgumentException("The metatile must have at least one column and one row");
+    }
+    this.metaTileColumns = columns;
+    this.metaTileRows = rows;
+  }
+
+  /**
+   * Sets the cache of decoded tiles, or null to always download and decode
+   * them. The cache is only used when rendering tile by tile.
+   *
+   * @param decodedCache The decoded tile cache.
+   */
+  public void setDecodedCache(MVTDecodedTileCache decodedCache) {
+    this.decodedCache = decodedCache;
+  }
+
+  public MVTDecodedTileCache getDecodedCache() {
+    return decodedCache;
+  }
+
+  /**
+   * Sets the object that coalesces the concurrent downloads and decodes of
+   * the same tile, or null to process each request on its own. Share it
+   * with other batch renderers or {@link MVTTile#setSingleFlight(MVTSingleFlight)}
+   * over the same source. It is only used when rendering tile by tile.
+   *
+   * @param singleFlight The request coalescer.
+   */
+  public void setSingleFlight(MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> singleFlight) {
+    this.singleFlight = singleFlight;
+  }
+
+  public MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> getSingleFlight() {
+    return singleFlight;
+  }
+
+  /**
+   * Sets the cache of rendered images, or null to always render the tiles.
+   * It is only used when an output format is set. To drop the cached images
+   * when the style is reloaded, register the cache with
+   * {@link MVTStyles#addStyleChangeListener(MVTStyles.StyleChangeListener)}.
+   *
+   * @param imageCache The rendered image cache.
+   */
+  public void setImageCache(MVTImageCache imageCache) {
+    this.imageCache = imageCache;
+  }
+
+  public MVTImageCache getImageCache() {
+    return imageCache;
+  }
+
+  /**
+   * Sets the pool the tiles are rendered into. The images of the results are
+   * taken from it when no output format is set, and the consumer can give
+   * them back with {@link MVTImagePool#release(BufferedImage)}.
+   *
+   * @param imagePool The image pool.
+   */
+  public void setImagePool(MVTImagePool imagePool) {
+    this.imagePool = Objects.requireNonNull(imagePool);
+  }
+
+  public MVTImagePool getImagePool() {
+    return imagePool;
+  }
+
+  /**
+   * Sets the metrics that record the time of each phase of the renders, or
+   * null to not measure them.
+   *
+   * @param metrics The metrics.
+   */
+  public void setMetrics(MVTMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public MVTMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets a profiler to record the cost of each style layer of the renders,
+   * or null to render normally, see {@link MVTRenderProfiler}. The image
+   * cache is not used while profiling.
+   *
+   * @param profiler The profiler.
+   */
+  public void setProfiler(MVTRenderProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  public MVTRenderProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Renders the tiles. The method returns when all of them are finished.
+   *
+   * @param tiles The tiles to render.
+   * @param consumer Receives the result of each tile, in completion order,
+   * in the calling thread.
+   * @throws InterruptedException If the calling thread is interrupted while
+   * waiting for the results.
+   */
+  public void render(Iterable<MVTTileId> tiles, Consumer<Result> consumer) throws InterruptedException {
+    MVTTile paramsTile = new MVTTile();
+    paramsTile.setParams(this.params);
+    // The tiles are drawn without map CRS, so all the tiles of a zoom level
+    // are rendered at the same scale and request the same fields.
+    Map<Integer, Map<String, Set<String>>> fieldsByZoom = new HashMap<>();
+    Function<MVTTileId, MVTImageCache.Key> imageKeys = createImageKeys();
+    BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+    Pipeline pipeline = new Pipeline(paramsTile);
+    this.stages = pipeline.getStages();
+    int maxPending = Math.max(this.ioConcurrency, this.concurrency * 2);
+    int pending = 0;
+    try {
+      if (this.metaTileColumns == 1 && this.metaTileRows == 1) {
+        for (MVTTileId tile : tiles) {
+          pending = waitForResults(results, consumer, pending, maxPending - 1);
+          Map<String, Set<String>> fieldsByLayer = fieldsByZoom.computeIfAbsent(tile.getZ(), z -> paramsTile.getFieldsByLayer(this.styles, tile.getEnvelope(), this.width));
+          submitTile(tile, fieldsByLayer, imageKeys, pipeline, results);
+          pending++;
+        }
+      } else {
+        // Group the requested tiles by the metatile that contains them, one
+        // band of metatile rows at a time, so the tiles are not all read
+        // before the first block is rendered.
+        Map<MVTTileId, List<MVTTileId>> blocks = new LinkedHashMap<>();
+        MVTTileId band = null;
+        for (MVTTileId tile : tiles) {
+          MVTTileId origin = MVTMetaTile.of(tile, this.metaTileColumns, this.metaTileRows).getOrigin();
+          if (band != null && (band.getZ() != origin.getZ() || band.getY() != origin.getY())) {
+            pending = submitBlocks(blocks, fieldsByZoom, imageKeys, pipeline, results, consumer, pending, maxPending);
+          }
+          band = origin;
+          blocks.computeIfAbsent(origin, k -> new ArrayList<>()).add(tile);
+        }
+        pending = submitBlocks(blocks, fieldsByZoom, imageKeys, pipeline, results, consumer, pending, maxPending);
+      }
+      waitForResults(results, consumer, pending, 0);
+    } finally {
+      pipeline.shutdownNow();
+      if (LOGGER.isLoggable(Level.FINE)) {
+        for (MVTPipelineStage stage : pipeline.getStages()) {
+          LOGGER.log(Level.FINE, stage.getStatistics());
+        }
+      }
+    }
+  }
+
+  /**
+   * Renders the grouped blocks of tiles and clears them, waiting for results
+   * to keep the tiles in flight bounded.
+   *
+   * @return The number of tiles in flight.
+   */
+  private int submitBlocks(Map<MVTTileId, List<MVTTileId>> blocks, Map<Integer, Map<String, Set<String>>> fieldsByZoom, Function<MVTTileId, MVTImageCache.Key> imageKeys, Pipeline pipeline, BlockingQueue<Result> results, Consumer<Result> consumer, int pending, int maxPending) throws InterruptedException {
+    for (List<MVTTileId> requested : blocks.values()) {
+      pending = waitForResults(results, consumer, pending, maxPending - requested.size());
+      // A tile is drawn at the scale of its metatile, the block being as
+      // many times wider as its image.
+      MVTTileId first = requested.get(0);
+      Map<String, Set<String>> fieldsByLayer = fieldsByZoom.computeIfAbsent(first.getZ(), z -> pipeline.paramsTile.getFieldsByLayer(this.styles, first.getEnvelope(), this.width));
+      if (requested.get(0).getZ() > pipeline.sourceMaxZoom) {
+        // Overzoomed tiles are clipped from their ancestor one by one.
+        for (MVTTileId tile : requested) {
+          submitTile(tile, fieldsByLayer, imageKeys, pipeline, results);
+        }
+      } else {
+        submitMetaTile(requested, fieldsByLayer, imageKeys, pipeline, results);
+      }
+      pending += requested.size();
+    }
+    blocks.clear();
+    return pending;
+  }
+
+  /**
+   * Returns the function that builds the image cache keys of this batch, or
+   * null if the rendered images are not cached.
+   */
+  private Function<MVTTileId, MVTImageCache.Key> createImageKeys() {
+    String fingerprint = this.styles.getFingerprint();
+    MVTImageEncoder theEncoder = this.encoder;
+    // Profiled renders must be rendered, and their images differ slightly.
+    if (this.imageCache == null || theEncoder == null || fingerprint == null || this.profiler != null) {
+      return null;
+    }
+    MVTTile paramsTile = new MVTTile();
+    paramsTile.setParams(this.params);
+    // The metatile size, that changes the label placement, and the settings
+    // of the encoder also change the cached bytes.
+    String theParams = MVTImageCache.getParams(paramsTile)
+            + ";metaTile=" + this.metaTileColumns + "x" + this.metaTileRows
+            + ";" + theEncoder.getSettings();
+    String theFormat = theEncoder.getFormat();
+    String sourceId = this.source.getId();
+    return (MVTTileId tile) -> new MVTImageCache.Key(fingerprint, sourceId, theParams, this.width, this.height, theFormat, tile);
+  }
+
+  private int waitForResults(BlockingQueue<Result> results, Consumer<Result> consumer, int pending, int maxPending) throws InterruptedException {
+    while (pending > 0 && pending > maxPending) {
+      consumer.accept(results.take());
+      pending--;
+    }
+    return pending;
+  }
+
+  /**
+   * Starts rendering a tile. Exactly one result is queued for it, a failed
+   * one if anything goes wrong, so the caller never waits for it forever.
+   */
+  private void submitTile(MVTTileId tile, Map<String, Set<String>> fieldsByLayer, Function<MVTTileId, MVTImageCache.Key> imageKeys, Pipeline pipeline, BlockingQueue<Result> results) {
+    CompletableFuture<Result> future;
+    try {
+      if (imageKeys == null) {
+        future = renderTileAsync(tile, fieldsByLayer, null, pipeline);
+      } else {
+        MVTImageCache.Key key = imageKeys.apply(tile);
+        future = CompletableFuture
+                .supplyAsync(() -> this.imageCache.get(key), pipeline.fetch)
+                .thenCompose(data -> {
+                  if (data != null) {
+                    return CompletableFuture.completedFuture(new Result(tile, null, data, null));
+                  }
+                  return renderTileAsync(tile, fieldsByLayer, key, pipeline);
+                })
+                .exceptionally(error -> failed(tile, error));
+      }
+    } catch (RuntimeException ex) {
+      results.add(failed(tile, ex));
+      return;
+    }
+    future.thenAccept(results::add);
+  }
+
+  /**
+   * Downloads, decodes and renders a tile. The returned future always
+   * completes normally, with a failed result if the tile can't be rendered.
+   */
+  private CompletableFuture<Result> renderTileAsync(MVTTileId tile, Map<String, Set<String>> fieldsByLayer, MVTImageCache.Key key, Pipeline pipeline) {
+    CompletableFuture<Map<String, MVTDataSource>> decoded;
+    String cacheId = pipeline.paramsTile.getDecodedCacheId(this.source.getId(), fieldsByLayer);
+    if (tile.getZ() > pipeline.sourceMaxZoom) {
+      // Overzoom: clip the data of the ancestor at the max zoom of the source.
+      decoded = decodeTileAsync(tile.getAncestor(pipeline.sourceMaxZoom), cacheId, fieldsByLayer, pipeline)
+              .thenApplyAsync(sourceLayers -> clipSourceLayers(tile, sourceLayers), pipeline.decode);
+    } else {
+      decoded = decodeTileAsync(tile, cacheId, fieldsByLayer, pipeline);
+    }
+    return decoded
+            .thenApplyAsync(sourceLayers -> renderTile(tile, sourceLayers), pipeline.render)
+            .thenApplyAsync(image -> createResult(tile, image, key), pipeline.encode)
+            .exceptionally(error -> failed(tile, error));
+  }
+
+  /**
+   * Returns the decoded layers of a tile, from the decoded cache if
+   * possible.
+   */
+  private CompletableFuture<Map<String, MVTDataSource>> decodeTileAsync(MVTTileId tile, String cacheId, Map<String, Set<String>> fieldsByLayer, Pipeline pipeline) {
+    return decodeTileAsync(tile, cacheId, fieldsByLayer, pipeline, () -> CompletableFuture.supplyAsync(() -> fetch(tile), pipeline.fetch));
+  }
+
+  /**
+   * Returns the decoded layers of a tile, from the decoded cache if
+   * possible, starting the download with the given supplier otherwise.
+   */
+  private CompletableFuture<Map<String, MVTDataSource>> decodeTileAsync(MVTTileId tile, String cacheId, Map<String, Set<String>> fieldsByLayer, Pipeline pipeline, Supplier<CompletableFuture<ByteBuffer>> download) {
+    Map<String, MVTDataSource> cached = null;
+    if (this.decodedCache != null) {
+      cached = this.decodedCache.get(cacheId, tile);
+    }
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    } else if (this.singleFlight == null) {
+      return loadTileAsync(tile, cacheId, fieldsByLayer, pipeline, download);
+    }
+    return this.singleFlight.getAsync(
+            new MVTTileKey(cacheId, tile),
+            () -> loadTileAsync(tile, cacheId, fieldsByLayer, pipeline, download)
+    );
+  }
+
+  private CompletableFuture<Map<String, MVTDataSource>> loadTileAsync(MVTTileId tile, String cacheId, Map<String, Set<String>> fieldsByLayer, Pipeline pipeline, Supplier<CompletableFuture<ByteBuffer>> download) {
+    return download.get()
+            .thenApplyAsync(data -> decodeTile(tile, cacheId, data, fieldsByLayer), pipeline.decode);
+  }
+
+  /**
+   * Starts rendering the metatile of the requested tiles. Exactly one result
+   * is queued for each of them, a failed one if anything goes wrong, so the
+   * caller never waits for them forever.
+   */
+  private void submitMetaTile(List<MVTTileId> requested, Map<String, Set<String>> fieldsByLayer, Function<MVTTileId, MVTImageCache.Key> imageKeys, Pipeline pipeline, BlockingQueue<Result> results) {
+    // The tiles whose result has already been queued.
+    Set<MVTTileId> queued = ConcurrentHashMap.newKeySet();
+    CompletableFuture<List<Result>> future;
+    try {
+      if (imageKeys == null) {
+        future = renderMetaTileAsync(requested, fieldsByLayer, null, pipeline);
+      } else {
+        // Serve the cached tiles and render the metatile only for the others.
+        future = CompletableFuture
+                .supplyAsync(() -> {
+                  List<MVTTileId> missing = new ArrayList<>();
+                  for (MVTTileId tile : requested) {
+                    byte[] data = this.imageCache.get(imageKeys.apply(tile));
+                    if (data != null) {
+                      queued.add(tile);
+                      results.add(new Result(tile, null, data, null));
+                    } else {
+                      missing.add(tile);
+                    }
+                  }
+                  return missing;
+                }, pipeline.fetch)
+                .thenCompose(missing -> {
+                  if (missing.isEmpty()) {
+                    return CompletableFuture.completedFuture(Collections.<Result>emptyList());
+                  }
+                  return renderMetaTileAsync(missing, fieldsByLayer, imageKeys, pipeline);
+                })
+                .exceptionally(error -> failed(requested, queued, error));
+      }
+    } catch (RuntimeException ex) {
+      results.addAll(failed(requested, queued, ex));
+      return;
+    }
+    future.thenAccept(results::addAll);
+  }
+
+  /**
+   * Returns failed results for the requested tiles whose result has not been
+   * queued.
+   */
+  private List<Result> failed(List<MVTTileId> requested, Set<MVTTileId> queued, Throwable error) {
+    List<Result> theResults = new ArrayList<>();
+    for (MVTTileId tile : requested) {
+      if (!queued.contains(tile)) {
+        theResults.add(failed(tile, error));
+      }
+    }
+    return theResults;
+  }
+
+  /**
+   * Downloads and renders the metatile of the requested tiles. The tiles of
+   * the block are decoded one by one through the decoded cache and the
+   * single flight, so neighbouring metatiles and overzoomed tiles share
+   * them. The returned future always completes normally, with failed
+   * results for the tiles that can't be rendered.
+   */
+  private CompletableFuture<List<Result>> renderMetaTileAsync(List<MVTTileId> requested, Map<String, Set<String>> fieldsByLayer, Function<MVTTileId, MVTImageCache.Key> imageKeys, Pipeline pipeline) {
+    MVTMetaTile metaTile = MVTMetaTile.of(requested.get(0), this.metaTileColumns, this.metaTileRows);
+    String cacheId = pipeline.paramsTile.getDecodedCacheId(this.source.getId(), fieldsByLayer);
+    // With batch reads, the tiles that must be loaded are read together.
+    Map<MVTTileId, CompletableFuture<ByteBuffer>> blockReads = new LinkedHashMap<>();
+    Map<MVTTileId, CompletableFuture<Map<String, MVTDataSource>>> parts = new LinkedHashMap<>();
+    for (MVTTileId tile : metaTile.getTiles()) {
+      Supplier<CompletableFuture<ByteBuffer>> download;
+      if (this.source.hasBatchReads()) {
+        download = () -> blockReads.computeIfAbsent(tile, k -> new CompletableFuture<>());
+      } else {
+        download = () -> CompletableFuture.supplyAsync(() -> fetch(tile), pipeline.fetch);
+      }
+      parts.put(tile, decodeTileAsync(tile, cacheId, fieldsByLayer, pipeline, download));
+    }
+    if (!blockReads.isEmpty()) {
+      CompletableFuture
+              .supplyAsync(() -> fetch(new ArrayList<>(blockReads.keySet())), pipeline.fetch)
+              .whenComplete((data, error) -> {
+                for (Map.Entry<MVTTileId, CompletableFuture<ByteBuffer>> entry : blockReads.entrySet()) {
+                  if (error != null) {
+                    entry.getValue().completeExceptionally(error);
+                  } else {
+                    byte[] tileData = data.get(entry.getKey());
+                    entry.getValue().complete(tileData == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(tileData));
+                  }
+                }
+              });
+    }
+    CompletableFuture<Map<MVTTileId, Throwable>> decoded = CompletableFuture
+            .allOf(parts.values().toArray(new CompletableFuture[0]))
+            .handle((v, error) -> null) // Failed tiles are handled by mergeMetaTile
+            .thenApplyAsync(v -> mergeMetaTile(metaTile, parts), pipeline.decode);
+    return decoded
+            .thenApplyAsync(errors -> metaTile.render(this.styles, this.width, this.height, this.imagePool), pipeline.render)
+            .thenApplyAsync(images -> encodeMetaTile(requested, images, decoded.join(), imageKeys), pipeline.encode)
+            .exceptionally(error -> {
+              List<Result> theResults = new ArrayList<>();
+              for (MVTTileId tile : requested) {
+                theResults.add(failed(tile, error));
+              }
+              return theResults;
+            });
+  }
+
+  private Result failed(MVTTileId tile, Throwable error) {
+    Throwable cause = error;
+    while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    LOGGER.log(Level.FINE, "Can't render tile " + tile, cause);
+    return new Result(tile, null, null, cause);
+  }
+
+  private ByteBuffer fetch(MVTTileId tile) {
+    try {
+      long start = System.nanoTime();
+      ByteBuffer data = this.source.getTileBuffer(tile);
+      if (this.metrics != null) {
+        this.metrics.record(tile, MVTMetrics.Phase.FETCH, System.nanoTime() - start, data.remaining());
+      }
+      return data;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private Map<MVTTileId, byte[]> fetch(List<MVTTileId> tiles) {
+    try {
+      long start = System.nanoTime();
+      Map<MVTTileId, byte[]> data = this.source.getTiles(tiles);
+      if (this.metrics != null) {
+        long bytes = 0;
+        for (byte[] tileData : data.values()) {
+          bytes += tileData == null ? 0 : tileData.length;
+        }
+        this.metrics.record(tiles.get(0), MVTMetrics.Phase.FETCH, System.nanoTime() - start, bytes);
+      }
+      return data;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private Map<String, MVTDataSource> clipSourceLayers(MVTTileId tile, Map<String, MVTDataSource> ancestorLayers) {
+    long start = System.nanoTime();
+    Map<String, MVTDataSource> sourceLayers = MVTTile.clipSourceLayers(ancestorLayers, tile.getEnvelope());
+    if (this.metrics != null) {
+      this.metrics.record(tile, MVTMetrics.Phase.CONVERT, System.nanoTime() - start, 0);
+    }
+    return sourceLayers;
+  }
+
+  private Map<String, MVTDataSource> decodeTile(MVTTileId tile, String cacheId, ByteBuffer data, Map<String, Set<String>> fieldsByLayer) {
+    try {
+      MVTTile mvtTile = new MVTTile();
+      mvtTile.setParams(this.params);
+      mvtTile.setMetrics(this.metrics);
+      mvtTile.download(data, tile.getZ(), tile.getY(), tile.getX(), tile.getEnvelope(), fieldsByLayer);
+      Map<String, MVTDataSource> sourceLayers = new HashMap<>(mvtTile.getSourceLayers());
+      if (this.decodedCache != null) {
+        this.decodedCache.put(cacheId, tile, sourceLayers);
+      }
+      return sourceLayers;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private BufferedImage renderTile(MVTTileId tile, Map<String, MVTDataSource> sourceLayers) {
+    MVTTile mvtTile = new MVTTile();
+    mvtTile.setParams(this.params);
+    mvtTile.setMetrics(this.metrics);
+    mvtTile.setProfiler(this.profiler);
+    mvtTile.setSourceLayers(tile.getZ(), tile.getY(), tile.getX(), tile.getEnvelope(), sourceLayers);
+    BufferedImage image = this.imagePool.acquire(this.width, this.height);
+    try {
+      mvtTile.render(this.styles, image);
+    } catch (RuntimeException ex) {
+      this.imagePool.release(image);
+      throw ex;
+    }
+    return image;
+  }
+
+  /**
+   * Merges the decoded tiles of a metatile. The neighbours that couldn't be
+   * downloaded or decoded are left empty.
+   *
+   * @return The error of each tile that couldn't be decoded.
+   */
+  private Map<MVTTileId, Throwable> mergeMetaTile(MVTMetaTile metaTile, Map<MVTTileId, CompletableFuture<Map<String, MVTDataSource>>> parts) {
+    Map<MVTTileId, Map<String, MVTDataSource>> tiles = new HashMap<>();
+    Map<MVTTileId, Throwable> errors = new HashMap<>();
+    for (Map.Entry<MVTTileId, CompletableFuture<Map<String, MVTDataSource>>> entry : parts.entrySet()) {
+      try {
+        tiles.put(entry.getKey(), entry.getValue().join());
+      } catch (CompletionException ex) {
+        errors.put(entry.getKey(), ex);
+      }
+    }
+    metaTile.setParams(this.params);
+    metaTile.setMetrics(this.metrics);
+    metaTile.setProfiler(this.profiler);
+    metaTile.setSourceLayers(tiles);
+    return errors;
+  }
+
+  /**
+   * Encodes the requested tiles of a rendered metatile; the requested tiles
+   * that couldn't be downloaded fail.
+   */
+  private List<Result> encodeMetaTile(List<MVTTileId> requested, Map<MVTTileId, BufferedImage> images, Map<MVTTileId, Throwable> errors, Function<MVTTileId, MVTImageCache.Key> imageKeys) {
+    List<Result> theResults = new ArrayList<>();
+    for (MVTTileId tile : requested) {
+      Throwable error = errors.get(tile);
+      if (error == null) {
+        theResults.add(createResult(tile, images.remove(tile), imageKeys == null ? null : imageKeys.apply(tile)));
+      } else {
+        theResults.add(failed(tile, error));
+      }
+    }
+    // The neighbours that were not requested.
+    for (BufferedImage image : images.values()) {
+      this.imagePool.release(image);
+    }
+    return theResults;
+  }
+
+  /**
+   * Creates the result of a rendered tile. When the image is encoded it is
+   * given back to the image pool, otherwise it is handed to the consumer.
+   */
+  private Result createResult(MVTTileId tile, BufferedImage image, MVTImageCache.Key key) {
+    MVTImageEncoder theEncoder = this.encoder;
+    if (theEncoder == null) {
+      return new Result(tile, image, null, null);
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream(64 * 1024);
+    try {
+      long start = System.nanoTime();
+      long size = theEncoder.encode(image, os);
+      if (this.metrics != null) {
+        this.metrics.record(tile, MVTMetrics.Phase.ENCODE, System.nanoTime() - start, size);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      this.imagePool.release(image);
+    }
+    byte[] data = os.toByteArray();
+    // Don't store images rendered with a style that has been reloaded meanwhile.
+    if (key != null && key.getFingerprint().equals(this.styles.getFingerprint())) {
+      this.imageCache.put(key, data);
+    }
+    return new Result(tile, null, data, null);
+  }
+
+  /**
+   * The stages of a render and the render parameters they need.
+   */
+  private final class Pipeline {
+
+    private final MVTPipelineStage fetch;
+    private final MVTPipelineStage decode;
+    private final MVTPipelineStage render;
+    private final MVTPipelineStage encode;
+    private final MVTTile paramsTile;
+    private final int sourceMaxZoom;
+
+    private Pipeline(MVTTile paramsTile) {
+      this.paramsTile = paramsTile;
+      this.sourceMaxZoom = paramsTile.getSourceMaxZoom();
+      this.fetch = createStage("fetch", ioConcurrency);
+      this.decode = createStage("decode", decodeConcurrency);
+      this.render = createStage("render", concurrency);
+      this.encode = createStage("encode", encodeConcurrency);
+    }
+
+    private MVTPipelineStage createStage(String name, int threads) {
+      return new MVTPipelineStage(name, threads, queueCapacity > 0 ? queueCapacity : 2 * threads);
+    }
+
+    private List<MVTPipelineStage> getStages() {
+      return Collections.unmodifiableList(Arrays.asList(this.fetch, this.decode, this.render, this.encode));
+    }
+
+    private void shutdownNow() {
+      this.fetch.shutdownNow();
+      this.decode.shutdownNow();
+      this.render.shutdownNow();
+      this.encode.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the colors of an image to a palette for {@link MVTPngEncoder}.
+ * <p>
+ * Rendered basemap tiles usually have few colors, so the exact colors are
+ * used when there are not more than the size of the palette. Otherwise the
+ * colors are bucketed to 5 bits per color channel and 4 bits of alpha and
+ * the palette is built with a median cut over the buckets, weighted by the
+ * number of pixels. Not thread safe: each thread uses its own instance,
+ * whose buffers are reused between images.
+ *
+ * @author fdiaz
+ */
+final class MVTColorQuantizer {
+
+  private static final int EMPTY = -1;
+
+  // Open addressing map from color (or bucket) to entry.
+  private int[] keys = new int[1024];
+  private int[] entries = new int[1024];
+  private int size;
+
+  // Per entry: the color or bucket, pixel count and channel sums.
+  private int[] colors = new int[256];
+  private int[] counts = new int[256];
+  private long[] sums = new long[256 * 4];
+  private int[] paletteIndexes = new int[256];
+
+  private long[] sortBuffer = new long[256];
+
+  /**
+   * Builds the palette of an image.
+   *
+   * @param pixels The ARGB pixels, with fully transparent pixels as 0.
+   * @param count The number of pixels.
+   * @param maxColors The maximum number of colors of the palette, up to 256.
+   * @param indexes Receives the index in the palette of each pixel.
+   * @return The palette, as ARGB colors.
+   */
+  int[] quantize(int[] pixels, int count, int maxColors, byte[] indexes) {
+    int[] palette = exactPalette(pixels, count, maxColors, indexes);
+    if (palette != null) {
+      return palette;
+    }
+    clear();
+    for (int i = 0; i < count; i++) {
+      int argb = pixels[i];
+      int entry = entry(bucket(argb));
+      this.counts[entry]++;
+      this.sums[entry * 4] += argb >>> 24;
+      this.sums[entry * 4 + 1] += (argb >> 16) & 0xFF;
+      this.sums[entry * 4 + 2] += (argb >> 8) & 0xFF;
+      this.sums[entry * 4 + 3] += argb & 0xFF;
+    }
+    palette = medianCut(maxColors);
+    for (int i = 0; i < count; i++) {
+      indexes[i] = (byte) this.paletteIndexes[find(bucket(pixels[i]))];
+    }
+    return palette;
+  }
+
+  /**
+   * Returns the exact colors of the image as palette, or null if there are
+   * too many.
+   */
+  private int[] exactPalette(int[] pixels, int count, int maxColors, byte[] indexes) {
+    clear();
+    int last = 0;
+    int lastEntry = -1;
+    for (int i = 0; i < count; i++) {
+      int argb = pixels[i];
+      // Neighbour pixels usually have the same color.
+      if (argb != last || lastEntry < 0) {
+        lastEntry = entry(argb);
+        last = argb;
+        if (this.size > maxColors) {
+          return null;
+        }
+      }
+      indexes[i] = (byte) lastEntry;
+    }
+    return Arrays.copyOf(this.colors, this.size);
+  }
+
+  private int[] medianCut(int maxColors) {
+    // Each box is a range of entries in order, sorted by a channel when split.
+    int[] order = new int[this.size];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    int[] boxStart = new int[maxColors];
+    int[] boxEnd = new int[maxColors];
+    boxStart[0] = 0;
+    boxEnd[0] = this.size;
+    int boxes = 1;
+    while (boxes < maxColors) {
+      int best = -1;
+      int bestChannel = 0;
+      long bestScore = 0;
+      for (int box = 0; box < boxes; box++) {
+        if (boxEnd[box] - boxStart[box] < 2) {
+          continue;
+        }
+        long population = 0;
+        int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+          int entry = order[i];
+          population += this.counts[entry];
+          for (int c = 0; c < 4; c++) {
+            int v = channel(this.colors[entry], c);
+            min[c] = Math.min(min[c], v);
+            max[c] = Math.max(max[c], v);
+          }
+        }
+        for (int c = 0; c < 4; c++) {
+          long score = (long) (max[c] - min[c]) * population;
+          if (score > bestScore) {
+            bestScore = score;
+            best = box;
+            bestChannel = c;
+          }
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+      int split = split(order, boxStart[best], boxEnd[best], bestChannel);
+      boxStart[boxes] = split;
+      boxEnd[boxes] = boxEnd[best];
+      boxEnd[best] = split;
+      boxes++;
+    }
+    int[] palette = new int[boxes];
+    for (int box = 0; box < boxes; box++) {
+      long n = 0;
+      long a = 0;
+      long r = 0;
+      long g = 0;
+      long b = 0;
+      for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+        int entry = order[i];
+        n += this.counts[entry];
+        a += this.sums[entry * 4];
+        r += this.sums[entry * 4 + 1];
+        g += this.sums[entry * 4 + 2];
+        b += this.sums[entry * 4 + 3];
+        this.paletteIndexes[entry] = box;
+      }
+      palette[box] = (int) ((a + n / 2) / n) << 24
+              | (int) ((r + n / 2) / n) << 16
+              | (int) ((g + n / 2) / n) << 8
+              | (int) ((b + n / 2) / n);
+    }
+    return palette;
+  }
+
+  /**
+   * Sorts a box by a channel and returns the position of its weighted
+   * median, keeping both halves non empty.
+   */
+  private int split(int[] order, int start, int end, int channel) {
+    int n = end - start;
+    if (this.sortBuffer.length < n) {
+      this.sortBuffer = new long[Math.max(n, this.sortBuffer.length * 2)];
+    }
+    long population = 0;
+    for (int i = 0; i < n; i++) {
+      int entry = order[start + i];
+      this.sortBuffer[i] = ((long) channel(this.colors[entry], channel) << 32) | entry;
+      population += this.counts[entry];
+    }
+    Arrays.sort(this.sortBuffer, 0, n);
+    long half = population / 2;
+    long accumulated = 0;
+    int split = start + 1;
+    for (int i = 0; i < n; i++) {
+      int entry = (int) this.sortBuffer[i];
+      order[start + i] = entry;
+      accumulated += this.counts[entry];
+      if (accumulated <= half) {
+        split = start + i + 1;
+      }
+    }
+    return Math.max(start + 1, Math.min(end - 1, split));
+  }
+
+  private static int channel(int bucket, int channel) {
+    return (bucket >>> (24 - 8 * channel)) & 0xFF;
+  }
+
+  /**
+   * Returns the bucket of a color, keeping the bucket in the ARGB layout.
+   */
+  private static int bucket(int argb) {
+    return argb & 0xF0F8F8F8;
+  }
+
+  private void clear() {
+    Arrays.fill(this.keys, 0);
+    Arrays.fill(this.entries, EMPTY);
+    this.size = 0;
+  }
+
+  private int find(int key) {
+    int mask = this.keys.length - 1;
+    int slot = hash(key) & mask;
+    while (this.entries[slot] != EMPTY) {
+      if (this.keys[slot] == key) {
+        return this.entries[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return EMPTY;
+  }
+
+  private int entry(int key) {
+    int mask = this.keys.length - 1;
+    int slot = hash(key) & mask;
+    while (this.entries[slot] != EMPTY) {
+      if (this.keys[slot] == key) {
+        return this.entries[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    int entry = this.size++;
+    if (entry == this.colors.length) {
+      this.colors = Arrays.copyOf(this.colors, entry * 2);
+      this.counts = Arrays.copyOf(this.counts, entry * 2);
+      this.sums = Arrays.copyOf(this.sums, entry * 8);
+      this.paletteIndexes = Arrays.copyOf(this.paletteIndexes, entry * 2);
+    }
+    this.colors[entry] = key;
+    this.counts[entry] = 0;
+    Arrays.fill(this.sums, entry * 4, entry * 4 + 4, 0);
+    this.keys[slot] = key;
+    this.entries[slot] = entry;
+    if (this.size * 2 > this.keys.length) {
+      rehash();
+    }
+    return entry;
+  }
+
+  private void rehash() {
+    int[] oldKeys = this.keys;
+    int[] oldEntries = this.entries;
+    this.keys = new int[oldKeys.length * 2];
+    this.entries = new int[oldKeys.length * 2];
+    Arrays.fill(this.entries, EMPTY);
+    int mask = this.keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldEntries[i] != EMPTY) {
+        int slot = hash(oldKeys[i]) & mask;
+        while (this.entries[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = oldKeys[i];
+        this.entries[slot] = oldEntries[i];
+      }
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.gvsig.mvtrenderer.lib.impl.MVTTile.MVTDataSource;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * In-memory LRU cache of decoded tiles (the source layers of a
+ * {@link MVTTile}), shared by all the tiles rendered by a process.
+ * <p>
+ * The cache is bounded by the estimated heap footprint of the cached
+ * features instead of by the number of tiles, so a few dense urban tiles
+ * can't push out hundreds of sparse ones unnoticed. The entries are keyed by
+ * z/x/y and by an identifier of the tile source and the options the tile was
+ * decoded with, see
+ * {@link MVTTile#getDecodedCacheId(java.lang.String, java.util.Map)}, so
+ * the tiles decoded for other styles or parameters are kept apart.
+ *
+ * @author fdiaz
+ */
+public class MVTDecodedTileCache {
+
+  // Rough sizes of the objects created for each feature, in bytes.
+  private static final int COORDINATE_SIZE = 40;
+  private static final int GEOMETRY_SIZE = 80;
+  private static final int FEATURE_SIZE = 96;
+  private static final int ATTRIBUTE_SIZE = 16;
+  private static final int STRING_SIZE = 40;
+
+  private static final class Value {
+
+    private final Map<String, MVTDataSource> sourceLayers;
+    private final long weight;
+
+    private Value(Map<String, MVTDataSource> sourceLayers, long weight) {
+      this.sourceLayers = sourceLayers;
+      this.weight = weight;
+    }
+  }
+
+  private final long maxWeight;
+  private final LinkedHashMap<MVTTileKey, Value> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long weight;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxWeight The maximum estimated size of the cached tiles, in
+   * bytes.
+   */
+  public MVTDecodedTileCache(long maxWeight) {
+    this.maxWeight = maxWeight;
+    this.weight = 0;
+  }
+
+  /**
+   * Returns the decoded source layers of a tile.
+   *
+   * @param cacheId The identifier of the tile source and decode options.
+   * @param tile The tile.
+   * @return The source layers keyed by name, or null if the tile isn't
+   * cached.
+   */
+  public Map<String, MVTDataSource> get(String cacheId, MVTTileId tile) {
+    Value value;
+    synchronized (this) {
+      value = this.entries.get(new MVTTileKey(cacheId, tile));
+    }
+    if (value == null) {
+      this.misses.incrementAndGet();
+      return null;
+    }
+    this.hits.incrementAndGet();
+    return value.sourceLayers;
+  }
+
+  /**
+   * Adds the decoded source layers of a tile, evicting the least recently
+   * used tiles if needed. Tiles bigger than the whole cache are not stored.
+   *
+   * @param cacheId The identifier of the tile source and decode options.
+   * @param tile The tile.
+   * @param sourceLayers The source layers keyed by name. They must not be
+   * modified after this call.
+   */
+  public void put(String cacheId, MVTTileId tile, Map<String, MVTDataSource> sourceLayers) {
+    long entryWeight = estimateWeight(sourceLayers);
+    if (entryWeight > this.maxWeight) {
+      return;
+    }
+    Value value = new Value(Collections.unmodifiableMap(sourceLayers), entryWeight);
+    synchronized (this) {
+      Value previous = this.entries.put(new MVTTileKey(cacheId, tile), value);
+      if (previous != null) {
+        this.weight -= previous.weight;
+      }
+      this.weight += entryWeight;
+      Iterator<Value> it = this.entries.values().iterator();
+      while (this.weight > this.maxWeight && it.hasNext()) {
+        Value eldest = it.next();
+        it.remove();
+        this.weight -= eldest.weight;
+        this.evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes all the tiles from the cache. The counters are not reset.
+   */
+  public synchronized void clear() {
+    this.entries.clear();
+    this.weight = 0;
+  }
+
+  public synchronized int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Returns the estimated size of the cached tiles.
+   *
+   * @return The size in bytes.
+   */
+  public synchronized long getWeight() {
+    return this.weight;
+  }
+
+  public long getMaxWeight() {
+    return this.maxWeight;
+  }
+
+  public long getHitCount() {
+    return this.hits.get();
+  }
+
+  public long getMissCount() {
+    return this.misses.get();
+  }
+
+  public long getEvictionCount() {
+    return this.evictions.get();
+  }
+
+  /**
+   * Estimates the heap footprint of decoded source layers.
+   *
+   * @param sourceLayers The source layers.
+   * @return The estimated size in bytes.
+   */
+  public static long estimateWeight(Map<String, MVTDataSource> sourceLayers) {
+    long size = 0;
+    for (MVTDataSource dataSource : sourceLayers.values()) {
+      if (dataSource.features == null) {
+        continue;
+      }
+      if (dataSource.features instanceof MVTFeatureCollection collection) {
+        size += collection.estimateSize();
+        continue;
+      }
+      try (SimpleFeatureIterator it = dataSource.features.features()) {
+        while (it.hasNext()) {
+          SimpleFeature f = it.next();
+          size += FEATURE_SIZE;
+          for (Object value : f.getAttributes()) {
+            size += ATTRIBUTE_SIZE;
+            if (value instanceof Geometry geom) {
+              size += GEOMETRY_SIZE * geom.getNumGeometries() + (long) COORDINATE_SIZE * geom.getNumPoints();
+            } else if (value instanceof String s) {
+              size += STRING_SIZE + s.length();
+            }
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "MVTDecodedTileCache[tiles=" + size()
+            + ", weight=" + getWeight() + "/" + this.maxWeight
+            + ", hits=" + getHitCount()
+            + ", misses=" + getMissCount()
+            + ", evictions=" + getEvictionCount() + "]";
+  }
+}
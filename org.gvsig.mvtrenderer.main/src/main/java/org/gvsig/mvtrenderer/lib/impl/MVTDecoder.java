@@ -0,0 +1,705 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+
+/**
+ * Decodes Mapbox Vector Tiles (protobuf, optionally gzipped) straight into
+ * {@link MVTFeatureCollection}s.
+ * <p>
+ * Unlike going through {@code MvtReader} and an {@code AffineTransformation},
+ * the geometry commands are read once and the coordinates are written
+ * directly in the coordinates of the tile envelope, in packed coordinate
+ * sequences. The values of the layer value table are only decoded when a
+ * feature uses them for one of the decoded attributes.
+ * <p>
+ * Polygon rings are classified as in the MVT 2.1 specification: rings with
+ * positive area in tile coordinates are exterior rings, the others are holes
+ * of the previous exterior ring.
+ * <p>
+ * A decoder is not thread safe: besides its options, it keeps the figures
+ * of the last uncompressed tile ({@link #getUncompressTime()}). Use one per
+ * thread, or one per tile as {@link MVTTile} does.
+ *
+ * @author fdiaz
+ */
+public class MVTDecoder {
+
+  private static final int DEFAULT_EXTENT = 4096;
+
+  private static final int CMD_MOVE_TO = 1;
+  private static final int CMD_LINE_TO = 2;
+  private static final int CMD_CLOSE_PATH = 7;
+
+  private static final int GEOM_POINT = 1;
+  private static final int GEOM_LINESTRING = 2;
+  private static final int GEOM_POLYGON = 3;
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+
+  private static final GeometryFactory DEFAULT_GEOMETRY_FACTORY = new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+  /**
+   * Reads protobuf fields from a region of a buffer, with absolute gets so
+   * the buffer itself is never modified.
+   */
+  private static final class ProtobufReader {
+
+    private final ByteBuffer buffer;
+    private int pos;
+    private final int end;
+
+    private ProtobufReader(ByteBuffer buffer, int start, int end) {
+      this.buffer = buffer;
+      this.pos = start;
+      this.end = end;
+    }
+
+    private boolean hasMore() {
+      return this.pos < this.end;
+    }
+
+    private long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (this.pos >= this.end) {
+          throw new IOException("Truncated varint");
+        }
+        byte b = this.buffer.get(this.pos++);
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads a varint that must fit in a non negative int, like the lengths
+     * of the fields.
+     */
+    private int readLength() throws IOException {
+      long value = readVarint();
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IOException("Invalid field length " + Long.toUnsignedString(value));
+      }
+      return (int) value;
+    }
+
+    private int readInt() throws IOException {
+      return (int) readVarint();
+    }
+
+    /**
+     * Reads the length of a length delimited field and returns the end of
+     * its content; the reader is left at the start of the content.
+     */
+    private int readEnd() throws IOException {
+      int length = readLength();
+      if (length > this.end - this.pos) {
+        throw new IOException("Truncated field");
+      }
+      return this.pos + length;
+    }
+
+    private long readFixed(int bytes) throws IOException {
+      if (bytes > this.end - this.pos) {
+        throw new IOException("Truncated field");
+      }
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value |= (long) (this.buffer.get(this.pos++) & 0xFF) << (8 * i);
+      }
+      return value;
+    }
+
+    private String readString() throws IOException {
+      int contentEnd = readEnd();
+      int length = contentEnd - this.pos;
+      String s;
+      if (this.buffer.hasArray()) {
+        s = new String(this.buffer.array(), this.buffer.arrayOffset() + this.pos, length, StandardCharsets.UTF_8);
+      } else {
+        byte[] bytes = new byte[length];
+        this.buffer.get(this.pos, bytes);
+        s = new String(bytes, StandardCharsets.UTF_8);
+      }
+      this.pos = contentEnd;
+      return s;
+    }
+
+    private void skip(int wireType) throws IOException {
+      switch (wireType) {
+        case WIRE_VARINT:
+          readVarint();
+          break;
+        case WIRE_FIXED64:
+          readFixed(8);
+          break;
+        case WIRE_LENGTH_DELIMITED:
+          this.pos = readEnd();
+          break;
+        case WIRE_FIXED32:
+          readFixed(4);
+          break;
+        default:
+          throw new IOException("Unsupported wire type " + wireType);
+      }
+    }
+  }
+
+  /**
+   * Growable list of ints, used for the regions of the buffer of each
+   * feature and value and for the coordinates of a geometry part.
+   */
+  private static final class IntList {
+
+    private int[] values = new int[32];
+    private int size = 0;
+
+    private void add(int value) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf(this.values, this.size * 2);
+      }
+      this.values[this.size++] = value;
+    }
+
+    private int get(int index) {
+      return this.values[index];
+    }
+
+    private int size() {
+      return this.size;
+    }
+
+    private void clear() {
+      this.size = 0;
+    }
+  }
+
+  private final GeometryFactory geometryFactory;
+  private CoordinateReferenceSystem crs;
+  private boolean onlyRequestedFields;
+  private double clipBuffer;
+  private long uncompressTime;
+  private int uncompressedSize;
+
+  /**
+   * Creates a decoder whose geometries use packed coordinate sequences.
+   */
+  public MVTDecoder() {
+    this(DEFAULT_GEOMETRY_FACTORY);
+  }
+
+  public MVTDecoder(GeometryFactory geometryFactory) {
+    this.geometryFactory = geometryFactory;
+    this.crs = null;
+    this.onlyRequestedFields = false;
+    this.clipBuffer = -1;
+  }
+
+  /**
+   * Sets the CRS assigned to the schema of the decoded layers.
+   *
+   * @param crs The CRS of the tile envelope, or null.
+   */
+  public void setCRS(CoordinateReferenceSystem crs) {
+    this.crs = crs;
+  }
+
+  public CoordinateReferenceSystem getCRS() {
+    return crs;
+  }
+
+  /**
+   * Sets whether only the requested attributes are decoded. By default all
+   * the attributes of the tile are decoded and the requested ones that the
+   * tile doesn't have are added empty. With this option the other
+   * attributes are ignored, and so are the layers without requested fields.
+   *
+   * @param onlyRequestedFields true to decode only the requested fields.
+   */
+  public void setOnlyRequestedFields(boolean onlyRequestedFields) {
+    this.onlyRequestedFields = onlyRequestedFields;
+  }
+
+  public boolean isOnlyRequestedFields() {
+    return onlyRequestedFields;
+  }
+
+  /**
+   * Sets the margin around the tile envelope to which the geometries are
+   * clipped while decoding. The tiles usually carry the features some way
+   * beyond their edges; clipping them to what can be seen plus a margin
+   * for the strokes and labels reduces the vertices to transform and
+   * paint. Polygons are kept valid and lines leaving and entering the
+   * envelope are split in several parts. Points are not clipped. By
+   * default the geometries are not clipped.
+   *
+   * @param clipBuffer The margin as a fraction of the tile size, or a
+   * negative value to not clip the geometries.
+   */
+  public void setClipBuffer(double clipBuffer) {
+    this.clipBuffer = clipBuffer;
+  }
+
+  public double getClipBuffer() {
+    return clipBuffer;
+  }
+
+  /**
+   * Returns the time spent uncompressing the last decoded tile, included in
+   * the time of {@link #decode(ByteBuffer, Envelope, Map)}.
+   *
+   * @return The time in nanoseconds, 0 if the tile wasn't gzipped.
+   */
+  public long getUncompressTime() {
+    return uncompressTime;
+  }
+
+  /**
+   * Returns the uncompressed size of the last decoded tile.
+   *
+   * @return The size in bytes, 0 if the tile wasn't gzipped.
+   */
+  public int getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  /**
+   * Returns the tile uncompressed if it is gzipped, or the same buffer.
+   *
+   * @param data The tile.
+   * @return The uncompressed tile.
+   * @throws IOException If the gzip stream is corrupt.
+   */
+  public static ByteBuffer uncompress(ByteBuffer data) throws IOException {
+    int start = data.position();
+    if (data.remaining() < 2 || data.get(start) != (byte) 0x1f || data.get(start + 1) != (byte) 0x8b) {
+      return data;
+    }
+    InputStream is;
+    if (data.hasArray()) {
+      is = new ByteArrayInputStream(data.array(), data.arrayOffset() + start, data.remaining());
+    } else {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(start, bytes);
+      is = new ByteArrayInputStream(bytes);
+    }
+    try (InputStream gzip = new GZIPInputStream(is)) {
+      return ByteBuffer.wrap(gzip.readAllBytes());
+    }
+  }
+
+  /**
+   * Decodes a tile.
+   *
+   * @param data The tile, between the position and the limit of the
+   * buffer. The buffer is not modified.
+   * @param envelope The envelope of the tile, in the coordinates of the
+   * resulting geometries.
+   * @param fieldsByLayer The fields to decode for each layer, or null.
+   * @return The features of each layer keyed by name, in the order of the
+   * tile.
+   * @throws IOException If the tile is corrupt.
+   */
+  public Map<String, MVTFeatureCollection> decode(ByteBuffer data, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    long start = System.nanoTime();
+    ByteBuffer buffer = uncompress(data);
+    if (buffer == data) {
+      this.uncompressTime = 0;
+      this.uncompressedSize = 0;
+    } else {
+      this.uncompressTime = System.nanoTime() - start;
+      this.uncompressedSize = buffer.remaining();
+    }
+    Map<String, MVTFeatureCollection> layers = new LinkedHashMap<>();
+    ProtobufReader reader = new ProtobufReader(buffer, buffer.position(), buffer.limit());
+    while (reader.hasMore()) {
+      int key = reader.readInt();
+      if (key >>> 3 == 3 && (key & 7) == WIRE_LENGTH_DELIMITED) {
+        int end = reader.readEnd();
+        decodeLayer(buffer, reader.pos, end, envelope, fieldsByLayer, layers);
+        reader.pos = end;
+      } else {
+        reader.skip(key & 7);
+      }
+    }
+    return layers;
+  }
+
+  private void decodeLayer(ByteBuffer buffer, int start, int end, Envelope envelope, Map<String, Set<String>> fieldsByLayer, Map<String, MVTFeatureCollection> layers) throws IOException {
+    String name = null;
+    int extent = DEFAULT_EXTENT;
+    List<String> keys = new ArrayList<>();
+    IntList values = new IntList();
+    IntList features = new IntList();
+
+    // First pass: the fields of a layer can come in any order, and the
+    // features need the key and value tables.
+    ProtobufReader reader = new ProtobufReader(buffer, start, end);
+    while (reader.hasMore()) {
+      int key = reader.readInt();
+      int field = key >>> 3;
+      int wireType = key & 7;
+      if (field == 1 && wireType == WIRE_LENGTH_DELIMITED) {
+        name = reader.readString();
+      } else if (field == 2 && wireType == WIRE_LENGTH_DELIMITED) {
+        int featureEnd = reader.readEnd();
+        features.add(reader.pos);
+        features.add(featureEnd);
+        reader.pos = featureEnd;
+      } else if (field == 3 && wireType == WIRE_LENGTH_DELIMITED) {
+        keys.add(reader.readString());
+      } else if (field == 4 && wireType == WIRE_LENGTH_DELIMITED) {
+        int valueEnd = reader.readEnd();
+        values.add(reader.pos);
+        values.add(valueEnd);
+        reader.pos = valueEnd;
+      } else if (field == 5 && wireType == WIRE_VARINT) {
+        extent = reader.readInt();
+      } else {
+        reader.skip(wireType);
+      }
+    }
+    if (name == null || extent <= 0) {
+      throw new IOException("Invalid layer, missing name or extent");
+    }
+    Set<String> requested = fieldsByLayer == null ? null : fieldsByLayer.get(name);
+    if (this.onlyRequestedFields && fieldsByLayer != null && requested == null) {
+      return;
+    }
+
+    Set<String> attributeNames = new LinkedHashSet<>();
+    if (!this.onlyRequestedFields || requested == null) {
+      attributeNames.addAll(keys);
+    }
+    if (requested != null) {
+      attributeNames.addAll(requested);
+    }
+    attributeNames.remove(MVTFeatureCollection.GEOMETRY);
+    SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+    tb.setName(name);
+    tb.add(MVTFeatureCollection.GEOMETRY, Geometry.class);
+    for (String attr : attributeNames) {
+      tb.add(attr, Object.class);
+    }
+    if (this.crs != null) {
+      tb.setCRS(this.crs);
+    }
+    SimpleFeatureType type = tb.buildFeatureType();
+
+    int[] attributeOfKey = new int[keys.size()];
+    for (int i = 0; i < attributeOfKey.length; i++) {
+      attributeOfKey[i] = attributeNames.contains(keys.get(i)) ? type.indexOf(keys.get(i)) : -1;
+    }
+    // Index in the builder dictionary of each value, decoded on first use
+    int[] internedValues = new int[values.size() / 2];
+    Arrays.fill(internedValues, -1);
+
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(type);
+    Transform transform = new Transform(envelope, extent);
+    GeometryClipper clipper = null;
+    if (this.clipBuffer >= 0) {
+      Envelope clipEnvelope = new Envelope(envelope);
+      clipEnvelope.expandBy(envelope.getWidth() * this.clipBuffer, envelope.getHeight() * this.clipBuffer);
+      clipper = new GeometryClipper(clipEnvelope);
+    }
+    IntList part = new IntList();
+    for (int f = 0; f < features.size(); f += 2) {
+      int geometryType = 0;
+      int tagsStart = -1;
+      int tagsEnd = -1;
+      int geometryStart = -1;
+      int geometryEnd = -1;
+      long id = 0;
+      boolean hasId = false;
+      ProtobufReader featureReader = new ProtobufReader(buffer, features.get(f), features.get(f + 1));
+      while (featureReader.hasMore()) {
+        int key = featureReader.readInt();
+        int field = key >>> 3;
+        int wireType = key & 7;
+        if (field == 1 && wireType == WIRE_VARINT) {
+          id = featureReader.readVarint();
+          hasId = true;
+        } else if (field == 2 && wireType == WIRE_LENGTH_DELIMITED) {
+          tagsEnd = featureReader.readEnd();
+          tagsStart = featureReader.pos;
+          featureReader.pos = tagsEnd;
+        } else if (field == 3 && wireType == WIRE_VARINT) {
+          geometryType = featureReader.readInt();
+        } else if (field == 4 && wireType == WIRE_LENGTH_DELIMITED) {
+          geometryEnd = featureReader.readEnd();
+          geometryStart = featureReader.pos;
+          featureReader.pos = geometryEnd;
+        } else {
+          featureReader.skip(wireType);
+        }
+      }
+      if (geometryStart < 0) {
+        continue;
+      }
+      Geometry geometry = readGeometry(new ProtobufReader(buffer, geometryStart, geometryEnd), geometryType, transform, part);
+      if (geometry != null && clipper != null) {
+        geometry = MVTFeatureCollection.clip(clipper, geometry);
+      }
+      if (geometry == null) {
+        continue;
+      }
+      builder.add(geometry);
+      if (hasId) {
+        builder.setId(id);
+      }
+      if (tagsStart < 0) {
+        continue;
+      }
+      ProtobufReader tags = new ProtobufReader(buffer, tagsStart, tagsEnd);
+      while (tags.hasMore()) {
+        int keyIndex = tags.readInt();
+        int valueIndex = tags.readInt();
+        if (keyIndex < 0 || keyIndex >= attributeOfKey.length || attributeOfKey[keyIndex] < 0) {
+          continue;
+        }
+        if (valueIndex < 0 || valueIndex >= internedValues.length) {
+          throw new IOException("Invalid value index " + valueIndex + " in layer " + name);
+        }
+        int interned = internedValues[valueIndex];
+        if (interned < 0) {
+          Object value = readValue(buffer, values.get(2 * valueIndex), values.get(2 * valueIndex + 1));
+          if (value == null) {
+            continue;
+          }
+          interned = builder.intern(value);
+          internedValues[valueIndex] = interned;
+        }
+        builder.setValueIndex(attributeOfKey[keyIndex], interned);
+      }
+    }
+    layers.put(name, builder.build());
+  }
+
+  private static Object readValue(ByteBuffer buffer, int start, int end) throws IOException {
+    ProtobufReader reader = new ProtobufReader(buffer, start, end);
+    Object value = null;
+    while (reader.hasMore()) {
+      int key = reader.readInt();
+      switch (key) {
+        case (1 << 3) | WIRE_LENGTH_DELIMITED:
+          value = reader.readString();
+          break;
+        case (2 << 3) | WIRE_FIXED32:
+          value = Float.intBitsToFloat((int) reader.readFixed(4));
+          break;
+        case (3 << 3) | WIRE_FIXED64:
+          value = Double.longBitsToDouble(reader.readFixed(8));
+          break;
+        case (4 << 3) | WIRE_VARINT:
+        case (5 << 3) | WIRE_VARINT:
+          value = reader.readVarint();
+          break;
+        case (6 << 3) | WIRE_VARINT:
+          long zigzag = reader.readVarint();
+          value = (zigzag >>> 1) ^ -(zigzag & 1);
+          break;
+        case (7 << 3) | WIRE_VARINT:
+          value = reader.readVarint() != 0;
+          break;
+        default:
+          reader.skip(key & 7);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Maps tile coordinates (0..extent, y down) to the envelope.
+   */
+  private static final class Transform {
+
+    private final double minX;
+    private final double maxY;
+    private final double scaleX;
+    private final double scaleY;
+
+    private Transform(Envelope envelope, int extent) {
+      this.minX = envelope.getMinX();
+      this.maxY = envelope.getMaxY();
+      this.scaleX = envelope.getWidth() / extent;
+      this.scaleY = envelope.getHeight() / extent;
+    }
+
+    /**
+     * Creates the packed sequence of the coordinates of a part, optionally
+     * closing it with the first point.
+     */
+    private PackedCoordinateSequence.Double toSequence(IntList part, boolean close) {
+      int points = part.size() / 2;
+      double[] coords = new double[(close ? points + 1 : points) * 2];
+      for (int i = 0; i < points; i++) {
+        coords[2 * i] = this.minX + part.get(2 * i) * this.scaleX;
+        coords[2 * i + 1] = this.maxY - part.get(2 * i + 1) * this.scaleY;
+      }
+      if (close) {
+        coords[2 * points] = coords[0];
+        coords[2 * points + 1] = coords[1];
+      }
+      return new PackedCoordinateSequence.Double(coords, 2, 0);
+    }
+  }
+
+  private Geometry readGeometry(ProtobufReader reader, int geometryType, Transform transform, IntList part) throws IOException {
+    List<Point> points = new ArrayList<>();
+    List<LineString> lines = new ArrayList<>();
+    List<Polygon> polygons = new ArrayList<>();
+    LinearRing shell = null;
+    List<LinearRing> holes = new ArrayList<>();
+
+    int x = 0;
+    int y = 0;
+    part.clear();
+    while (reader.hasMore()) {
+      int command = reader.readInt();
+      int id = command & 7;
+      int count = command >>> 3;
+      if (id == CMD_MOVE_TO || id == CMD_LINE_TO) {
+        if (id == CMD_MOVE_TO && geometryType == GEOM_LINESTRING) {
+          addLine(lines, part, transform);
+        }
+        for (int i = 0; i < count; i++) {
+          int dx = reader.readInt();
+          int dy = reader.readInt();
+          x += (dx >>> 1) ^ -(dx & 1);
+          y += (dy >>> 1) ^ -(dy & 1);
+          if (geometryType == GEOM_POINT) {
+            part.clear();
+            part.add(x);
+            part.add(y);
+            points.add(this.geometryFactory.createPoint(transform.toSequence(part, false)));
+          } else {
+            if (id == CMD_MOVE_TO) {
+              part.clear();
+            }
+            part.add(x);
+            part.add(y);
+          }
+        }
+      } else if (id == CMD_CLOSE_PATH) {
+        if (geometryType != GEOM_POLYGON || part.size() < 6) {
+          part.clear();
+          continue;
+        }
+        long area = signedArea(part);
+        if (area != 0) {
+          LinearRing ring = this.geometryFactory.createLinearRing(transform.toSequence(part, true));
+          if (area > 0) {
+            if (shell != null) {
+              polygons.add(this.geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[0])));
+              holes.clear();
+            }
+            shell = ring;
+          } else if (shell != null) {
+            holes.add(ring);
+          }
+        }
+        part.clear();
+      } else {
+        throw new IOException("Unsupported geometry command " + id);
+      }
+    }
+
+    switch (geometryType) {
+      case GEOM_POINT:
+        if (points.isEmpty()) {
+          return null;
+        }
+        return points.size() == 1 ? points.get(0) : this.geometryFactory.createMultiPoint(points.toArray(new Point[0]));
+      case GEOM_LINESTRING:
+        addLine(lines, part, transform);
+        if (lines.isEmpty()) {
+          return null;
+        }
+        return lines.size() == 1 ? lines.get(0) : this.geometryFactory.createMultiLineString(lines.toArray(new LineString[0]));
+      case GEOM_POLYGON:
+        if (shell != null) {
+          polygons.add(this.geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[0])));
+        }
+        if (polygons.isEmpty()) {
+          return null;
+        }
+        return polygons.size() == 1 ? polygons.get(0) : this.geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+      default:
+        return null;
+    }
+  }
+
+  private void addLine(List<LineString> lines, IntList part, Transform transform) {
+    if (part.size() >= 4) {
+      lines.add(this.geometryFactory.createLineString(transform.toSequence(part, false)));
+    }
+    part.clear();
+  }
+
+  /**
+   * Returns twice the signed area of a ring in tile coordinates. Positive
+   * means exterior ring.
+   */
+  private static long signedArea(IntList ring) {
+    long area = 0;
+    int n = ring.size() / 2;
+    for (int i = 0; i < n; i++) {
+      int j = (i + 1) % n;
+      area += (long) ring.get(2 * i) * ring.get(2 * j + 1) - (long) ring.get(2 * j) * ring.get(2 * i + 1);
+    }
+    return area;
+  }
+}
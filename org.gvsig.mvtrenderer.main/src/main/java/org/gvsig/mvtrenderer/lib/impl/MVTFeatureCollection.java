@@ -0,0 +1,769 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.Puntal;
+
+/**
+ * Read only feature collection of a decoded tile layer that stores the
+ * attributes by columns instead of one {@link SimpleFeature} per geometry.
+ * <p>
+ * As in the value table of a MVT layer, the distinct attribute values are
+ * kept once in a dictionary and the columns hold small indexes into it.
+ * Columns whose values are all longs, integers, doubles or floats are kept
+ * in primitive arrays instead. The {@link SimpleFeature}s are created when
+ * the collection is iterated and are not retained, so most of them are
+ * short lived garbage instead of long lived heap.
+ * <p>
+ * The geometry attribute must be called {@link #GEOMETRY}. The ids that the
+ * tile gives to the features are kept apart from the attributes, see
+ * {@link #getId(int)}. Collections are created with a {@link Builder};
+ * {@link #subset(int[])} and {@link #clip(Envelope)} return views over some
+ * of the rows of a collection that share its columns.
+ *
+ * @author fdiaz
+ */
+public class MVTFeatureCollection extends AbstractFeatureCollection {
+
+  /**
+   * The name of the geometry attribute.
+   */
+  public static final String GEOMETRY = "geometry";
+
+  private static final Column NULL_COLUMN = new Column() {
+    @Override
+    Object get(int row) {
+      return null;
+    }
+
+    @Override
+    long estimateSize() {
+      return 0;
+    }
+  };
+
+  private abstract static class Column {
+
+    abstract Object get(int row);
+
+    abstract long estimateSize();
+  }
+
+  /**
+   * Indexes into the dictionary, in the narrowest array that can hold them.
+   * The index 0 is null, so the values are shifted by one.
+   */
+  private static final class DictionaryColumn extends Column {
+
+    private final Object[] dictionary;
+    private final byte[] bytes;
+    private final short[] shorts;
+    private final int[] ints;
+
+    private DictionaryColumn(Object[] dictionary, int[] indexes, int size) {
+      this.dictionary = dictionary;
+      if (dictionary.length < 0xFF) {
+        this.bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+          this.bytes[i] = (byte) indexes[i];
+        }
+        this.shorts = null;
+        this.ints = null;
+      } else if (dictionary.length < 0xFFFF) {
+        this.bytes = null;
+        this.shorts = new short[size];
+        for (int i = 0; i < size; i++) {
+          this.shorts[i] = (short) indexes[i];
+        }
+        this.ints = null;
+      } else {
+        this.bytes = null;
+        this.shorts = null;
+        this.ints = Arrays.copyOf(indexes, size);
+      }
+    }
+
+    @Override
+    Object get(int row) {
+      int index;
+      if (this.bytes != null) {
+        index = Byte.toUnsignedInt(this.bytes[row]);
+      } else if (this.shorts != null) {
+        index = Short.toUnsignedInt(this.shorts[row]);
+      } else {
+        index = this.ints[row];
+      }
+      return index == 0 ? null : this.dictionary[index - 1];
+    }
+
+    @Override
+    long estimateSize() {
+      if (this.bytes != null) {
+        return 16 + this.bytes.length;
+      } else if (this.shorts != null) {
+        return 16 + 2L * this.shorts.length;
+      }
+      return 16 + 4L * this.ints.length;
+    }
+  }
+
+  private static final class LongColumn extends Column {
+
+    private final long[] values;
+    private final BitSet present;
+    private final boolean integers;
+
+    private LongColumn(long[] values, BitSet present, boolean integers) {
+      this.values = values;
+      this.present = present;
+      this.integers = integers;
+    }
+
+    @Override
+    Object get(int row) {
+      if (!this.present.get(row)) {
+        return null;
+      }
+      return this.integers ? (Object) (int) this.values[row] : (Object) this.values[row];
+    }
+
+    @Override
+    long estimateSize() {
+      return 32 + 8L * this.values.length + this.present.size() / 8;
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+
+    private final double[] values;
+    private final BitSet present;
+    private final boolean floats;
+
+    private DoubleColumn(double[] values, BitSet present, boolean floats) {
+      this.values = values;
+      this.present = present;
+      this.floats = floats;
+    }
+
+    @Override
+    Object get(int row) {
+      if (!this.present.get(row)) {
+        return null;
+      }
+      return this.floats ? (Object) (float) this.values[row] : (Object) this.values[row];
+    }
+
+    @Override
+    long estimateSize() {
+      return 32 + 8L * this.values.length + this.present.size() / 8;
+    }
+  }
+
+  /**
+   * Builds a collection feature by feature: {@link #add(Geometry)} starts a
+   * feature and the set methods fill its attributes. Not thread safe.
+   */
+  public static class Builder {
+
+    private final SimpleFeatureType type;
+    private final int geometryIndex;
+    private final Map<Object, Integer> valueIndexes = new HashMap<>();
+    private final List<Object> values = new ArrayList<>();
+    private final int[][] columns;
+    private Geometry[] geometries;
+    private long[] ids;
+    private BitSet hasIds;
+    private int size;
+
+    /**
+     * Creates a builder.
+     *
+     * @param type The schema of the collection, with a {@link #GEOMETRY}
+     * attribute.
+     */
+    public Builder(SimpleFeatureType type) {
+      this.type = type;
+      this.geometryIndex = type.indexOf(GEOMETRY);
+      this.columns = new int[type.getAttributeCount()][];
+      this.geometries = new Geometry[16];
+      this.size = 0;
+    }
+
+    public SimpleFeatureType getType() {
+      return type;
+    }
+
+    /**
+     * Starts a new feature.
+     *
+     * @param geometry The geometry of the feature.
+     */
+    public void add(Geometry geometry) {
+      if (this.size == this.geometries.length) {
+        this.geometries = Arrays.copyOf(this.geometries, this.size * 2);
+      }
+      this.geometries[this.size++] = geometry;
+    }
+
+    /**
+     * Returns the index of a value in the dictionary of the collection,
+     * adding it if needed. Callers that see the same value many times, like
+     * a decoder walking the value table of a layer, can intern it once and
+     * use {@link #setValueIndex(int, int)}.
+     *
+     * @param value A non null value.
+     * @return The index of the value.
+     */
+    public int intern(Object value) {
+      Integer index = this.valueIndexes.get(value);
+      if (index == null) {
+        index = this.values.size();
+        this.values.add(value);
+        this.valueIndexes.put(value, index);
+      }
+      return index;
+    }
+
+    /**
+     * Sets an attribute of the current feature.
+     *
+     * @param attribute The index of the attribute in the schema.
+     * @param value The value, or null.
+     */
+    public void set(int attribute, Object value) {
+      if (value != null) {
+        setValueIndex(attribute, intern(value));
+      }
+    }
+
+    /**
+     * Sets an attribute of the current feature if the schema has it.
+     *
+     * @param attribute The name of the attribute.
+     * @param value The value, or null.
+     */
+    public void set(String attribute, Object value) {
+      int index = this.type.indexOf(attribute);
+      if (index >= 0) {
+        set(index, value);
+      }
+    }
+
+    /**
+     * Sets an attribute of the current feature to a value returned by
+     * {@link #intern(Object)}.
+     *
+     * @param attribute The index of the attribute in the schema.
+     * @param valueIndex The index of the value.
+     */
+    public void setValueIndex(int attribute, int valueIndex) {
+      if (attribute == this.geometryIndex) {
+        throw new IllegalArgumentException("The geometry is set with add()");
+      }
+      int[] column = this.columns[attribute];
+      if (column == null) {
+        column = new int[this.geometries.length];
+        this.columns[attribute] = column;
+      } else if (column.length < this.size) {
+        column = Arrays.copyOf(column, this.geometries.length);
+        this.columns[attribute] = column;
+      }
+      // 0 is null
+      column[this.size - 1] = valueIndex + 1;
+    }
+
+    /**
+     * Sets the id of the current feature, as given by the tile.
+     *
+     * @param id The id.
+     */
+    public void setId(long id) {
+      if (this.ids == null) {
+        this.ids = new long[this.geometries.length];
+        this.hasIds = new BitSet();
+      } else if (this.ids.length < this.size) {
+        this.ids = Arrays.copyOf(this.ids, this.geometries.length);
+      }
+      this.ids[this.size - 1] = id;
+      this.hasIds.set(this.size - 1);
+    }
+
+    public int size() {
+      return this.size;
+    }
+
+    /**
+     * Builds the collection. The builder must not be used afterwards.
+     *
+     * @return The collection.
+     */
+    public MVTFeatureCollection build() {
+      Column[] theColumns = new Column[this.columns.length];
+      // Only the values used by dictionary columns are kept.
+      int[] remap = new int[this.values.size() + 1];
+      List<Object> dictionary = new ArrayList<>();
+      List<Integer> dictionaryColumns = new ArrayList<>();
+      for (int attr = 0; attr < this.columns.length; attr++) {
+        int[] column = this.columns[attr];
+        if (attr == this.geometryIndex) {
+          continue;
+        }
+        if (column == null) {
+          theColumns[attr] = NULL_COLUMN;
+          continue;
+        }
+        if (column.length < this.size) {
+          column = Arrays.copyOf(column, this.size);
+          this.columns[attr] = column;
+        }
+        Column primitive = toPrimitiveColumn(column);
+        if (primitive != null) {
+          theColumns[attr] = primitive;
+          continue;
+        }
+        for (int row = 0; row < this.size; row++) {
+          int index = column[row];
+          if (index != 0 && remap[index] == 0) {
+            dictionary.add(this.values.get(index - 1));
+            remap[index] = dictionary.size();
+          }
+        }
+        dictionaryColumns.add(attr);
+      }
+      Object[] theDictionary = dictionary.toArray();
+      for (int attr : dictionaryColumns) {
+        int[] column = this.columns[attr];
+        for (int row = 0; row < this.size; row++) {
+          column[row] = remap[column[row]];
+        }
+        theColumns[attr] = new DictionaryColumn(theDictionary, column, this.size);
+      }
+      Envelope bounds = new Envelope();
+      for (int row = 0; row < this.size; row++) {
+        bounds.expandToInclude(this.geometries[row].getEnvelopeInternal());
+      }
+      Column theIds = this.ids == null
+              ? NULL_COLUMN
+              : new LongColumn(Arrays.copyOf(this.ids, this.size), this.hasIds, false);
+      return new MVTFeatureCollection(
+              this.type,
+              this.geometryIndex,
+              Arrays.copyOf(this.geometries, this.size),
+              theColumns,
+              theIds,
+              theDictionary,
+              bounds
+      );
+    }
+
+    /**
+     * Returns a primitive column if all the values of the column are of the
+     * same numeric type, or null.
+     */
+    private Column toPrimitiveColumn(int[] column) {
+      Class<?> valueClass = null;
+      for (int row = 0; row < this.size; row++) {
+        if (column[row] != 0) {
+          Class<?> c = this.values.get(column[row] - 1).getClass();
+          if (valueClass == null) {
+            valueClass = c;
+          } else if (valueClass != c) {
+            return null;
+          }
+        }
+      }
+      if (valueClass == Long.class || valueClass == Integer.class) {
+        long[] longs = new long[this.size];
+        BitSet present = new BitSet(this.size);
+        for (int row = 0; row < this.size; row++) {
+          if (column[row] != 0) {
+            longs[row] = ((Number) this.values.get(column[row] - 1)).longValue();
+            present.set(row);
+          }
+        }
+        return new LongColumn(longs, present, valueClass == Integer.class);
+      }
+      if (valueClass == Double.class || valueClass == Float.class) {
+        double[] doubles = new double[this.size];
+        BitSet present = new BitSet(this.size);
+        for (int row = 0; row < this.size; row++) {
+          if (column[row] != 0) {
+            doubles[row] = ((Number) this.values.get(column[row] - 1)).doubleValue();
+            present.set(row);
+          }
+        }
+        return new DoubleColumn(doubles, present, valueClass == Float.class);
+      }
+      return null;
+    }
+  }
+
+  private final int geometryIndex;
+  /**
+   * The geometries of the rows of this collection or view.
+   */
+  private final Geometry[] geometries;
+  private final Column[] columns;
+  /**
+   * The ids of the features given by the tile.
+   */
+  private final Column ids;
+  private final Object[] dictionary;
+  private final ReferencedEnvelope bounds;
+  /**
+   * The rows of the columns in this view, or null if it has all of them.
+   */
+  private final int[] rows;
+  /**
+   * The estimated size of the geometries built for this view, that it
+   * doesn't share with the collection.
+   */
+  private final long ownGeometriesSize;
+
+  private MVTFeatureCollection(SimpleFeatureType type, int geometryIndex, Geometry[] geometries, Column[] columns, Column ids, Object[] dictionary, Envelope bounds) {
+    this(type, geometryIndex, geometries, columns, ids, dictionary, bounds, null, 0);
+  }
+
+  private MVTFeatureCollection(SimpleFeatureType type, int geometryIndex, Geometry[] geometries, Column[] columns, Column ids, Object[] dictionary, Envelope bounds, int[] rows, long ownGeometriesSize) {
+    super(type);
+    this.geometryIndex = geometryIndex;
+    this.geometries = geometries;
+    this.columns = columns;
+    this.ids = ids;
+    this.dictionary = dictionary;
+    this.bounds = new ReferencedEnvelope(bounds, type.getCoordinateReferenceSystem());
+    this.rows = rows;
+    this.ownGeometriesSize = ownGeometriesSize;
+  }
+
+  /**
+   * Returns a view with some of the features of the collection, sharing its
+   * columns.
+   *
+   * @param rows The rows of this collection to include, in increasing order.
+   * @return The view.
+   */
+  public MVTFeatureCollection subset(int[] rows) {
+    int[] baseRows = new int[rows.length];
+    Geometry[] subsetGeometries = new Geometry[rows.length];
+    Envelope subsetBounds = new Envelope();
+    for (int i = 0; i < rows.length; i++) {
+      baseRows[i] = baseRow(rows[i]);
+      subsetGeometries[i] = this.geometries[rows[i]];
+      subsetBounds.expandToInclude(subsetGeometries[i].getEnvelopeInternal());
+    }
+    return new MVTFeatureCollection(
+            this.schema,
+            this.geometryIndex,
+            subsetGeometries,
+            this.columns,
+            this.ids,
+            this.dictionary,
+            subsetBounds,
+            baseRows,
+            0
+    );
+  }
+
+  /**
+   * Returns a view with the features that intersect an envelope, with their
+   * geometries clipped to it, sharing the columns of the collection. Points
+   * are kept or dropped but not clipped, and the geometries that can't be
+   * clipped are kept whole.
+   *
+   * @param clipEnvelope The envelope.
+   * @return The view, or this collection if all the features are inside the
+   * envelope.
+   */
+  public MVTFeatureCollection clip(Envelope clipEnvelope) {
+    return clip(clipEnvelope, false);
+  }
+
+  /**
+   * Returns a view with the features that intersect an envelope, see
+   * {@link #clip(Envelope)}. When the envelope is half open the points on
+   * its maximum x and y edges are left out, so the envelopes of
+   * neighbouring tiles don't both keep the points on their shared edge.
+   *
+   * @param clipEnvelope The envelope.
+   * @param halfOpen Whether the maximum edges are out of the envelope for
+   * the points.
+   * @return The view, or this collection if all the features are inside the
+   * envelope.
+   */
+  public MVTFeatureCollection clip(Envelope clipEnvelope, boolean halfOpen) {
+    if (clipEnvelope.contains(this.bounds)
+            && (!halfOpen || (this.bounds.getMaxX() < clipEnvelope.getMaxX() && this.bounds.getMaxY() < clipEnvelope.getMaxY()))) {
+      return this;
+    }
+    int size = size();
+    int[] baseRows = new int[size];
+    Geometry[] clipped = new Geometry[size];
+    Envelope clippedBounds = new Envelope();
+    GeometryClipper clipper = new GeometryClipper(clipEnvelope);
+    int count = 0;
+    long clippedSize = 0;
+    for (int row = 0; row < size; row++) {
+      Geometry geometry = clip(clipper, this.geometries[row]);
+      if (halfOpen && geometry instanceof Puntal) {
+        geometry = clipHalfOpen(clipEnvelope, geometry);
+      }
+      if (geometry == null) {
+        continue;
+      }
+      if (geometry != this.geometries[row]) {
+        clippedSize += estimateSize(geometry);
+      }
+      baseRows[count] = baseRow(row);
+      clipped[count] = geometry;
+      clippedBounds.expandToInclude(geometry.getEnvelopeInternal());
+      count++;
+    }
+    return new MVTFeatureCollection(
+            this.schema,
+            this.geometryIndex,
+            Arrays.copyOf(clipped, count),
+            this.columns,
+            this.ids,
+            this.dictionary,
+            clippedBounds,
+            Arrays.copyOf(baseRows, count),
+            clippedSize
+    );
+  }
+
+  /**
+   * Clips a geometry to the bounds of a clipper, returning null if nothing
+   * of it is left. Points are kept or dropped but not clipped, and the
+   * geometries that can't be clipped are kept whole.
+   *
+   * @param clipper The clipper.
+   * @param geometry The geometry.
+   * @return The clipped geometry, the same geometry if it is inside the
+   * bounds, or null.
+   */
+  static Geometry clip(GeometryClipper clipper, Geometry geometry) {
+    Envelope envelope = geometry.getEnvelopeInternal();
+    if (clipper.getBounds().contains(envelope)) {
+      return geometry;
+    }
+    if (!clipper.getBounds().intersects(envelope)) {
+      return null;
+    }
+    if (geometry instanceof Puntal) {
+      return geometry;
+    }
+    Geometry result;
+    try {
+      result = clipper.clip(geometry, true);
+    } catch (RuntimeException ex) {
+      // Invalid geometries are left to the renderer.
+      return geometry;
+    }
+    if (result == null || result.isEmpty()) {
+      return null;
+    }
+    int dimension = geometry.getDimension();
+    if (result.getDimension() == dimension && !(result instanceof GeometryCollection && result.getClass() == GeometryCollection.class)) {
+      return result;
+    }
+    // Drop the parts of lower dimension, like the points where a line
+    // touches the envelope.
+    List<Geometry> parts = new ArrayList<>();
+    for (int i = 0; i < result.getNumGeometries(); i++) {
+      Geometry part = result.getGeometryN(i);
+      if (part.getDimension() == dimension && !part.isEmpty()) {
+        parts.add(part);
+      }
+    }
+    if (parts.isEmpty()) {
+      return null;
+    }
+    return parts.size() == 1 ? parts.get(0) : geometry.getFactory().buildGeometry(parts);
+  }
+
+  /**
+   * Returns the points of a point or multipoint that are inside an envelope
+   * without its maximum edges, or null if none is.
+   */
+  private static Geometry clipHalfOpen(Envelope envelope, Geometry geometry) {
+    List<Geometry> points = new ArrayList<>();
+    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+      Geometry point = geometry.getGeometryN(i);
+      Coordinate c = point.getCoordinate();
+      if (c != null
+              && c.x >= envelope.getMinX() && c.x < envelope.getMaxX()
+              && c.y >= envelope.getMinY() && c.y < envelope.getMaxY()) {
+        points.add(point);
+      }
+    }
+    if (points.size() == geometry.getNumGeometries()) {
+      return geometry;
+    }
+    if (points.isEmpty()) {
+      return null;
+    }
+    return points.size() == 1 ? points.get(0) : geometry.getFactory().buildGeometry(points);
+  }
+
+  private int baseRow(int row) {
+    return this.rows == null ? row : this.rows[row];
+  }
+
+  @Override
+  public int size() {
+    return this.geometries.length;
+  }
+
+  @Override
+  public ReferencedEnvelope getBounds() {
+    return new ReferencedEnvelope(this.bounds, this.bounds.getCoordinateReferenceSystem());
+  }
+
+  public Geometry getGeometry(int row) {
+    return this.geometries[row];
+  }
+
+  /**
+   * Returns the number of vertices of the geometries of the collection.
+   *
+   * @return The number of vertices.
+   */
+  public long getNumPoints() {
+    long points = 0;
+    for (Geometry geom : this.geometries) {
+      points += geom.getNumPoints();
+    }
+    return points;
+  }
+
+  /**
+   * Returns the id that the tile gives to a feature.
+   *
+   * @param row The index of the feature.
+   * @return The id, or null if the feature has none.
+   */
+  public Long getId(int row) {
+    return (Long) this.ids.get(baseRow(row));
+  }
+
+  /**
+   * Returns an attribute of a feature without creating the feature.
+   *
+   * @param row The index of the feature.
+   * @param attribute The index of the attribute in the schema.
+   * @return The value of the attribute.
+   */
+  public Object getAttribute(int row, int attribute) {
+    if (attribute == this.geometryIndex) {
+      return this.geometries[row];
+    }
+    return this.columns[attribute].get(baseRow(row));
+  }
+
+  /**
+   * Creates the feature at a position of the collection.
+   *
+   * @param row The index of the feature.
+   * @return The feature.
+   */
+  public SimpleFeature getFeature(int row) {
+    Object[] values = new Object[this.columns.length];
+    for (int attr = 0; attr < values.length; attr++) {
+      values[attr] = getAttribute(row, attr);
+    }
+    return SimpleFeatureBuilder.build(this.schema, values, this.schema.getTypeName() + "." + baseRow(row));
+  }
+
+  @Override
+  protected Iterator<SimpleFeature> openIterator() {
+    return new Iterator<SimpleFeature>() {
+      private int row = 0;
+
+      @Override
+      public boolean hasNext() {
+        return this.row < size();
+      }
+
+      @Override
+      public SimpleFeature next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return getFeature(this.row++);
+      }
+    };
+  }
+
+  /**
+   * Estimates the heap used by the collection. For a view, the size of the
+   * view alone, with the geometries it clipped but not the columns and
+   * geometries it shares.
+   *
+   * @return The estimated size in bytes.
+   */
+  public long estimateSize() {
+    if (this.rows != null) {
+      return 64 + 12L * this.rows.length + this.ownGeometriesSize;
+    }
+    long size = 64 + 8L * this.geometries.length + this.ids.estimateSize();
+    for (Geometry geom : this.geometries) {
+      size += estimateSize(geom);
+    }
+    for (Column column : this.columns) {
+      if (column != null) {
+        size += column.estimateSize();
+      }
+    }
+    for (Object value : this.dictionary) {
+      size += 16;
+      if (value instanceof String s) {
+        size += 40 + s.length();
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSize(Geometry geometry) {
+    return 80L * geometry.getNumGeometries() + 40L * geometry.getNumPoints();
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Tile cache stored in a folder tree, one file per tile:
+ * {@code <root>/<source hash>/<z>/<x>/<y>.tile}.
+ * <p>
+ * Each file holds a small header with the expiration time and the HTTP
+ * validators followed by the raw tile bytes. Files are written to a
+ * temporary file and moved into place, so concurrent readers never see a
+ * partially written tile.
+ *
+ * @author fdiaz
+ */
+public class MVTFileTileCache implements MVTTileCache {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTFileTileCache.class.getName());
+
+  private static final int MAGIC = 0x4D565431; // "MVT1"
+
+  private final Path root;
+
+  /**
+   * Creates a cache stored in the given folder. The folder is created if it
+   * doesn't exist.
+   *
+   * @param root The root folder of the cache.
+   */
+  public MVTFileTileCache(File root) {
+    this.root = root.toPath();
+  }
+
+  public File getRoot() {
+    return this.root.toFile();
+  }
+
+  /**
+   * Returns the file that holds a tile.
+   *
+   * @param sourceId The identifier of the tile source.
+   * @param tile The tile.
+   * @return The file of the tile.
+   */
+  public Path getPath(String sourceId, MVTTileId tile) {
+    return this.root
+            .resolve(MVTFiles.hex("SHA-1", sourceId, 8))
+            .resolve(String.valueOf(tile.getZ()))
+            .resolve(String.valueOf(tile.getX()))
+            .resolve(tile.getY() + ".tile");
+  }
+
+  @Override
+  public Entry get(String sourceId, MVTTileId tile) throws IOException {
+    Path path = getPath(sourceId, tile);
+    byte[] content;
+    try {
+      content = Files.readAllBytes(path);
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(content))) {
+      if (is.readInt() != MAGIC) {
+        LOGGER.log(Level.WARNING, "Ignoring invalid cache file {0}", path);
+        return null;
+      }
+      long expires = is.readLong();
+      String etag = StringUtils.defaultIfEmpty(is.readUTF(), null);
+      String lastModified = StringUtils.defaultIfEmpty(is.readUTF(), null);
+      // The length must match the rest of the file, so a damaged file can't
+      // make the cache allocate a negative or huge array.
+      int length = is.readInt();
+      if (length < 0 || length != is.available()) {
+        LOGGER.log(Level.WARNING, "Ignoring cache file {0} with invalid tile length {1}", new Object[]{path, length});
+        return null;
+      }
+      byte[] data = new byte[length];
+      is.readFully(data);
+      return new Entry(data, etag, lastModified, expires);
+    }
+  }
+
+  @Override
+  public void put(String sourceId, MVTTileId tile, Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getData().length + 64);
+    try (DataOutputStream os = new DataOutputStream(bytes)) {
+      os.writeInt(MAGIC);
+      os.writeLong(entry.getExpires());
+      os.writeUTF(StringUtils.defaultString(entry.getETag()));
+      os.writeUTF(StringUtils.defaultString(entry.getLastModified()));
+      os.writeInt(entry.getData().length);
+      os.write(entry.getData());
+    }
+    MVTFiles.writeAtomically(getPath(sourceId, tile), bytes.toByteArray());
+  }
+}
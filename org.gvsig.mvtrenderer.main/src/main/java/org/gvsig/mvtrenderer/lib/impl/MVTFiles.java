@@ -0,0 +1,102 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * File and hashing utilities shared by the caches and the seeder.
+ *
+ * @author fdiaz
+ */
+public final class MVTFiles {
+
+  private MVTFiles() {
+  }
+
+  /**
+   * Writes a file through a temporary file in the same folder that is then
+   * moved into place, so concurrent readers never see it partially written.
+   * The folder is created if needed.
+   *
+   * @param path The file.
+   * @param data The content of the file.
+   * @throws IOException If the file can't be written.
+   */
+  public static void writeAtomically(Path path, byte[] data) throws IOException {
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, data);
+      try {
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Returns the digest of a string in hexadecimal.
+   *
+   * @param algorithm The digest algorithm, like SHA-1.
+   * @param s The string, hashed as UTF-8.
+   * @return The hexadecimal digest.
+   */
+  public static String hex(String algorithm, String s) {
+    return hex(algorithm, s, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the first bytes of the digest of a string in hexadecimal.
+   *
+   * @param algorithm The digest algorithm, like SHA-1.
+   * @param s The string, hashed as UTF-8.
+   * @param bytes The number of bytes of the digest to keep.
+   * @return The hexadecimal digest, with two characters per byte.
+   */
+  public static String hex(String algorithm, String s, int bytes) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance(algorithm).digest(s.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(algorithm + " not available", ex);
+    }
+    int length = Math.min(bytes, digest.length);
+    StringBuilder builder = new StringBuilder(2 * length);
+    for (int i = 0; i < length; i++) {
+      builder.append(String.format("%02x", digest[i]));
+    }
+    return builder.toString();
+  }
+}
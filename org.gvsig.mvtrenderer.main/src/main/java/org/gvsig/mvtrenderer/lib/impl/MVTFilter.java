@@ -0,0 +1,408 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Lineal;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.Puntal;
+
+/**
+ * A Mapbox filter compiled to a predicate over the rows of a
+ * {@link MVTFeatureCollection}, used to hand each style layer only the
+ * features that can match its filter.
+ * <p>
+ * The predicate never replaces the GeoTools filter of the style, which is
+ * still evaluated by the renderer; it only has to never reject a feature
+ * the GeoTools filter would accept. So it is evaluated with three values:
+ * the parts of the filter that are not supported (expressions other than
+ * plain property comparisons, $id, comparisons between values of different
+ * types, whose conversion is up to GeoTools, ...) evaluate to "unknown", and
+ * only the features for which the whole filter is false are left out.
+ *
+ * @author fdiaz
+ */
+public final class MVTFilter {
+
+  private static final int FALSE = 0;
+  private static final int TRUE = 1;
+  private static final int UNKNOWN = 2;
+
+  private static final String TYPE_KEY = "$type";
+
+  private interface Node {
+
+    /**
+     * Evaluates the node for a row.
+     *
+     * @param features The features.
+     * @param row The row.
+     * @param slots The index in the schema of each attribute of the filter,
+     * or -1.
+     * @return FALSE, TRUE or UNKNOWN.
+     */
+    int eval(MVTFeatureCollection features, int row, int[] slots);
+  }
+
+  private static final Node UNKNOWN_NODE = (features, row, slots) -> UNKNOWN;
+
+  private final String key;
+  private final Node root;
+  private final List<String> attributes;
+
+  private MVTFilter(String key, Node root, List<String> attributes) {
+    this.key = key;
+    this.root = root;
+    this.attributes = attributes;
+  }
+
+  /**
+   * Compiles a Mapbox filter.
+   *
+   * @param filter The filter of a style layer, as parsed JSON.
+   * @return The compiled filter, or null if the filter is absent or nothing
+   * in it can be evaluated.
+   */
+  public static MVTFilter compile(Object filter) {
+    if (!(filter instanceof JSONArray)) {
+      return null;
+    }
+    List<String> attributes = new ArrayList<>();
+    Node root = compile(filter, attributes);
+    if (root == UNKNOWN_NODE) {
+      return null;
+    }
+    return new MVTFilter(JSONValue.toJSONString(filter), root, attributes);
+  }
+
+  /**
+   * Returns a string that identifies the filter: two style layers with the
+   * same filter have the same key.
+   *
+   * @return The key of the filter.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the features that may match the filter.
+   *
+   * @param features The features.
+   * @return The features whose filter is not false, or the same collection
+   * if all of them may match.
+   */
+  public MVTFeatureCollection filter(MVTFeatureCollection features) {
+    int[] slots = getSlots(features.getSchema());
+    int size = features.size();
+    int[] rows = new int[size];
+    int count = 0;
+    for (int row = 0; row < size; row++) {
+      if (this.root.eval(features, row, slots) != FALSE) {
+        rows[count++] = row;
+      }
+    }
+    if (count == size) {
+      return features;
+    }
+    return features.subset(Arrays.copyOf(rows, count));
+  }
+
+  /**
+   * Returns whether a feature may match the filter.
+   *
+   * @param features The features.
+   * @param row The row of the feature.
+   * @return false if the feature can't match the filter.
+   */
+  public boolean mayMatch(MVTFeatureCollection features, int row) {
+    return this.root.eval(features, row, getSlots(features.getSchema())) != FALSE;
+  }
+
+  private int[] getSlots(SimpleFeatureType type) {
+    int[] slots = new int[this.attributes.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = type.indexOf(this.attributes.get(i));
+    }
+    return slots;
+  }
+
+  @Override
+  public String toString() {
+    return this.key;
+  }
+
+  private static int slot(String attribute, List<String> attributes) {
+    int slot = attributes.indexOf(attribute);
+    if (slot < 0) {
+      attributes.add(attribute);
+      slot = attributes.size() - 1;
+    }
+    return slot;
+  }
+
+  private static Object value(MVTFeatureCollection features, int row, int[] slots, int slot) {
+    int index = slots[slot];
+    return index < 0 ? null : features.getAttribute(row, index);
+  }
+
+  private static int not(int value) {
+    return value == UNKNOWN ? UNKNOWN : (value == TRUE ? FALSE : TRUE);
+  }
+
+  private static Node compile(Object expression, List<String> attributes) {
+    if (!(expression instanceof JSONArray array) || array.isEmpty() || !(array.get(0) instanceof String op)) {
+      return UNKNOWN_NODE;
+    }
+    switch (op) {
+      case "all":
+      case "any":
+      case "none":
+        return compileCombination(op, array, attributes);
+      case "!":
+        if (array.size() != 2) {
+          return UNKNOWN_NODE;
+        }
+        Node child = compile(array.get(1), attributes);
+        return child == UNKNOWN_NODE ? UNKNOWN_NODE : (features, row, slots) -> not(child.eval(features, row, slots));
+      case "==":
+      case "!=":
+      case ">":
+      case ">=":
+      case "<":
+      case "<=":
+        return compileComparison(op, array, attributes);
+      case "in":
+      case "!in":
+        return compileIn(op, array, attributes);
+      case "has":
+      case "!has":
+        return compileHas(op, array, attributes);
+      default:
+        return UNKNOWN_NODE;
+    }
+  }
+
+  private static Node compileCombination(String op, JSONArray array, List<String> attributes) {
+    Node[] children = new Node[array.size() - 1];
+    for (int i = 1; i < array.size(); i++) {
+      children[i - 1] = compile(array.get(i), attributes);
+    }
+    boolean all = "all".equals(op);
+    boolean none = "none".equals(op);
+    return (features, row, slots) -> {
+      // all: false if any is false; any/none: true if any is true
+      int result = all ? TRUE : FALSE;
+      for (Node child : children) {
+        int value = child.eval(features, row, slots);
+        if (all ? value == FALSE : value == TRUE) {
+          result = value;
+          break;
+        }
+        if (value == UNKNOWN) {
+          result = UNKNOWN;
+        }
+      }
+      return none ? not(result) : result;
+    };
+  }
+
+  /**
+   * Returns the attribute compared by a filter: the key of a legacy filter
+   * or the argument of a ["get", key] expression.
+   */
+  private static String getAttribute(Object operand) {
+    if (operand instanceof String s) {
+      return s;
+    }
+    if (operand instanceof JSONArray get && get.size() == 2 && "get".equals(get.get(0)) && get.get(1) instanceof String s) {
+      return s;
+    }
+    return null;
+  }
+
+  private static boolean isLiteral(Object value) {
+    return value instanceof String || value instanceof Number || value instanceof Boolean;
+  }
+
+  private static Node compileComparison(String op, JSONArray array, List<String> attributes) {
+    if (array.size() != 3) {
+      return UNKNOWN_NODE;
+    }
+    String attribute = getAttribute(array.get(1));
+    Object literal = array.get(2);
+    if (attribute == null || !isLiteral(literal) || "$id".equals(attribute)) {
+      return UNKNOWN_NODE;
+    }
+    if (TYPE_KEY.equals(attribute)) {
+      if (!(literal instanceof String type)) {
+        return UNKNOWN_NODE;
+      }
+      if ("==".equals(op)) {
+        return (features, row, slots) -> type.equals(getType(features.getGeometry(row))) ? TRUE : FALSE;
+      }
+      if ("!=".equals(op)) {
+        return (features, row, slots) -> type.equals(getType(features.getGeometry(row))) ? FALSE : TRUE;
+      }
+      return UNKNOWN_NODE;
+    }
+    int slot = slot(attribute, attributes);
+    switch (op) {
+      case "==":
+        return (features, row, slots) -> equal(value(features, row, slots, slot), literal);
+      case "!=":
+        return (features, row, slots) -> {
+          Object value = value(features, row, slots, slot);
+          return value == null ? UNKNOWN : not(equal(value, literal));
+        };
+      default:
+        return (features, row, slots) -> {
+          Object value = value(features, row, slots, slot);
+          if (value == null) {
+            return FALSE;
+          }
+          Integer cmp = compare(value, literal);
+          if (cmp == null) {
+            return UNKNOWN;
+          }
+          boolean result;
+          switch (op) {
+            case ">":
+              result = cmp > 0;
+              break;
+            case ">=":
+              result = cmp >= 0;
+              break;
+            case "<":
+              result = cmp < 0;
+              break;
+            default:
+              result = cmp <= 0;
+          }
+          return result ? TRUE : FALSE;
+        };
+    }
+  }
+
+  private static Node compileIn(String op, JSONArray array, List<String> attributes) {
+    // ["in", needle, haystack] expressions have an expression as second
+    // argument and are not supported.
+    if (array.size() < 2 || !(array.get(1) instanceof String attribute) || "$id".equals(attribute)) {
+      return UNKNOWN_NODE;
+    }
+    List<Object> literals = new ArrayList<>();
+    for (int i = 2; i < array.size(); i++) {
+      if (!isLiteral(array.get(i))) {
+        return UNKNOWN_NODE;
+      }
+      literals.add(array.get(i));
+    }
+    boolean negated = "!in".equals(op);
+    if (TYPE_KEY.equals(attribute)) {
+      return (features, row, slots) -> {
+        boolean found = literals.contains(getType(features.getGeometry(row)));
+        return found != negated ? TRUE : FALSE;
+      };
+    }
+    int slot = slot(attribute, attributes);
+    return (features, row, slots) -> {
+      Object value = value(features, row, slots, slot);
+      if (value == null) {
+        return negated ? UNKNOWN : FALSE;
+      }
+      int result = FALSE;
+      for (Object literal : literals) {
+        int eq = equal(value, literal);
+        if (eq == TRUE) {
+          result = TRUE;
+          break;
+        }
+        if (eq == UNKNOWN) {
+          result = UNKNOWN;
+        }
+      }
+      return negated ? not(result) : result;
+    };
+  }
+
+  private static Node compileHas(String op, JSONArray array, List<String> attributes) {
+    if (array.size() != 2 || !(array.get(1) instanceof String attribute) || attribute.startsWith("$")) {
+      return UNKNOWN_NODE;
+    }
+    int slot = slot(attribute, attributes);
+    boolean negated = "!has".equals(op);
+    // A null value may be a missing key or a key whose value GeoTools sees
+    // as present, so only non null values are conclusive.
+    return (features, row, slots) -> {
+      if (value(features, row, slots, slot) == null) {
+        return UNKNOWN;
+      }
+      return negated ? FALSE : TRUE;
+    };
+  }
+
+  private static int equal(Object value, Object literal) {
+    if (value == null) {
+      return FALSE;
+    }
+    if (value instanceof Number n && literal instanceof Number l) {
+      return n.doubleValue() == l.doubleValue() ? TRUE : FALSE;
+    }
+    if ((value instanceof String && literal instanceof String)
+            || (value instanceof Boolean && literal instanceof Boolean)) {
+      return Objects.equals(value, literal) ? TRUE : FALSE;
+    }
+    return UNKNOWN;
+  }
+
+  private static Integer compare(Object value, Object literal) {
+    if (value instanceof Number n && literal instanceof Number l) {
+      return Double.compare(n.doubleValue(), l.doubleValue());
+    }
+    if (value instanceof String s && literal instanceof String l) {
+      return s.compareTo(l);
+    }
+    return null;
+  }
+
+  private static String getType(Geometry geometry) {
+    if (geometry instanceof Puntal) {
+      return "Point";
+    }
+    if (geometry instanceof Lineal) {
+      return "LineString";
+    }
+    if (geometry instanceof Polygonal) {
+      return "Polygon";
+    }
+    return null;
+  }
+}
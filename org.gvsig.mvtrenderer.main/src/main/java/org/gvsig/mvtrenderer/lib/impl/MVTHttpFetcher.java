@@ -0,0 +1,517 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Downloads tiles and styles over HTTP with a shared {@link HttpClient}.
+ * <p>
+ * The client keeps the connections open between requests, negotiates
+ * HTTP/2 and gzip, and every attempt has a deadline. Connection errors,
+ * timeouts and the HTTP statuses that usually mean a transient failure
+ * (429, 502, 503, 504) are retried with exponential backoff, or after the
+ * Retry-After of the server. When the server asks to wait longer than the
+ * maximum retry delay the request is not retried and its response is
+ * returned, so a thread is never stalled waiting for it.
+ * <p>
+ * URLs that are not http or https (file, jar) are read with
+ * {@link URL#openStream()}.
+ * <p>
+ * The fetcher is thread safe and is meant to be shared; the setters should
+ * be called before the first request.
+ *
+ * @author fdiaz
+ */
+public class MVTHttpFetcher {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTHttpFetcher.class.getName());
+
+  private static final MVTHttpFetcher DEFAULT = new MVTHttpFetcher();
+
+  /**
+   * A response of the server.
+   */
+  public static class Response {
+
+    private final URL url;
+    private final int statusCode;
+    private final HttpHeaders headers;
+    private final byte[] body;
+
+    Response(URL url, int statusCode, HttpHeaders headers, byte[] body) {
+      this.url = url;
+      this.statusCode = statusCode;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    public URL getURL() {
+      return url;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /**
+     * Returns the first value of a header.
+     *
+     * @param name The name of the header, case insensitive.
+     * @return The value, or null if the header is not present.
+     */
+    public String getHeader(String name) {
+      if (this.headers == null) {
+        return null;
+      }
+      return this.headers.firstValue(name).orElse(null);
+    }
+
+    /**
+     * Returns the body of the response, already decompressed if the server
+     * sent it gzipped.
+     *
+     * @return The body.
+     */
+    public byte[] getBody() {
+      return body;
+    }
+  }
+
+  private Duration connectTimeout;
+  private Duration requestTimeout;
+  private int maxRetries;
+  private long retryDelay;
+  private long maxRetryDelay;
+  private String userAgent;
+  private volatile HttpClient client;
+
+  public MVTHttpFetcher() {
+    this.connectTimeout = Duration.ofSeconds(10);
+    this.requestTimeout = Duration.ofSeconds(30);
+    this.maxRetries = 3;
+    this.retryDelay = 250;
+    this.maxRetryDelay = 30000;
+    this.userAgent = "gvSIG-MVTRenderer";
+    this.client = null;
+  }
+
+  /**
+   * Returns the fetcher shared by the objects that don't have one set.
+   *
+   * @return The default fetcher.
+   */
+  public static MVTHttpFetcher getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Sets the timeout to establish a connection. Defaults to 10 seconds.
+   *
+   * @param connectTimeout The timeout.
+   */
+  public void setConnectTimeout(Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    this.client = null;
+  }
+
+  public Duration getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the deadline of each attempt, from sending the request until the
+   * whole body is received. Defaults to 30 seconds.
+   *
+   * @param requestTimeout The timeout.
+   */
+  public void setRequestTimeout(Duration requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  /**
+   * Sets how many times a failed request is retried. Defaults to 3.
+   *
+   * @param maxRetries The number of retries, 0 to not retry.
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Sets the delay before the first retry. It doubles on each retry, with
+   * some random jitter. Defaults to 250 milliseconds.
+   *
+   * @param retryDelay The delay in milliseconds.
+   */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /**
+   * Sets the longest delay before a retry. The backoff is capped to it, and
+   * the responses whose Retry-After exceeds it are returned without
+   * retrying. Defaults to 30 seconds.
+   *
+   * @param maxRetryDelay The delay in milliseconds.
+   */
+  public void setMaxRetryDelay(long maxRetryDelay) {
+    this.maxRetryDelay = maxRetryDelay;
+  }
+
+  public long getMaxRetryDelay() {
+    return maxRetryDelay;
+  }
+
+  public void setUserAgent(String userAgent) {
+    this.userAgent = userAgent;
+  }
+
+  public String getUserAgent() {
+    return userAgent;
+  }
+
+  private HttpClient getClient() {
+    HttpClient theClient = this.client;
+    if (theClient == null) {
+      synchronized (this) {
+        theClient = this.client;
+        if (theClient == null) {
+          theClient = HttpClient.newBuilder()
+                  .version(HttpClient.Version.HTTP_2)
+                  .followRedirects(HttpClient.Redirect.NORMAL)
+                  .connectTimeout(this.connectTimeout)
+                  .build();
+          this.client = theClient;
+        }
+      }
+    }
+    return theClient;
+  }
+
+  /**
+   * Downloads the content of a URL.
+   *
+   * @param url The URL.
+   * @return The content, empty if the server returns HTTP 204.
+   * @throws IOException If the download fails or the server doesn't return
+   * HTTP 200 or 204.
+   */
+  public byte[] get(URL url) throws IOException {
+    Response response = send(url, Collections.emptyMap());
+    if (!isSuccess(response.getStatusCode())) {
+      throw new IOException("Server returned HTTP " + response.getStatusCode() + " for " + url);
+    }
+    return response.getBody();
+  }
+
+  /**
+   * Sends a GET request, retrying it if it fails. The response is returned
+   * whatever its status, so the caller can handle e.g. 304.
+   *
+   * @param url The URL.
+   * @param headers Additional request headers.
+   * @return The response.
+   * @throws IOException If all the attempts fail.
+   */
+  public Response send(URL url, Map<String, String> headers) throws IOException {
+    if (!isHttp(url)) {
+      return openStream(url);
+    }
+    HttpRequest request = createRequest(url, headers);
+    for (int attempt = 0;; attempt++) {
+      Response response;
+      CompletableFuture<HttpResponse<byte[]>> exchange = exchange(url, request);
+      try {
+        response = toResponse(url, exchange.get());
+      } catch (InterruptedException ex) {
+        exchange.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted downloading " + url);
+      } catch (ExecutionException | IOException ex) {
+        Throwable cause = getCause(url, ex);
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (!(cause instanceof IOException)) {
+          throw new IOException("Can't download " + url, cause);
+        }
+        if (attempt >= this.maxRetries) {
+          throw (IOException) cause;
+        }
+        LOGGER.log(Level.FINE, "Retrying " + url, cause);
+        sleep(getDelay(attempt, null));
+        continue;
+      }
+      if (attempt >= this.maxRetries || !isRetryable(response.getStatusCode())) {
+        return response;
+      }
+      long delay = getDelay(attempt, response);
+      if (delay < 0) {
+        LOGGER.log(Level.FINE, "Not retrying {0}, the server asks to wait too long", url);
+        return response;
+      }
+      LOGGER.log(Level.FINE, "Retrying {0} after HTTP {1}", new Object[]{url, response.getStatusCode()});
+      sleep(delay);
+    }
+  }
+
+  /**
+   * Sends a GET request asynchronously, retrying it if it fails. The
+   * returned future completes with the response whatever its status, or
+   * exceptionally with an IOException if all the attempts fail.
+   *
+   * @param url The URL.
+   * @param headers Additional request headers.
+   * @return The response.
+   */
+  public CompletableFuture<Response> sendAsync(URL url, Map<String, String> headers) {
+    if (!isHttp(url)) {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return openStream(url);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      });
+    }
+    HttpRequest request;
+    try {
+      request = createRequest(url, headers);
+    } catch (IOException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+    return sendAsync(url, request, 0);
+  }
+
+  /**
+   * Downloads the content of a URL asynchronously.
+   *
+   * @param url The URL.
+   * @return The content, empty if the server returns HTTP 204, or an
+   * IOException if the download fails or the server doesn't return HTTP 200
+   * or 204.
+   */
+  public CompletableFuture<byte[]> getAsync(URL url) {
+    return sendAsync(url, Collections.emptyMap()).thenApply(response -> {
+      if (!isSuccess(response.getStatusCode())) {
+        throw new CompletionException(new IOException("Server returned HTTP " + response.getStatusCode() + " for " + url));
+      }
+      return response.getBody();
+    });
+  }
+
+  private CompletableFuture<Response> sendAsync(URL url, HttpRequest request, int attempt) {
+    return exchange(url, request)
+            .handle((httpResponse, error) -> {
+              if (error != null) {
+                Throwable cause = getCause(url, error);
+                if (attempt >= this.maxRetries || !(cause instanceof IOException)) {
+                  return CompletableFuture.<Response>failedFuture(cause);
+                }
+                LOGGER.log(Level.FINE, "Retrying " + url, cause);
+                return retryAsync(url, request, attempt, getDelay(attempt, null));
+              }
+              Response response;
+              try {
+                response = toResponse(url, httpResponse);
+              } catch (IOException ex) {
+                return CompletableFuture.<Response>failedFuture(ex);
+              }
+              if (attempt >= this.maxRetries || !isRetryable(response.getStatusCode())) {
+                return CompletableFuture.completedFuture(response);
+              }
+              long delay = getDelay(attempt, response);
+              if (delay < 0) {
+                LOGGER.log(Level.FINE, "Not retrying {0}, the server asks to wait too long", url);
+                return CompletableFuture.completedFuture(response);
+              }
+              LOGGER.log(Level.FINE, "Retrying {0} after HTTP {1}", new Object[]{url, response.getStatusCode()});
+              return retryAsync(url, request, attempt, delay);
+            })
+            .thenCompose(future -> future);
+  }
+
+  private CompletableFuture<Response> retryAsync(URL url, HttpRequest request, int attempt, long delay) {
+    Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+    return CompletableFuture
+            .supplyAsync(() -> sendAsync(url, request, attempt + 1), delayed)
+            .thenCompose(future -> future);
+  }
+
+  /**
+   * Sends a request with a deadline on the whole exchange, body included,
+   * so a server that stalls sending the body doesn't hang the caller. On
+   * timeout the exchange is cancelled and the future fails with a
+   * TimeoutException.
+   */
+  private CompletableFuture<HttpResponse<byte[]>> exchange(URL url, HttpRequest request) {
+    CompletableFuture<HttpResponse<byte[]>> exchange = getClient().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+    CompletableFuture<HttpResponse<byte[]>> deadline = exchange.copy()
+            .orTimeout(this.requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    deadline.whenComplete((httpResponse, error) -> {
+      if (error instanceof TimeoutException) {
+        exchange.cancel(true);
+      }
+    });
+    return deadline;
+  }
+
+  /**
+   * Unwraps the failure of an exchange, turning the timeouts into
+   * IOExceptions so they are retried like the other network errors.
+   */
+  private static Throwable getCause(URL url, Throwable error) {
+    Throwable cause = error;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof TimeoutException) {
+      HttpTimeoutException timeout = new HttpTimeoutException("Timeout downloading " + url);
+      timeout.initCause(cause);
+      return timeout;
+    }
+    return cause;
+  }
+
+  private HttpRequest createRequest(URL url, Map<String, String> headers) throws IOException {
+    HttpRequest.Builder builder;
+    try {
+      builder = HttpRequest.newBuilder(url.toURI());
+    } catch (URISyntaxException ex) {
+      throw new IOException("Invalid URL " + url, ex);
+    }
+    builder.timeout(this.requestTimeout)
+            .header("Accept-Encoding", "gzip")
+            .GET();
+    if (StringUtils.isNotBlank(this.userAgent)) {
+      builder.header("User-Agent", this.userAgent);
+    }
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        builder.header(header.getKey(), header.getValue());
+      }
+    }
+    return builder.build();
+  }
+
+  private Response toResponse(URL url, HttpResponse<byte[]> httpResponse) throws IOException {
+    byte[] body = httpResponse.body();
+    if (body == null) {
+      body = new byte[0];
+    }
+    String encoding = httpResponse.headers().firstValue("Content-Encoding").orElse(null);
+    if (body.length > 0 && StringUtils.equalsIgnoreCase(encoding, "gzip")) {
+      try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(body))) {
+        body = is.readAllBytes();
+      }
+    }
+    return new Response(url, httpResponse.statusCode(), httpResponse.headers(), body);
+  }
+
+  private Response openStream(URL url) throws IOException {
+    try (InputStream is = url.openStream()) {
+      return new Response(url, 200, null, is.readAllBytes());
+    }
+  }
+
+  private static boolean isHttp(URL url) {
+    String protocol = url.getProtocol();
+    return "http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol);
+  }
+
+  private static boolean isSuccess(int statusCode) {
+    return statusCode == 200 || statusCode == 204;
+  }
+
+  private static boolean isRetryable(int statusCode) {
+    return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+  }
+
+  /**
+   * Returns the delay before a retry: the Retry-After of the response if it
+   * has one in seconds, or an exponential backoff with jitter, up to the
+   * maximum retry delay. Returns -1 if the Retry-After exceeds it.
+   */
+  private long getDelay(int attempt, Response response) {
+    if (response != null) {
+      String retryAfter = response.getHeader("Retry-After");
+      if (retryAfter != null && StringUtils.isNumeric(retryAfter.trim())) {
+        String seconds = retryAfter.trim();
+        if (seconds.length() > 9 || TimeUnit.SECONDS.toMillis(Long.parseLong(seconds)) > this.maxRetryDelay) {
+          return -1;
+        }
+        return TimeUnit.SECONDS.toMillis(Long.parseLong(seconds));
+      }
+    }
+    long delay = this.retryDelay << Math.min(attempt, 16);
+    return Math.min(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1), this.maxRetryDelay);
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting to retry");
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Cache of encoded rendered tiles, with a memory tier bounded by the size of
+ * the images and an optional disk tier.
+ * <p>
+ * The entries are keyed by the fingerprint of the style
+ * ({@link MVTStyles#getFingerprint()}), the tile source, the render
+ * parameters, the output size and format and the tile. On disk they are
+ * stored as
+ * {@code <root>/<fingerprint>/<format>-<width>x<height>-<source and params hash>/<z>/<x>/<y>.<format>},
+ * so all the images of a style can be dropped at once. Registered as a
+ * {@link MVTStyles.StyleChangeListener}, the cache drops the images of the
+ * previous style when the style is reloaded.
+ *
+ * @author fdiaz
+ */
+public class MVTImageCache implements MVTStyles.StyleChangeListener {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTImageCache.class.getName());
+
+  /**
+   * Identifies a rendered tile.
+   */
+  public static final class Key {
+
+    private final String fingerprint;
+    private final String sourceId;
+    private final String params;
+    private final int width;
+    private final int height;
+    private final String format;
+    private final MVTTileId tile;
+
+    /**
+     * Creates a key.
+     *
+     * @param fingerprint The fingerprint of the style.
+     * @param sourceId The identifier of the tile source, see {@link MVTTileSource#getId()}.
+     * @param params The effective render parameters, see {@link #getParams(MVTTile)}.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param format The image format.
+     * @param tile The tile.
+     */
+    public Key(String fingerprint, String sourceId, String params, int width, int height, String format, MVTTileId tile) {
+      this.fingerprint = fingerprint;
+      this.sourceId = sourceId;
+      this.params = params;
+      this.width = width;
+      this.height = height;
+      this.format = format;
+      this.tile = tile;
+    }
+
+    public String getFingerprint() {
+      return fingerprint;
+    }
+
+    public MVTTileId getTile() {
+      return tile;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key other)) {
+        return false;
+      }
+      return this.width == other.width
+              && this.height == other.height
+              && this.tile.equals(other.tile)
+              && this.fingerprint.equals(other.fingerprint)
+              && this.sourceId.equals(other.sourceId)
+              && this.params.equals(other.params)
+              && this.format.equals(other.format);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fingerprint, sourceId, params, width, height, format, tile);
+    }
+
+    @Override
+    public String toString() {
+      return fingerprint + "/" + sourceId + "/" + format + "-" + width + "x" + height + "/" + params + "/" + tile;
+    }
+  }
+
+  private final long maxMemorySize;
+  private final Path root;
+  private final LinkedHashMap<Key, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+  private long memorySize;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxMemorySize The maximum size in bytes of the images kept in
+   * memory.
+   * @param root The root folder of the disk tier, or null to keep the images
+   * only in memory.
+   */
+  public MVTImageCache(long maxMemorySize, File root) {
+    this.maxMemorySize = maxMemorySize;
+    this.root = root == null ? null : root.toPath();
+    this.memorySize = 0;
+  }
+
+  /**
+   * Returns the effective render parameters of a tile as a string for the
+   * key, including the default values of the parameters that weren't set.
+   *
+   * @param tile A tile configured with {@link MVTTile#setParams(java.util.Map)}.
+   * @return The parameters.
+   */
+  public static String getParams(MVTTile tile) {
+    return "textMaxSizeLimit=" + tile.getTextMaxSizeLimit()
+            + ";enableTextPartials=" + tile.isEnableTextPartials()
+            + ";assignScaleDenominator=" + tile.isAssignScaleDenominator()
+            + ";showTileLimits=" + tile.isShowTileLimits()
+            + ";strictProjection=" + tile.isStrictProjection()
+            + ";sourceMaxZoom=" + tile.getSourceMaxZoom()
+            + ";clipBuffer=" + tile.getClipBuffer();
+  }
+
+  /**
+   * Returns an encoded image, looking first in memory and then on disk.
+   *
+   * @param key The key of the image.
+   * @return The encoded image, or null if it isn't cached.
+   */
+  public byte[] get(Key key) {
+    byte[] data;
+    synchronized (this) {
+      data = this.memory.get(key);
+    }
+    if (data != null) {
+      this.memoryHits.incrementAndGet();
+      return data;
+    }
+    if (this.root != null) {
+      try {
+        data = Files.readAllBytes(getPath(key));
+        this.diskHits.incrementAndGet();
+        putInMemory(key, data);
+        return data;
+      } catch (NoSuchFileException ex) {
+        // Not cached
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Can't read cached image " + key, ex);
+      }
+    }
+    this.misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Stores an encoded image in memory and on disk.
+   *
+   * @param key The key of the image.
+   * @param data The encoded image. It must not be modified after this call.
+   */
+  public void put(Key key, byte[] data) {
+    putInMemory(key, data);
+    if (this.root != null) {
+      try {
+        MVTFiles.writeAtomically(getPath(key), data);
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Can't store cached image " + key, ex);
+      }
+    }
+  }
+
+  /**
+   * Removes all the images rendered with a style.
+   *
+   * @param fingerprint The fingerprint of the style.
+   */
+  public void invalidate(String fingerprint) {
+    synchronized (this) {
+      Iterator<Map.Entry<Key, byte[]>> it = this.memory.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Key, byte[]> entry = it.next();
+        if (entry.getKey().fingerprint.equals(fingerprint)) {
+          this.memorySize -= entry.getValue().length;
+          it.remove();
+        }
+      }
+    }
+    if (this.root != null) {
+      Path folder = this.root.resolve(fingerprint);
+      if (Files.isDirectory(folder)) {
+        try (Stream<Path> paths = Files.walk(folder)) {
+          paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ex) {
+          LOGGER.log(Level.WARNING, "Can't remove cached images in " + folder, ex);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void styleChanged(String oldFingerprint, String newFingerprint) {
+    if (!Objects.equals(oldFingerprint, newFingerprint)) {
+      invalidate(oldFingerprint);
+    }
+  }
+
+  /**
+   * Returns the file that holds an image in the disk tier.
+   *
+   * @param key The key of the image.
+   * @return The file of the image, or null without disk tier.
+   */
+  public Path getPath(Key key) {
+    if (this.root == null) {
+      return null;
+    }
+    return this.root
+            .resolve(key.fingerprint)
+            .resolve(key.format + "-" + key.width + "x" + key.height + "-" + MVTFiles.hex("SHA-1", key.sourceId + "\n" + key.params))
+            .resolve(String.valueOf(key.tile.getZ()))
+            .resolve(String.valueOf(key.tile.getX()))
+            .resolve(key.tile.getY() + "." + key.format);
+  }
+
+  public File getRoot() {
+    return this.root == null ? null : this.root.toFile();
+  }
+
+  public long getMemoryHitCount() {
+    return this.memoryHits.get();
+  }
+
+  public long getDiskHitCount() {
+    return this.diskHits.get();
+  }
+
+  public long getMissCount() {
+    return this.misses.get();
+  }
+
+  public synchronized long getMemorySize() {
+    return this.memorySize;
+  }
+
+  private void putInMemory(Key key, byte[] data) {
+    if (data.length > this.maxMemorySize) {
+      return;
+    }
+    synchronized (this) {
+      byte[] previous = this.memory.put(key, data);
+      if (previous != null) {
+        this.memorySize -= previous.length;
+      }
+      this.memorySize += data.length;
+      Iterator<byte[]> it = this.memory.values().iterator();
+      while (this.memorySize > this.maxMemorySize && it.hasNext()) {
+        this.memorySize -= it.next().length;
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MVTImageCache[memorySize=" + getMemorySize() + "/" + this.maxMemorySize
+            + ", memoryHits=" + getMemoryHitCount()
+            + ", diskHits=" + getDiskHitCount()
+            + ", misses=" + getMissCount() + "]";
+  }
+}
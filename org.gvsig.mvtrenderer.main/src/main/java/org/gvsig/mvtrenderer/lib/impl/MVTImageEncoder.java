@@ -0,0 +1,201 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encodes rendered tiles to an image format.
+ * <p>
+ * Encoders are shared by the render threads, so they must be thread safe;
+ * the implementations keep their scratch buffers per thread and reuse them
+ * between calls. The number of encoded images, the time spent encoding them
+ * and the size of the output are accumulated and can be read at any time.
+ *
+ * @author fdiaz
+ */
+public abstract class MVTImageEncoder {
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    private CountingOutputStream(OutputStream os) {
+      super(os);
+      this.count = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+      this.count += len;
+    }
+  }
+
+  private final LongAdder images = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+
+  /**
+   * Returns an encoder for a format name: "png", "png8" (palette PNG of up
+   * to 256 colors), "jpeg" or "jpg", or any other format with an ImageIO
+   * writer. The encoders are created with their default settings.
+   *
+   * @param format The format name.
+   * @return The encoder.
+   */
+  public static MVTImageEncoder get(String format) {
+    switch (format.toLowerCase(Locale.ROOT)) {
+      case "png":
+        return new MVTPngEncoder();
+      case "png8":
+        MVTPngEncoder png8 = new MVTPngEncoder();
+        png8.setMaxColors(256);
+        return png8;
+      case "jpeg":
+      case "jpg":
+        return new MVTJpegEncoder();
+      default:
+        return new MVTImageIOEncoder(format);
+    }
+  }
+
+  /**
+   * Returns the name of the format, used as extension of the cached images.
+   *
+   * @return The format name.
+   */
+  public abstract String getFormat();
+
+  /**
+   * Returns the MIME type of the encoded images.
+   *
+   * @return The MIME type.
+   */
+  public abstract String getMimeType();
+
+  /**
+   * Returns the settings of the encoder that change its output, as a string
+   * that can be part of a cache key.
+   *
+   * @return The settings.
+   */
+  public String getSettings() {
+    return "";
+  }
+
+  /**
+   * Encodes an image.
+   *
+   * @param image The image.
+   * @param os The stream to write the encoded image to. It is not closed.
+   * @return The number of bytes written.
+   * @throws IOException If the image can't be encoded or written.
+   */
+  public final long encode(BufferedImage image, OutputStream os) throws IOException {
+    long t0 = System.nanoTime();
+    CountingOutputStream counter = new CountingOutputStream(os);
+    write(image, counter);
+    counter.flush();
+    this.nanos.add(System.nanoTime() - t0);
+    this.images.increment();
+    this.bytes.add(counter.count);
+    return counter.count;
+  }
+
+  /**
+   * Writes the encoded image.
+   *
+   * @param image The image.
+   * @param os The stream to write to.
+   * @throws IOException If the image can't be encoded or written.
+   */
+  protected abstract void write(BufferedImage image, OutputStream os) throws IOException;
+
+  public long getEncodedCount() {
+    return this.images.sum();
+  }
+
+  /**
+   * Returns the time spent encoding images.
+   *
+   * @return The time in nanoseconds.
+   */
+  public long getEncodeTime() {
+    return this.nanos.sum();
+  }
+
+  /**
+   * Returns the size of the images encoded.
+   *
+   * @return The size in bytes.
+   */
+  public long getEncodedBytes() {
+    return this.bytes.sum();
+  }
+
+  /**
+   * Sets the statistics to zero.
+   */
+  public void resetStatistics() {
+    this.images.reset();
+    this.nanos.reset();
+    this.bytes.reset();
+  }
+
+  /**
+   * Returns a summary of the statistics of the encoder.
+   *
+   * @return The summary.
+   */
+  public String getStatistics() {
+    long count = getEncodedCount();
+    return String.format(
+            Locale.ROOT,
+            "%s: %d images, %d bytes (%.1f KB/image), %.2f ms/image",
+            getFormat(),
+            count,
+            getEncodedBytes(),
+            count == 0 ? 0.0 : getEncodedBytes() / 1024.0 / count,
+            count == 0 ? 0.0 : getEncodeTime() / 1e6 / count
+    );
+  }
+
+  @Override
+  public String toString() {
+    String settings = getSettings();
+    return settings.isEmpty() ? getFormat() : getFormat() + "[" + settings + "]";
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+/**
+ * Encoder that writes the images with the ImageIO writer of a format, with
+ * its default settings.
+ *
+ * @author fdiaz
+ */
+public class MVTImageIOEncoder extends MVTImageEncoder {
+
+  private final String format;
+
+  /**
+   * Creates an encoder.
+   *
+   * @param format The ImageIO format name.
+   */
+  public MVTImageIOEncoder(String format) {
+    this.format = format;
+  }
+
+  @Override
+  public String getFormat() {
+    return this.format;
+  }
+
+  @Override
+  public String getMimeType() {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(this.format);
+    if (writers.hasNext()) {
+      String[] types = writers.next().getOriginatingProvider().getMIMETypes();
+      if (types != null && types.length > 0) {
+        return types[0];
+      }
+    }
+    return "application/octet-stream";
+  }
+
+  @Override
+  protected void write(BufferedImage image, OutputStream os) throws IOException {
+    if (!ImageIO.write(image, this.format, os)) {
+      throw new IOException("No ImageIO writer for format '" + this.format + "'");
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of {@link BufferedImage#TYPE_INT_ARGB} images to render tiles into,
+ * so the raster of a tile (1 MB at 512x512) is not allocated for every
+ * render.
+ * <p>
+ * Images are handed out cleared to transparent and must be given back with
+ * {@link #release(BufferedImage)} when they are no longer used; images that
+ * are not released are simply collected. The pool keeps at most a fixed
+ * number of free images of each size. Thread safe.
+ *
+ * @author fdiaz
+ */
+public class MVTImagePool {
+
+  private final int maxImagesPerSize;
+  private final Map<Long, ArrayDeque<BufferedImage>> free = new HashMap<>();
+  private long acquires;
+  private long reuses;
+
+  /**
+   * Creates a pool that keeps up to two free images per processor of each
+   * size.
+   */
+  public MVTImagePool() {
+    this(2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxImagesPerSize The maximum number of free images of each size
+   * kept by the pool.
+   */
+  public MVTImagePool(int maxImagesPerSize) {
+    this.maxImagesPerSize = maxImagesPerSize;
+  }
+
+  /**
+   * Returns a transparent image, reusing a released one if possible.
+   *
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @return The image.
+   */
+  public BufferedImage acquire(int width, int height) {
+    BufferedImage image;
+    synchronized (this) {
+      this.acquires++;
+      ArrayDeque<BufferedImage> images = this.free.get(key(width, height));
+      image = images == null ? null : images.pollFirst();
+      if (image != null) {
+        this.reuses++;
+      }
+    }
+    if (image == null) {
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    clear(image);
+    return image;
+  }
+
+  /**
+   * Gives back an image to the pool. The image must not be used afterwards.
+   *
+   * @param image The image, or null.
+   */
+  public void release(BufferedImage image) {
+    if (image == null || image.getType() != BufferedImage.TYPE_INT_ARGB) {
+      return;
+    }
+    synchronized (this) {
+      ArrayDeque<BufferedImage> images = this.free.computeIfAbsent(key(image.getWidth(), image.getHeight()), k -> new ArrayDeque<>());
+      if (images.size() < this.maxImagesPerSize) {
+        images.addFirst(image);
+      }
+    }
+  }
+
+  /**
+   * Removes all the free images of the pool.
+   */
+  public synchronized void clear() {
+    this.free.clear();
+  }
+
+  public synchronized long getAcquireCount() {
+    return this.acquires;
+  }
+
+  public synchronized long getReuseCount() {
+    return this.reuses;
+  }
+
+  /**
+   * Clears an image to transparent, writing the pixels directly instead of
+   * going through Java2D.
+   *
+   * @param image The image.
+   */
+  public static void clear(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getDataBuffer() instanceof DataBufferInt buffer) {
+      Arrays.fill(buffer.getData(), 0);
+    } else {
+      image.getRaster().setDataElements(0, 0, new BufferedImage(image.getWidth(), image.getHeight(), image.getType()).getRaster());
+    }
+  }
+
+  private static long key(int width, int height) {
+    return ((long) width << 32) | (height & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * JPEG encoder with a configurable quality.
+ * <p>
+ * JPEG has no transparency, so the images are composed over a background
+ * color before encoding. The ImageIO writer and the RGB image used for the
+ * composition are kept per thread.
+ *
+ * @author fdiaz
+ */
+public class MVTJpegEncoder extends MVTImageEncoder {
+
+  private static final class Buffers {
+
+    private ImageWriter writer;
+    private BufferedImage rgb;
+  }
+
+  private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+  private volatile float quality;
+  private volatile boolean progressive;
+  private volatile Color background;
+
+  public MVTJpegEncoder() {
+    this.quality = 0.85f;
+    this.progressive = false;
+    this.background = Color.WHITE;
+  }
+
+  /**
+   * Sets the quality, from 0 (smallest) to 1 (best). Defaults to 0.85.
+   *
+   * @param quality The quality.
+   */
+  public void setQuality(float quality) {
+    if (quality < 0 || quality > 1) {
+      throw new IllegalArgumentException("The quality must be between 0 and 1");
+    }
+    this.quality = quality;
+  }
+
+  public float getQuality() {
+    return quality;
+  }
+
+  /**
+   * Sets whether to write progressive JPEG. Defaults to false.
+   *
+   * @param progressive true to write progressive JPEG.
+   */
+  public void setProgressive(boolean progressive) {
+    this.progressive = progressive;
+  }
+
+  public boolean isProgressive() {
+    return progressive;
+  }
+
+  /**
+   * Sets the color transparent pixels are composed over. Defaults to white.
+   *
+   * @param background The background color.
+   */
+  public void setBackground(Color background) {
+    this.background = background;
+  }
+
+  public Color getBackground() {
+    return background;
+  }
+
+  @Override
+  public String getFormat() {
+    return "jpeg";
+  }
+
+  @Override
+  public String getMimeType() {
+    return "image/jpeg";
+  }
+
+  @Override
+  public String getSettings() {
+    return String.format(
+            Locale.ROOT,
+            "quality=%.2f;progressive=%s;background=%08x",
+            this.quality,
+            this.progressive,
+            this.background.getRGB()
+    );
+  }
+
+  @Override
+  protected void write(BufferedImage image, OutputStream os) throws IOException {
+    Buffers theBuffers = this.buffers.get();
+    if (theBuffers.writer == null) {
+      Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+      if (!writers.hasNext()) {
+        throw new IOException("No ImageIO writer for format 'jpeg'");
+      }
+      theBuffers.writer = writers.next();
+    }
+    BufferedImage rgb = theBuffers.rgb;
+    if (rgb == null || rgb.getWidth() != image.getWidth() || rgb.getHeight() != image.getHeight()) {
+      rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+      theBuffers.rgb = rgb;
+    }
+    Graphics2D g2 = rgb.createGraphics();
+    try {
+      g2.setColor(this.background);
+      g2.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+      g2.drawImage(image, 0, 0, null);
+    } finally {
+      g2.dispose();
+    }
+
+    ImageWriter writer = theBuffers.writer;
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(this.quality);
+    param.setProgressiveMode(this.progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+    try (ImageOutputStream ios = new MemoryCacheImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(rgb, null, null), param);
+    } finally {
+      writer.reset();
+    }
+  }
+}
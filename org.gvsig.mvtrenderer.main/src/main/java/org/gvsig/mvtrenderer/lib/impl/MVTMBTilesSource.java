@@ -0,0 +1,433 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+import org.locationtech.jts.geom.Envelope;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Tile source that reads the tiles from a local MBTiles file.
+ * <p>
+ * The file is opened read only. The connections are kept in a pool shared by
+ * all the threads, each with its prepared statements, so reading a tile only
+ * costs a query. The tiles of a metatile are read with a single query, see
+ * {@link #getTiles(java.util.List)}.
+ * <p>
+ * MBTiles stores the rows in TMS order, from south to north; the rows are
+ * flipped so the tiles are requested with the same XYZ coordinates as the
+ * other sources. Tiles missing from the file are returned empty.
+ *
+ * @author fdiaz
+ */
+public class MVTMBTilesSource implements MVTTileSource, Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTMBTilesSource.class.getName());
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final String TILE_QUERY
+          = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+  private static final String RANGE_QUERY
+          = "SELECT tile_column, tile_row, tile_data FROM tiles"
+          + " WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+
+  private final File file;
+  private final Map<String, String> metadata;
+  private final ArrayDeque<PooledConnection> idle;
+  private int maxConnections;
+  private int openConnections;
+  private boolean closed;
+  private int minZoom;
+  private int maxZoom;
+
+  /**
+   * Opens a MBTiles file and reads its metadata.
+   *
+   * @param file The MBTiles file.
+   * @throws IOException If the file doesn't exist or isn't a MBTiles file.
+   */
+  public MVTMBTilesSource(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file.getAbsolutePath());
+    }
+    this.file = file;
+    this.idle = new ArrayDeque<>();
+    this.maxConnections = Runtime.getRuntime().availableProcessors();
+    this.openConnections = 0;
+    this.closed = false;
+    this.metadata = Collections.unmodifiableMap(this.readMetadata());
+  }
+
+  /**
+   * Sets the maximum number of connections open at the same time. Threads
+   * that read tiles when all of them are in use wait for one to be
+   * released. Defaults to the number of processors.
+   *
+   * @param maxConnections The maximum number of connections.
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("maxConnections must be greater than 0");
+    }
+    this.maxConnections = maxConnections;
+    this.notifyAll();
+  }
+
+  public synchronized int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the name/value pairs of the metadata table.
+   *
+   * @return The metadata.
+   */
+  public Map<String, String> getMetadata() {
+    return metadata;
+  }
+
+  public String getName() {
+    return this.metadata.get("name");
+  }
+
+  /**
+   * Returns the format of the tiles, "pbf" for vector tiles.
+   *
+   * @return The format of the tiles.
+   */
+  public String getFormat() {
+    return this.metadata.get("format");
+  }
+
+  /**
+   * Returns the lowest zoom level of the file, from the metadata or, if
+   * missing, from the tiles table.
+   *
+   * @return The minimum zoom level.
+   */
+  public int getMinZoom() {
+    return minZoom;
+  }
+
+  /**
+   * Returns the deepest zoom level of the file, from the metadata or, if
+   * missing, from the tiles table. It can be used as the source max zoom of
+   * the renders, see {@link MVTTile#setSourceMaxZoom(int)}.
+   *
+   * @return The maximum zoom level.
+   */
+  public int getMaxZoom() {
+    return maxZoom;
+  }
+
+  /**
+   * Returns the area covered by the tiles, in WGS84 degrees, or null if the
+   * metadata doesn't have it.
+   *
+   * @return The bounds of the tiles.
+   */
+  public Envelope getBounds() {
+    String bounds = this.metadata.get("bounds");
+    if (StringUtils.isBlank(bounds)) {
+      return null;
+    }
+    String[] values = StringUtils.split(bounds, ',');
+    if (values.length != 4) {
+      return null;
+    }
+    try {
+      return new Envelope(
+              Double.parseDouble(values[0].trim()),
+              Double.parseDouble(values[2].trim()),
+              Double.parseDouble(values[1].trim()),
+              Double.parseDouble(values[3].trim())
+      );
+    } catch (NumberFormatException ex) {
+      LOGGER.log(Level.WARNING, "Invalid bounds '" + bounds + "' in " + this.file);
+      return null;
+    }
+  }
+
+  @Override
+  public String getId() {
+    return "mbtiles:" + this.file.getAbsolutePath();
+  }
+
+  @Override
+  public byte[] getTile(MVTTileId tile) throws IOException {
+    PooledConnection connection = this.acquire();
+    try {
+      PreparedStatement statement = connection.tile;
+      statement.setInt(1, tile.getZ());
+      statement.setInt(2, tile.getX());
+      statement.setInt(3, flipY(tile.getZ(), tile.getY()));
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          byte[] data = rs.getBytes(1);
+          return data == null ? EMPTY : data;
+        }
+      }
+      return EMPTY;
+    } catch (SQLException ex) {
+      connection.broken = true;
+      throw new IOException("Can't read tile " + tile + " from " + this.file, ex);
+    } finally {
+      this.release(connection);
+    }
+  }
+
+  /**
+   * Reads the tiles of each zoom level with a single query over the
+   * rectangle that contains them, so it is intended for blocks of
+   * neighbouring tiles such as metatiles.
+   *
+   * @param tiles The tiles to read.
+   * @return The bytes of the tiles found in the file.
+   * @throws IOException If the tiles can't be read.
+   */
+  @Override
+  public Map<MVTTileId, byte[]> getTiles(List<MVTTileId> tiles) throws IOException {
+    Map<Integer, List<MVTTileId>> byZoom = new TreeMap<>();
+    for (MVTTileId tile : tiles) {
+      byZoom.computeIfAbsent(tile.getZ(), k -> new ArrayList<>()).add(tile);
+    }
+    Map<MVTTileId, byte[]> data = new LinkedHashMap<>();
+    PooledConnection connection = this.acquire();
+    try {
+      for (Map.Entry<Integer, List<MVTTileId>> entry : byZoom.entrySet()) {
+        int z = entry.getKey();
+        Set<MVTTileId> requested = new HashSet<>(entry.getValue());
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (MVTTileId tile : requested) {
+          minX = Math.min(minX, tile.getX());
+          maxX = Math.max(maxX, tile.getX());
+          minY = Math.min(minY, tile.getY());
+          maxY = Math.max(maxY, tile.getY());
+        }
+        PreparedStatement statement = connection.range;
+        statement.setInt(1, z);
+        statement.setInt(2, minX);
+        statement.setInt(3, maxX);
+        statement.setInt(4, flipY(z, maxY));
+        statement.setInt(5, flipY(z, minY));
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            MVTTileId tile = new MVTTileId(z, rs.getInt(1), flipY(z, rs.getInt(2)));
+            if (requested.contains(tile)) {
+              byte[] bytes = rs.getBytes(3);
+              data.put(tile, bytes == null ? EMPTY : bytes);
+            }
+          }
+        }
+      }
+      return data;
+    } catch (SQLException ex) {
+      connection.broken = true;
+      throw new IOException("Can't read tiles from " + this.file, ex);
+    } finally {
+      this.release(connection);
+    }
+  }
+
+  @Override
+  public boolean hasBatchReads() {
+    return true;
+  }
+
+  /**
+   * Closes all the connections. Connections in use are closed when they are
+   * released.
+   */
+  @Override
+  public synchronized void close() {
+    this.closed = true;
+    for (PooledConnection connection : this.idle) {
+      connection.close();
+    }
+    this.openConnections -= this.idle.size();
+    this.idle.clear();
+    this.notifyAll();
+  }
+
+  private static int flipY(int z, int y) {
+    return (1 << z) - 1 - y;
+  }
+
+  private Map<String, String> readMetadata() throws IOException {
+    Map<String, String> values = new LinkedHashMap<>();
+    PooledConnection connection = this.acquire();
+    try (Statement statement = connection.connection.createStatement()) {
+      try (ResultSet rs = statement.executeQuery("SELECT name, value FROM metadata")) {
+        while (rs.next()) {
+          values.put(rs.getString(1), rs.getString(2));
+        }
+      }
+      this.minZoom = parseZoom(values.get("minzoom"), -1);
+      this.maxZoom = parseZoom(values.get("maxzoom"), -1);
+      if (this.minZoom < 0 || this.maxZoom < 0) {
+        try (ResultSet rs = statement.executeQuery("SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles")) {
+          if (rs.next()) {
+            this.minZoom = this.minZoom < 0 ? rs.getInt(1) : this.minZoom;
+            this.maxZoom = this.maxZoom < 0 ? rs.getInt(2) : this.maxZoom;
+          }
+        }
+      }
+    } catch (SQLException ex) {
+      connection.broken = true;
+      throw new IOException("Can't read the metadata of " + this.file, ex);
+    } finally {
+      this.release(connection);
+    }
+    return values;
+  }
+
+  private static int parseZoom(String value, int defaultValue) {
+    if (StringUtils.isBlank(value)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      return defaultValue;
+    }
+  }
+
+  private synchronized PooledConnection acquire() throws IOException {
+    while (true) {
+      if (this.closed) {
+        throw new IOException("The tile source " + this.file + " is closed");
+      }
+      PooledConnection connection = this.idle.pollFirst();
+      if (connection != null) {
+        return connection;
+      }
+      if (this.openConnections < this.maxConnections) {
+        connection = this.open();
+        this.openConnections++;
+        return connection;
+      }
+      try {
+        this.wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a connection to " + this.file);
+      }
+    }
+  }
+
+  private synchronized void release(PooledConnection connection) {
+    if (this.closed || connection.broken || this.openConnections > this.maxConnections) {
+      connection.close();
+      this.openConnections--;
+    } else {
+      this.idle.addFirst(connection);
+    }
+    this.notifyAll();
+  }
+
+  private PooledConnection open() throws IOException {
+    SQLiteConfig config = new SQLiteConfig();
+    config.setReadOnly(true);
+    Connection connection = null;
+    try {
+      connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getAbsolutePath(), config.toProperties());
+      return new PooledConnection(
+              connection,
+              connection.prepareStatement(TILE_QUERY),
+              connection.prepareStatement(RANGE_QUERY)
+      );
+    } catch (SQLException ex) {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException ex2) {
+          // Ignore
+        }
+      }
+      throw new IOException("Can't open " + this.file, ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return this.getId();
+  }
+
+  /**
+   * A connection of the pool with its prepared statements.
+   */
+  private static final class PooledConnection {
+
+    private final Connection connection;
+    private final PreparedStatement tile;
+    private final PreparedStatement range;
+    private boolean broken;
+
+    private PooledConnection(Connection connection, PreparedStatement tile, PreparedStatement range) {
+      this.connection = connection;
+      this.tile = tile;
+      this.range = range;
+      this.broken = false;
+    }
+
+    private void close() {
+      try {
+        this.connection.close();
+      } catch (SQLException ex) {
+        LOGGER.log(Level.FINE, "Can't close connection", ex);
+      }
+    }
+  }
+}
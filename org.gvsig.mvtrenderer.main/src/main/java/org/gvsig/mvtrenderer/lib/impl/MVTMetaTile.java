@@ -0,0 +1,524 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.api.feature.type.AttributeDescriptor;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.gvsig.mvtrenderer.lib.impl.MVTTile.MVTDataSource;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+
+/**
+ * A block of columns x rows neighbouring tiles that are rendered together.
+ * <p>
+ * The data of all the tiles is merged, the block is painted in a single
+ * render over the union of their envelopes and the result is cut into one
+ * image per tile. Each tile is clipped to its own envelope before merging,
+ * so the features that the neighbours carry in their buffers are not
+ * painted twice, and labels are placed once for the whole block, so they
+ * are not cut by the inner tile edges. A point on an inner edge is kept by
+ * the tile on its maximum side only. The parts of a polygon that the inner
+ * edges split are joined back by the id the tiles give to the polygon, so
+ * the outlines don't draw the edges; polygons without id, and lines, are
+ * left split, so a line crossing an inner edge is labelled as two lines.
+ * The render setup is paid once per block instead of once per tile.
+ *
+ * @author fdiaz
+ */
+public class MVTMetaTile {
+
+  private final MVTTileId origin;
+  private final int columns;
+  private final int rows;
+  private final MVTTile tile;
+
+  /**
+   * Creates a metatile.
+   *
+   * @param origin The top left tile of the block.
+   * @param columns The number of tile columns.
+   * @param rows The number of tile rows.
+   */
+  public MVTMetaTile(MVTTileId origin, int columns, int rows) {
+    if (columns < 1 || rows < 1) {
+      throw new IllegalArgumentException("The metatile must have at least one column and one row");
+    }
+    this.origin = origin;
+    this.columns = columns;
+    this.rows = rows;
+    this.tile = new MVTTile();
+  }
+
+  /**
+   * Returns the metatile of a grid of columns x rows metatiles that contains
+   * the given tile. The metatiles on the edges of the world are cropped.
+   *
+   * @param tile The tile.
+   * @param columns The number of tile columns of the metatiles.
+   * @param rows The number of tile rows of the metatiles.
+   * @return The metatile containing the tile.
+   */
+  public static MVTMetaTile of(MVTTileId tile, int columns, int rows) {
+    int numTiles = 1 << tile.getZ();
+    int x = (tile.getX() / columns) * columns;
+    int y = (tile.getY() / rows) * rows;
+    return new MVTMetaTile(
+            new MVTTileId(tile.getZ(), x, y),
+            Math.min(columns, numTiles - x),
+            Math.min(rows, numTiles - y)
+    );
+  }
+
+  public MVTTileId getOrigin() {
+    return origin;
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Sets the render parameters, see {@link MVTTile#setParams(java.util.Map)}.
+   *
+   * @param params The render parameters.
+   */
+  public void setParams(Map<String, String> params) {
+    this.tile.setParams(params);
+  }
+
+  /**
+   * Sets the metrics that record the phases of the downloads and renders of
+   * the block, see {@link MVTTile#setMetrics(MVTMetrics)}.
+   *
+   * @param metrics The metrics, or null to not measure them.
+   */
+  public void setMetrics(MVTMetrics metrics) {
+    this.tile.setMetrics(metrics);
+  }
+
+  /**
+   * Sets a profiler to record the cost of each style layer of the renders of
+   * the block, see {@link MVTTile#setProfiler(MVTRenderProfiler)}.
+   *
+   * @param profiler The profiler, or null to render normally.
+   */
+  public void setProfiler(MVTRenderProfiler profiler) {
+    this.tile.setProfiler(profiler);
+  }
+
+  /**
+   * Returns the fields to request for the tiles of the block, see
+   * {@link MVTTile#getFieldsByLayer(MVTStyles, Envelope, int)}.
+   *
+   * @param mvtStyle The style the block will be rendered with.
+   * @param tileWidth The width of each tile in pixels.
+   * @return A map of field names for each source layer.
+   */
+  public Map<String, Set<String>> getFieldsByLayer(MVTStyles mvtStyle, int tileWidth) {
+    return this.tile.getFieldsByLayer(mvtStyle, getEnvelope(), tileWidth * this.columns);
+  }
+
+  /**
+   * Returns the tiles of the block, ordered by row and then by column.
+   *
+   * @return The tiles of the block.
+   */
+  public List<MVTTileId> getTiles() {
+    return MVTTileId.range(
+            origin.getZ(),
+            origin.getX(), origin.getX() + columns - 1,
+            origin.getY(), origin.getY() + rows - 1
+    );
+  }
+
+  /**
+   * Returns the union of the envelopes of the tiles of the block.
+   *
+   * @return The envelope of the block.
+   */
+  public Envelope getEnvelope() {
+    Envelope envelope = new Envelope(origin.getEnvelope());
+    envelope.expandToInclude(new MVTTileId(origin.getZ(), origin.getX() + columns - 1, origin.getY() + rows - 1).getEnvelope());
+    return envelope;
+  }
+
+  /**
+   * Reads all the tiles of the block from a tile source.
+   *
+   * @param source The tile source.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If a tile can't be read.
+   */
+  public void download(MVTTileSource source, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    this.download(source.getTiles(getTiles()), fieldsByLayer);
+  }
+
+  /**
+   * Decodes and merges the data of the tiles of the block. Tiles of the block
+   * that are missing from the map, or mapped to null, are left empty.
+   *
+   * @param data The raw bytes of the tiles.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If a tile can't be decoded.
+   */
+  public void download(Map<MVTTileId, byte[]> data, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    Map<MVTTileId, ByteBuffer> buffers = new LinkedHashMap<>();
+    for (Map.Entry<MVTTileId, byte[]> entry : data.entrySet()) {
+      if (entry.getValue() != null) {
+        buffers.put(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+      }
+    }
+    this.downloadBuffers(buffers, fieldsByLayer);
+  }
+
+  /**
+   * Decodes and merges the data of the tiles of the block, see
+   * {@link MVTTileSource#getTileBuffer(org.gvsig.mvtrenderer.lib.impl.MVTTileId)}.
+   * Tiles of the block that are missing from the map, or mapped to null, are
+   * left empty.
+   *
+   * @param data The tiles, between the position and the limit of each buffer.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If a tile can't be decoded.
+   */
+  public void downloadBuffers(Map<MVTTileId, ByteBuffer> data, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    Map<MVTTileId, Map<String, MVTDataSource>> tiles = new LinkedHashMap<>();
+    for (MVTTileId id : getTiles()) {
+      ByteBuffer buffer = data.get(id);
+      if (buffer == null) {
+        continue;
+      }
+      MVTTile part = new MVTTile();
+      part.setStrictProjection(this.tile.isStrictProjection());
+      part.setClipBuffer(this.tile.getClipBuffer());
+      part.setMetrics(this.tile.getMetrics());
+      part.download(buffer, id.getZ(), id.getY(), id.getX(), id.getEnvelope(), fieldsByLayer);
+      tiles.put(id, part.getSourceLayers());
+    }
+    this.setSourceLayers(tiles);
+  }
+
+  /**
+   * Merges the decoded layers of the tiles of the block, for instance taken
+   * from a {@link MVTDecodedTileCache}. Each tile must have been decoded
+   * with its own envelope. Tiles of the block that are missing from the map
+   * are left empty. The given layers are not modified.
+   *
+   * @param tiles The decoded layers of each tile.
+   */
+  public void setSourceLayers(Map<MVTTileId, Map<String, MVTDataSource>> tiles) {
+    Envelope envelope = getEnvelope();
+    long start = System.nanoTime();
+    Map<String, List<MVTDataSource>> parts = new LinkedHashMap<>();
+    for (MVTTileId id : getTiles()) {
+      Map<String, MVTDataSource> sourceLayers = tiles.get(id);
+      if (sourceLayers == null) {
+        continue;
+      }
+      Envelope clipEnvelope = getClipEnvelope(id.getEnvelope());
+      for (MVTDataSource dataSource : sourceLayers.values()) {
+        if (dataSource.features == null) {
+          continue;
+        }
+        MVTDataSource part = dataSource;
+        if (dataSource.features instanceof MVTFeatureCollection collection) {
+          part = new MVTDataSource(collection.clip(clipEnvelope, true), dataSource.name, dataSource.envelope);
+        }
+        parts.computeIfAbsent(dataSource.name, k -> new ArrayList<>()).add(part);
+      }
+    }
+    Map<String, MVTDataSource> sourceLayers = new LinkedHashMap<>();
+    for (Map.Entry<String, List<MVTDataSource>> entry : parts.entrySet()) {
+      sourceLayers.put(entry.getKey(), merge(entry.getKey(), entry.getValue(), envelope));
+    }
+    if (this.tile.getMetrics() != null) {
+      this.tile.getMetrics().record(this.origin, MVTMetrics.Phase.CONVERT, System.nanoTime() - start, 0);
+    }
+    this.tile.setSourceLayers(origin.getZ(), origin.getY(), origin.getX(), envelope, sourceLayers);
+  }
+
+  /**
+   * Renders the block and cuts the result in one image per tile.
+   *
+   * @param mvtStyle The MVT style definition.
+   * @param tileWidth The width of each tile in pixels.
+   * @param tileHeight The height of each tile in pixels.
+   * @return The image of each tile of the block.
+   */
+  public Map<MVTTileId, BufferedImage> render(MVTStyles mvtStyle, int tileWidth, int tileHeight) {
+    return render(mvtStyle, tileWidth, tileHeight, null);
+  }
+
+  /**
+   * Renders the block and cuts the result in one image per tile, taking the
+   * images from a pool. The image of the whole block is given back to the
+   * pool; the images of the tiles belong to the caller, who can release
+   * them when done.
+   *
+   * @param mvtStyle The MVT style definition.
+   * @param tileWidth The width of each tile in pixels.
+   * @param tileHeight The height of each tile in pixels.
+   * @param pool The pool of images, or null to create new images.
+   * @return The image of each tile of the block.
+   */
+  public Map<MVTTileId, BufferedImage> render(MVTStyles mvtStyle, int tileWidth, int tileHeight, MVTImagePool pool) {
+    BufferedImage image = acquire(pool, tileWidth * columns, tileHeight * rows);
+    Map<MVTTileId, BufferedImage> images = new LinkedHashMap<>();
+    try {
+      this.tile.render(mvtStyle, image);
+      for (MVTTileId id : getTiles()) {
+        int col = id.getX() - origin.getX();
+        int row = id.getY() - origin.getY();
+        BufferedImage tileImage = acquire(pool, tileWidth, tileHeight);
+        image.getSubimage(col * tileWidth, row * tileHeight, tileWidth, tileHeight).copyData(tileImage.getRaster());
+        if (this.tile.isShowTileLimits()) {
+          Graphics2D g2 = tileImage.createGraphics();
+          g2.setColor(Color.red);
+          g2.setStroke(new BasicStroke(1));
+          g2.drawRect(0, 0, tileWidth - 1, tileHeight - 1);
+          g2.dispose();
+        }
+        images.put(id, tileImage);
+      }
+    } finally {
+      if (pool != null) {
+        pool.release(image);
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Returns the envelope to which the data of a tile of the block is
+   * clipped: the envelope of the tile on the inner edges of the block, so
+   * the neighbours don't overlap, and the tile plus its buffer on the outer
+   * edges, as when the tile is rendered alone. The points are clipped to it
+   * half open, so those on an inner edge are kept by one tile only.
+   */
+  private Envelope getClipEnvelope(Envelope tileEnvelope) {
+    Envelope envelope = getEnvelope();
+    double marginX = tileEnvelope.getWidth();
+    double marginY = tileEnvelope.getHeight();
+    return new Envelope(
+            tileEnvelope.getMinX() <= envelope.getMinX() ? tileEnvelope.getMinX() - marginX : tileEnvelope.getMinX(),
+            tileEnvelope.getMaxX() >= envelope.getMaxX() ? tileEnvelope.getMaxX() + marginX : tileEnvelope.getMaxX(),
+            tileEnvelope.getMinY() <= envelope.getMinY() ? tileEnvelope.getMinY() - marginY : tileEnvelope.getMinY(),
+            tileEnvelope.getMaxY() >= envelope.getMaxY() ? tileEnvelope.getMaxY() + marginY : tileEnvelope.getMaxY()
+    );
+  }
+
+  private static BufferedImage acquire(MVTImagePool pool, int width, int height) {
+    if (pool == null) {
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    return pool.acquire(width, height);
+  }
+
+  /**
+   * Merges the features of the same source layer of several tiles in a
+   * single collection. When the tiles have different attributes the features
+   * are rebuilt with the union of them. The polygons of different tiles with
+   * the same id that touch are joined in a single feature, with the
+   * attributes of the first one.
+   */
+  private static MVTDataSource merge(String name, List<MVTDataSource> parts, Envelope envelope) {
+    if (parts.size() == 1) {
+      return new MVTDataSource(parts.get(0).features, name, envelope);
+    }
+    SimpleFeatureType type = parts.get(0).features.getSchema();
+    boolean sameType = true;
+    for (MVTDataSource part : parts) {
+      sameType = sameType && type.equals(part.features.getSchema());
+    }
+    if (!sameType) {
+      Set<String> attributeNames = new LinkedHashSet<>();
+      for (MVTDataSource part : parts) {
+        for (AttributeDescriptor descriptor : part.features.getSchema().getAttributeDescriptors()) {
+          attributeNames.add(descriptor.getLocalName());
+        }
+      }
+      attributeNames.remove(MVTFeatureCollection.GEOMETRY);
+      SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+      tb.setName(name);
+      tb.add(MVTFeatureCollection.GEOMETRY, Geometry.class);
+      for (String attr : attributeNames) {
+        tb.add(attr, Object.class);
+      }
+      if (type.getCoordinateReferenceSystem() != null) {
+        tb.setCRS(type.getCoordinateReferenceSystem());
+      }
+      type = tb.buildFeatureType();
+    }
+
+    // The parts of the split polygons, keyed by id, and the rows of each
+    // tile that were joined to the polygon of a previous tile.
+    Map<Long, JoinedPolygon> polygons = new HashMap<>();
+    List<BitSet> joinedRows = new ArrayList<>();
+    for (int p = 0; p < parts.size(); p++) {
+      BitSet joined = new BitSet();
+      if (parts.get(p).features instanceof MVTFeatureCollection collection) {
+        for (int row = 0; row < collection.size(); row++) {
+          Long id = collection.getId(row);
+          Geometry geometry = collection.getGeometry(row);
+          if (id == null || !(geometry instanceof Polygonal)) {
+            continue;
+          }
+          JoinedPolygon polygon = polygons.get(id);
+          if (polygon == null) {
+            polygons.put(id, new JoinedPolygon(p, row, geometry));
+          } else if (polygon.part != p && polygon.envelope.intersects(geometry.getEnvelopeInternal())) {
+            polygon.add(geometry);
+            joined.set(row);
+          }
+        }
+      }
+      joinedRows.add(joined);
+    }
+    Map<Long, Geometry> joinedPolygons = new HashMap<>();
+    for (Map.Entry<Long, JoinedPolygon> entry : polygons.entrySet()) {
+      if (entry.getValue().parts.size() > 1) {
+        joinedPolygons.put(entry.getKey(), entry.getValue().join());
+      }
+    }
+
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(type);
+    int geometryIndex = type.indexOf(MVTFeatureCollection.GEOMETRY);
+    for (int p = 0; p < parts.size(); p++) {
+      MVTDataSource part = parts.get(p);
+      SimpleFeatureType partType = part.features.getSchema();
+      int[] indexes = new int[partType.getAttributeCount()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = type.indexOf(partType.getDescriptor(i).getLocalName());
+      }
+      if (part.features instanceof MVTFeatureCollection collection) {
+        BitSet joined = joinedRows.get(p);
+        for (int row = 0; row < collection.size(); row++) {
+          if (joined.get(row)) {
+            continue;
+          }
+          Long id = collection.getId(row);
+          Geometry geometry = collection.getGeometry(row);
+          JoinedPolygon polygon = id == null ? null : polygons.get(id);
+          if (polygon != null && polygon.part == p && polygon.row == row && joinedPolygons.containsKey(id)) {
+            geometry = joinedPolygons.get(id);
+          }
+          builder.add(geometry);
+          if (id != null) {
+            builder.setId(id);
+          }
+          for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0 && indexes[i] != geometryIndex) {
+              builder.set(indexes[i], collection.getAttribute(row, i));
+            }
+          }
+        }
+        continue;
+      }
+      try (SimpleFeatureIterator it = part.features.features()) {
+        while (it.hasNext()) {
+          SimpleFeature f = it.next();
+          builder.add((Geometry) f.getDefaultGeometry());
+          for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0 && indexes[i] != geometryIndex) {
+              builder.set(indexes[i], f.getAttribute(i));
+            }
+          }
+        }
+      }
+    }
+    return new MVTDataSource(builder.build(), name, envelope);
+  }
+
+  /**
+   * The parts of a polygon that the inner edges of the block split, and the
+   * tile and row of the first one, whose feature keeps the joined polygon.
+   */
+  private static class JoinedPolygon {
+
+    private final int part;
+    private final int row;
+    private final List<Geometry> parts = new ArrayList<>();
+    private final Envelope envelope = new Envelope();
+
+    private JoinedPolygon(int part, int row, Geometry geometry) {
+      this.part = part;
+      this.row = row;
+      add(geometry);
+    }
+
+    private void add(Geometry geometry) {
+      this.parts.add(geometry);
+      this.envelope.expandToInclude(geometry.getEnvelopeInternal());
+    }
+
+    /**
+     * Returns the union of the parts, which dissolves the edges they share,
+     * or all the parts as a multipolygon if they can't be joined.
+     */
+    private Geometry join() {
+      List<Polygon> polygons = new ArrayList<>();
+      for (Geometry geometry : this.parts) {
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+          polygons.add((Polygon) geometry.getGeometryN(i));
+        }
+      }
+      GeometryFactory factory = this.parts.get(0).getFactory();
+      MultiPolygon multiPolygon = factory.createMultiPolygon(polygons.toArray(Polygon[]::new));
+      try {
+        Geometry union = multiPolygon.union();
+        if (union instanceof Polygonal && !union.isEmpty()) {
+          return union;
+        }
+      } catch (RuntimeException ex) {
+        // Invalid geometries are left to the renderer.
+      }
+      return multiPolygon;
+    }
+  }
+}
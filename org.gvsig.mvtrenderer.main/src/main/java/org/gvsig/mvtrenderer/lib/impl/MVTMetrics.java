@@ -0,0 +1,342 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of the phases of rendering tiles: fetch, gunzip,
+ * decode, feature conversion, style lookup, paint and encode, with the
+ * features and vertices decoded for each source layer and the bytes read
+ * and written.
+ * <p>
+ * A metrics object is given to the tiles, metatiles or batch renderers to
+ * measure; they don't measure anything without one. The totals can be read
+ * with the getters or through JMX, see {@link #register(String)}, and
+ * listeners receive every measure with the tile it belongs to, for instance
+ * to log the slow tiles. The counters are {@link LongAdder}s, so sharing a
+ * metrics object between threads doesn't add contention.
+ *
+ * @author fdiaz
+ */
+public class MVTMetrics implements MVTMetricsMXBean {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTMetrics.class.getName());
+
+  /**
+   * The measured phases.
+   */
+  public enum Phase {
+    /**
+     * Reading the raw tile from its source.
+     */
+    FETCH,
+    /**
+     * Uncompressing gzipped tiles.
+     */
+    GUNZIP,
+    /**
+     * Decoding the protobuf into feature collections.
+     */
+    DECODE,
+    /**
+     * Converting decoded data for a render: merging the tiles of a metatile
+     * and clipping the data of overzoomed tiles.
+     */
+    CONVERT,
+    /**
+     * Selecting the style layers and their features for a render.
+     */
+    STYLE,
+    /**
+     * Painting with the StreamingRenderer.
+     */
+    PAINT,
+    /**
+     * Encoding the image.
+     */
+    ENCODE
+  }
+
+  /**
+   * Receives the measures as they are taken. Listeners are called from the
+   * rendering threads, so they must be fast and thread safe.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a phase of a tile ends.
+     *
+     * @param tile The tile, or the origin of the metatile.
+     * @param phase The phase.
+     * @param nanos The time taken in nanoseconds.
+     * @param bytes The bytes read, uncompressed or written, or 0.
+     */
+    default void phaseCompleted(MVTTileId tile, Phase phase, long nanos, long bytes) {
+    }
+
+    /**
+     * Called when a source layer of a tile is decoded.
+     *
+     * @param tile The tile.
+     * @param sourceLayer The name of the source layer.
+     * @param features The number of features.
+     * @param vertices The number of vertices.
+     */
+    default void layerDecoded(MVTTileId tile, String sourceLayer, int features, long vertices) {
+    }
+  }
+
+  private final LongAdder[] counts;
+  private final LongAdder[] times;
+  private final Map<String, LongAdder> layerFeatures;
+  private final Map<String, LongAdder> layerVertices;
+  private final LongAdder bytesIn;
+  private final LongAdder bytesOut;
+  private final List<Listener> listeners;
+  private ObjectName objectName;
+
+  public MVTMetrics() {
+    Phase[] phases = Phase.values();
+    this.counts = new LongAdder[phases.length];
+    this.times = new LongAdder[phases.length];
+    for (int i = 0; i < phases.length; i++) {
+      this.counts[i] = new LongAdder();
+      this.times[i] = new LongAdder();
+    }
+    this.layerFeatures = new ConcurrentHashMap<>();
+    this.layerVertices = new ConcurrentHashMap<>();
+    this.bytesIn = new LongAdder();
+    this.bytesOut = new LongAdder();
+    this.listeners = new CopyOnWriteArrayList<>();
+  }
+
+  public void addListener(Listener listener) {
+    this.listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * Records the time of a phase of a tile. The bytes of the fetch phase are
+   * added to the bytes in and those of the encode phase to the bytes out.
+   *
+   * @param tile The tile, or null if unknown.
+   * @param phase The phase.
+   * @param nanos The time taken in nanoseconds.
+   * @param bytes The bytes read, uncompressed or written, or 0.
+   */
+  public void record(MVTTileId tile, Phase phase, long nanos, long bytes) {
+    this.counts[phase.ordinal()].increment();
+    this.times[phase.ordinal()].add(nanos);
+    if (phase == Phase.FETCH) {
+      this.bytesIn.add(bytes);
+    } else if (phase == Phase.ENCODE) {
+      this.bytesOut.add(bytes);
+    }
+    for (Listener listener : this.listeners) {
+      try {
+        listener.phaseCompleted(tile, phase, nanos, bytes);
+      } catch (RuntimeException ex) {
+        LOGGER.log(Level.WARNING, "Metrics listener failed", ex);
+      }
+    }
+  }
+
+  /**
+   * Records the features of a decoded source layer.
+   *
+   * @param tile The tile, or null if unknown.
+   * @param sourceLayer The name of the source layer.
+   * @param features The number of features.
+   * @param vertices The number of vertices.
+   */
+  public void recordLayer(MVTTileId tile, String sourceLayer, int features, long vertices) {
+    this.layerFeatures.computeIfAbsent(sourceLayer, k -> new LongAdder()).add(features);
+    this.layerVertices.computeIfAbsent(sourceLayer, k -> new LongAdder()).add(vertices);
+    for (Listener listener : this.listeners) {
+      try {
+        listener.layerDecoded(tile, sourceLayer, features, vertices);
+      } catch (RuntimeException ex) {
+        LOGGER.log(Level.WARNING, "Metrics listener failed", ex);
+      }
+    }
+  }
+
+  public long getCount(Phase phase) {
+    return this.counts[phase.ordinal()].sum();
+  }
+
+  /**
+   * Returns the accumulated time of a phase.
+   *
+   * @param phase The phase.
+   * @return The time in nanoseconds.
+   */
+  public long getTime(Phase phase) {
+    return this.times[phase.ordinal()].sum();
+  }
+
+  @Override
+  public Map<String, Long> getPhaseCounts() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Phase phase : Phase.values()) {
+      values.put(phase.name(), getCount(phase));
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getPhaseTimes() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Phase phase : Phase.values()) {
+      values.put(phase.name(), getTime(phase));
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getLayerFeatures() {
+    return sums(this.layerFeatures);
+  }
+
+  @Override
+  public Map<String, Long> getLayerVertices() {
+    return sums(this.layerVertices);
+  }
+
+  @Override
+  public long getBytesIn() {
+    return this.bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return this.bytesOut.sum();
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i].reset();
+      this.times[i].reset();
+    }
+    this.layerFeatures.clear();
+    this.layerVertices.clear();
+    this.bytesIn.reset();
+    this.bytesOut.reset();
+  }
+
+  @Override
+  public String getStatistics() {
+    StringBuilder builder = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      long count = getCount(phase);
+      if (count == 0) {
+        continue;
+      }
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(String.format(
+              Locale.ROOT,
+              "%s %d x %.2f ms",
+              phase.name().toLowerCase(Locale.ROOT),
+              count,
+              getTime(phase) / 1e6 / count
+      ));
+    }
+    if (builder.length() > 0) {
+      builder.append(", ");
+    }
+    builder.append(getBytesIn()).append(" bytes in, ").append(getBytesOut()).append(" bytes out");
+    return builder.toString();
+  }
+
+  /**
+   * Registers the metrics in the platform MBean server with the name
+   * "org.gvsig.mvtrenderer:type=Metrics,name=<name>". A registered
+   * metrics object with the same name is replaced.
+   *
+   * @param name The name of the metrics, for instance the name of the map.
+   */
+  public synchronized void register(String name) {
+    this.unregister();
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName theName = new ObjectName("org.gvsig.mvtrenderer:type=Metrics,name=" + ObjectName.quote(name));
+      if (server.isRegistered(theName)) {
+        server.unregisterMBean(theName);
+      }
+      server.registerMBean(this, theName);
+      this.objectName = theName;
+    } catch (JMException ex) {
+      LOGGER.log(Level.WARNING, "Can't register the metrics " + name + " in JMX", ex);
+    }
+  }
+
+  /**
+   * Unregisters the metrics from the platform MBean server, if they were
+   * registered.
+   */
+  public synchronized void unregister() {
+    if (this.objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+    } catch (JMException ex) {
+      LOGGER.log(Level.FINE, "Can't unregister the metrics " + this.objectName, ex);
+    }
+    this.objectName = null;
+  }
+
+  @Override
+  public String toString() {
+    return getStatistics();
+  }
+
+  private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : adders.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().sum());
+    }
+    return values;
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link MVTMetrics}. The maps are keyed by phase or by
+ * source layer name.
+ *
+ * @author fdiaz
+ */
+public interface MVTMetricsMXBean {
+
+  /**
+   * Returns how many times each phase ran.
+   *
+   * @return The count of each phase.
+   */
+  Map<String, Long> getPhaseCounts();
+
+  /**
+   * Returns the accumulated time of each phase.
+   *
+   * @return The time of each phase in nanoseconds.
+   */
+  Map<String, Long> getPhaseTimes();
+
+  /**
+   * Returns the number of decoded features of each source layer.
+   *
+   * @return The features of each source layer.
+   */
+  Map<String, Long> getLayerFeatures();
+
+  /**
+   * Returns the number of decoded vertices of each source layer.
+   *
+   * @return The vertices of each source layer.
+   */
+  Map<String, Long> getLayerVertices();
+
+  /**
+   * Returns the bytes of the fetched tiles, as stored in the source.
+   *
+   * @return The bytes read.
+   */
+  long getBytesIn();
+
+  /**
+   * Returns the bytes of the encoded images.
+   *
+   * @return The bytes written.
+   */
+  long getBytesOut();
+
+  /**
+   * Returns a one line summary of the metrics.
+   *
+   * @return The summary.
+   */
+  String getStatistics();
+
+  /**
+   * Resets all the metrics to zero.
+   */
+  void reset();
+}
@@ -0,0 +1,492 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Tile source that reads the tiles from a local PMTiles v3 archive.
+ * <p>
+ * The archive is memory mapped. The root directory is parsed when the
+ * archive is opened and the leaf directories the first time they are
+ * needed, keeping the most recently used ones in a cache, so a lookup is a
+ * couple of binary searches. {@link #getTileBuffer(MVTTileId)} returns a
+ * read only view of the mapped tile that the decoder reads without copying.
+ * <p>
+ * Only archives of vector tiles with gzip or no internal compression are
+ * supported; the tiles themselves can be gzipped. Tiles missing from the
+ * archive are returned empty.
+ *
+ * @author fdiaz
+ */
+public class MVTPMTilesSource implements MVTTileSource, Closeable {
+
+  private static final int HEADER_LENGTH = 127;
+
+  private static final int COMPRESSION_UNKNOWN = 0;
+  private static final int COMPRESSION_NONE = 1;
+  private static final int COMPRESSION_GZIP = 2;
+
+  private static final int TILE_TYPE_UNKNOWN = 0;
+  private static final int TILE_TYPE_MVT = 1;
+
+  /**
+   * Size of the mapped regions. Each region is mapped with an overlap with
+   * the next one, so any tile smaller than the overlap is inside one region.
+   */
+  private static final long REGION_SIZE = 1L << 30;
+  private static final long REGION_OVERLAP = 1L << 24;
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+  private final File file;
+  private final FileChannel channel;
+  private final long size;
+  private final MappedByteBuffer[] regions;
+
+  private final long rootDirectoryOffset;
+  private final long rootDirectoryLength;
+  private final long metadataOffset;
+  private final long metadataLength;
+  private final long leafDirectoriesOffset;
+  private final long tileDataOffset;
+  private final int internalCompression;
+  private final int tileCompression;
+  private final int minZoom;
+  private final int maxZoom;
+  private final Envelope bounds;
+
+  private final Directory root;
+  private final Map<Long, Directory> leafCache;
+  private int leafCacheSize;
+  private final LongAdder leafCacheHits;
+  private final LongAdder leafCacheMisses;
+  private Map<String, Object> metadata;
+
+  /**
+   * Opens a PMTiles archive and reads its header and root directory.
+   *
+   * @param file The PMTiles file.
+   * @throws IOException If the file doesn't exist, isn't a PMTiles v3
+   * archive or uses an unsupported compression or tile type.
+   */
+  public MVTPMTilesSource(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file.getAbsolutePath());
+    }
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      this.size = this.channel.size();
+      int numRegions = (int) Math.max(1, (this.size + REGION_SIZE - 1) / REGION_SIZE);
+      this.regions = new MappedByteBuffer[numRegions];
+      for (int i = 0; i < numRegions; i++) {
+        long start = i * REGION_SIZE;
+        long length = Math.min(this.size - start, REGION_SIZE + REGION_OVERLAP);
+        this.regions[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      }
+
+      if (this.size < HEADER_LENGTH) {
+        throw new IOException("Not a PMTiles archive: " + file);
+      }
+      ByteBuffer header = this.slice(0, HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      byte[] magic = new byte[7];
+      header.get(0, magic);
+      if (!"PMTiles".equals(new String(magic, StandardCharsets.US_ASCII))) {
+        throw new IOException("Not a PMTiles archive: " + file);
+      }
+      if (header.get(7) != 3) {
+        throw new IOException("Unsupported PMTiles version " + header.get(7) + " in " + file);
+      }
+      this.rootDirectoryOffset = header.getLong(8);
+      this.rootDirectoryLength = header.getLong(16);
+      this.metadataOffset = header.getLong(24);
+      this.metadataLength = header.getLong(32);
+      this.leafDirectoriesOffset = header.getLong(40);
+      this.tileDataOffset = header.getLong(56);
+      this.internalCompression = header.get(97) & 0xFF;
+      this.tileCompression = header.get(98) & 0xFF;
+      int tileType = header.get(99) & 0xFF;
+      this.minZoom = header.get(100) & 0xFF;
+      this.maxZoom = header.get(101) & 0xFF;
+      this.bounds = new Envelope(
+              header.getInt(102) / 1e7,
+              header.getInt(110) / 1e7,
+              header.getInt(106) / 1e7,
+              header.getInt(114) / 1e7
+      );
+      if (this.internalCompression != COMPRESSION_NONE && this.internalCompression != COMPRESSION_GZIP && this.internalCompression != COMPRESSION_UNKNOWN) {
+        throw new IOException("Unsupported internal compression " + this.internalCompression + " in " + file);
+      }
+      if (this.tileCompression != COMPRESSION_NONE && this.tileCompression != COMPRESSION_GZIP && this.tileCompression != COMPRESSION_UNKNOWN) {
+        throw new IOException("Unsupported tile compression " + this.tileCompression + " in " + file);
+      }
+      if (tileType != TILE_TYPE_MVT && tileType != TILE_TYPE_UNKNOWN) {
+        throw new IOException("Unsupported tile type " + tileType + " in " + file + ", only vector tiles can be rendered");
+      }
+
+      this.root = Directory.parse(this.uncompress(this.slice(this.rootDirectoryOffset, this.rootDirectoryLength)));
+    } catch (IOException | RuntimeException ex) {
+      this.channel.close();
+      throw ex;
+    }
+    this.leafCacheSize = 64;
+    this.leafCache = new LinkedHashMap<>(16, 0.75f, true);
+    this.leafCacheHits = new LongAdder();
+    this.leafCacheMisses = new LongAdder();
+  }
+
+  /**
+   * Sets the number of leaf directories kept parsed in memory. Defaults to
+   * 64, enough for the directories touched by a seeding front.
+   *
+   * @param leafCacheSize The maximum number of cached leaf directories.
+   */
+  public void setLeafCacheSize(int leafCacheSize) {
+    if (leafCacheSize < 0) {
+      throw new IllegalArgumentException("leafCacheSize can't be negative");
+    }
+    synchronized (this.leafCache) {
+      this.leafCacheSize = leafCacheSize;
+      this.trimLeafCache();
+    }
+  }
+
+  public int getLeafCacheSize() {
+    synchronized (this.leafCache) {
+      return leafCacheSize;
+    }
+  }
+
+  public long getLeafCacheHits() {
+    return this.leafCacheHits.sum();
+  }
+
+  public long getLeafCacheMisses() {
+    return this.leafCacheMisses.sum();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getMinZoom() {
+    return minZoom;
+  }
+
+  /**
+   * Returns the deepest zoom level of the archive. It can be used as the
+   * source max zoom of the renders, see {@link MVTTile#setSourceMaxZoom(int)}.
+   *
+   * @return The maximum zoom level.
+   */
+  public int getMaxZoom() {
+    return maxZoom;
+  }
+
+  /**
+   * Returns the area covered by the tiles, in WGS84 degrees.
+   *
+   * @return The bounds of the tiles.
+   */
+  public Envelope getBounds() {
+    return bounds;
+  }
+
+  /**
+   * Returns the JSON metadata of the archive, parsed the first time it is
+   * requested.
+   *
+   * @return The metadata.
+   * @throws IOException If the metadata can't be read.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized Map<String, Object> getMetadata() throws IOException {
+    if (this.metadata == null) {
+      if (this.metadataLength == 0) {
+        this.metadata = Collections.emptyMap();
+      } else {
+        ByteBuffer data = this.uncompress(this.slice(this.metadataOffset, this.metadataLength));
+        byte[] bytes = new byte[data.remaining()];
+        data.get(data.position(), bytes);
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8)) {
+          this.metadata = Collections.unmodifiableMap((JSONObject) new JSONParser().parse(reader));
+        } catch (ParseException | ClassCastException ex) {
+          throw new IOException("Invalid metadata in " + this.file, ex);
+        }
+      }
+    }
+    return this.metadata;
+  }
+
+  @Override
+  public String getId() {
+    return "pmtiles:" + this.file.getAbsolutePath();
+  }
+
+  @Override
+  public byte[] getTile(MVTTileId tile) throws IOException {
+    ByteBuffer data = this.getTileBuffer(tile);
+    byte[] bytes = new byte[data.remaining()];
+    data.get(data.position(), bytes);
+    return bytes;
+  }
+
+  @Override
+  public ByteBuffer getTileBuffer(MVTTileId tile) throws IOException {
+    if (tile.getZ() < this.minZoom || tile.getZ() > this.maxZoom) {
+      return EMPTY;
+    }
+    long tileId = getTileId(tile.getZ(), tile.getX(), tile.getY());
+    Directory directory = this.root;
+    // The spec allows at most three levels of leaf directories.
+    for (int depth = 0; depth < 4; depth++) {
+      int i = directory.find(tileId);
+      if (i < 0) {
+        return EMPTY;
+      }
+      if (directory.runLengths[i] == 0) {
+        directory = this.getLeaf(this.leafDirectoriesOffset + directory.offsets[i], directory.lengths[i]);
+        continue;
+      }
+      if (tileId - directory.tileIds[i] < directory.runLengths[i]) {
+        return this.slice(this.tileDataOffset + directory.offsets[i], directory.lengths[i]);
+      }
+      return EMPTY;
+    }
+    throw new IOException("Too many levels of leaf directories in " + this.file);
+  }
+
+  /**
+   * Returns the id of a tile in the Hilbert curve order of PMTiles.
+   *
+   * @param z The zoom level.
+   * @param x The tile X coordinate.
+   * @param y The tile Y coordinate.
+   * @return The tile id.
+   */
+  static long getTileId(int z, int x, int y) {
+    long id = ((1L << (2 * z)) - 1) / 3;
+    long n = 1L << z;
+    long tx = x;
+    long ty = y;
+    for (long s = n / 2; s > 0; s /= 2) {
+      int rx = (tx & s) > 0 ? 1 : 0;
+      int ry = (ty & s) > 0 ? 1 : 0;
+      id += s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          tx = s - 1 - tx;
+          ty = s - 1 - ty;
+        }
+        long t = tx;
+        tx = ty;
+        ty = t;
+      }
+    }
+    return id;
+  }
+
+  private Directory getLeaf(long offset, long length) throws IOException {
+    synchronized (this.leafCache) {
+      Directory directory = this.leafCache.get(offset);
+      if (directory != null) {
+        this.leafCacheHits.increment();
+        return directory;
+      }
+    }
+    this.leafCacheMisses.increment();
+    // Parsed out of the lock; two threads may parse the same leaf.
+    Directory directory = Directory.parse(this.uncompress(this.slice(offset, length)));
+    synchronized (this.leafCache) {
+      this.leafCache.put(offset, directory);
+      this.trimLeafCache();
+    }
+    return directory;
+  }
+
+  private void trimLeafCache() {
+    while (this.leafCache.size() > this.leafCacheSize) {
+      Long eldest = this.leafCache.keySet().iterator().next();
+      this.leafCache.remove(eldest);
+    }
+  }
+
+  /**
+   * Returns a read only view of a range of the file. Ranges that cross the
+   * boundary of a mapped region, only possible for ranges larger than the
+   * overlap of the regions, are copied.
+   */
+  private ByteBuffer slice(long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > this.size) {
+      throw new IOException("Range " + offset + "+" + length + " out of " + this.file);
+    }
+    if (length == 0) {
+      return EMPTY;
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Range " + offset + "+" + length + " too large in " + this.file);
+    }
+    int index = (int) (offset / REGION_SIZE);
+    MappedByteBuffer region = this.regions[index];
+    long start = offset - index * REGION_SIZE;
+    if (start + length <= region.capacity()) {
+      return region.slice((int) start, (int) length).asReadOnlyBuffer();
+    }
+    ByteBuffer copy = ByteBuffer.allocate((int) length);
+    while (copy.hasRemaining()) {
+      if (this.channel.read(copy, offset + copy.position()) < 0) {
+        throw new IOException("Unexpected end of " + this.file);
+      }
+    }
+    return copy.flip();
+  }
+
+  private ByteBuffer uncompress(ByteBuffer data) throws IOException {
+    if (this.internalCompression != COMPRESSION_GZIP) {
+      return data;
+    }
+    byte[] bytes = new byte[data.remaining()];
+    data.get(data.position(), bytes);
+    try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return ByteBuffer.wrap(gzip.readAllBytes());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The mapped regions are released by the garbage collector.
+    this.channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return this.getId();
+  }
+
+  /**
+   * A parsed directory: the entries sorted by tile id, in parallel arrays.
+   * Entries with a run length of 0 point to leaf directories.
+   */
+  private static final class Directory {
+
+    private final long[] tileIds;
+    private final long[] runLengths;
+    private final long[] offsets;
+    private final long[] lengths;
+
+    private Directory(int numEntries) {
+      this.tileIds = new long[numEntries];
+      this.runLengths = new long[numEntries];
+      this.offsets = new long[numEntries];
+      this.lengths = new long[numEntries];
+    }
+
+    /**
+     * Returns the index of the last entry with a tile id less than or equal
+     * to the given one, or -1.
+     */
+    private int find(long tileId) {
+      int low = 0;
+      int high = this.tileIds.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (this.tileIds[mid] <= tileId) {
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return high;
+    }
+
+    private static Directory parse(ByteBuffer data) throws IOException {
+      int[] pos = new int[]{data.position()};
+      int end = data.limit();
+      long numEntries = readVarint(data, pos, end);
+      if (numEntries < 0 || numEntries > (end - pos[0])) {
+        throw new IOException("Corrupt PMTiles directory");
+      }
+      Directory directory = new Directory((int) numEntries);
+      long lastId = 0;
+      for (int i = 0; i < numEntries; i++) {
+        lastId += readVarint(data, pos, end);
+        directory.tileIds[i] = lastId;
+      }
+      for (int i = 0; i < numEntries; i++) {
+        directory.runLengths[i] = readVarint(data, pos, end);
+      }
+      for (int i = 0; i < numEntries; i++) {
+        directory.lengths[i] = readVarint(data, pos, end);
+      }
+      for (int i = 0; i < numEntries; i++) {
+        long value = readVarint(data, pos, end);
+        if (value == 0 && i > 0) {
+          // Contiguous with the previous entry.
+          directory.offsets[i] = directory.offsets[i - 1] + directory.lengths[i - 1];
+        } else {
+          directory.offsets[i] = value - 1;
+        }
+      }
+      return directory;
+    }
+
+    private static long readVarint(ByteBuffer data, int[] pos, int end) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos[0] >= end) {
+          throw new IOException("Truncated PMTiles directory");
+        }
+        byte b = data.get(pos[0]++);
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in PMTiles directory");
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stage of the {@link MVTBatchRenderer} pipeline: a fixed number of worker
+ * threads fed by a bounded queue.
+ * <p>
+ * When the queue is full, {@link #execute(Runnable)} blocks the submitter
+ * until a task leaves the queue, so a slow stage holds back the stages that
+ * feed it instead of piling up their output. Tasks submitted from the
+ * threads of the stage itself are never blocked, as the stage could not
+ * drain its queue while they wait.
+ * <p>
+ * The stage measures its queue depth, the time the tasks wait in the queue
+ * and the time they take to run.
+ *
+ * @author fdiaz
+ */
+public class MVTPipelineStage implements Executor {
+
+  private static final ThreadLocal<MVTPipelineStage> CURRENT = new ThreadLocal<>();
+
+  private final String name;
+  private final int threads;
+  private final int queueCapacity;
+  private final ThreadPoolExecutor executor;
+  private final Semaphore slots;
+
+  private final AtomicInteger queued = new AtomicInteger();
+  private final LongAccumulator maxQueued = new LongAccumulator(Math::max, 0);
+  private final LongAdder tasks = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder runNanos = new LongAdder();
+
+  /**
+   * Creates a stage and starts its threads.
+   *
+   * @param name The name of the stage, used for the thread names.
+   * @param threads The number of worker threads.
+   * @param queueCapacity The number of tasks that can wait in the queue
+   * before the submitters are blocked.
+   */
+  public MVTPipelineStage(String name, int threads, int queueCapacity) {
+    if (threads < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("The stage must have at least one thread and a queue of at least one task");
+    }
+    this.name = name;
+    this.threads = threads;
+    this.queueCapacity = queueCapacity;
+    this.slots = new Semaphore(queueCapacity);
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            (Runnable r) -> {
+              Thread t = new Thread(() -> {
+                CURRENT.set(this);
+                r.run();
+              }, "mvt-" + name + "-" + counter.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+    );
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Queues a task, waiting for room in the queue if it is full.
+   *
+   * @param task The task.
+   * @throws RejectedExecutionException If the stage has been shut down or
+   * the submitter is interrupted while waiting.
+   */
+  @Override
+  public void execute(Runnable task) {
+    boolean bounded = CURRENT.get() != this;
+    if (bounded) {
+      try {
+        this.slots.acquire();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting for the " + this.name + " stage", ex);
+      }
+    }
+    long queuedAt = System.nanoTime();
+    this.maxQueued.accumulate(this.queued.incrementAndGet());
+    try {
+      this.executor.execute(() -> {
+        long start = System.nanoTime();
+        this.queued.decrementAndGet();
+        if (bounded) {
+          this.slots.release();
+        }
+        this.waitNanos.add(start - queuedAt);
+        try {
+          task.run();
+        } finally {
+          this.runNanos.add(System.nanoTime() - start);
+          this.tasks.increment();
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      this.queued.decrementAndGet();
+      if (bounded) {
+        this.slots.release();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Stops the threads of the stage, interrupting the running tasks and
+   * dropping the queued ones.
+   */
+  public void shutdownNow() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Returns the number of tasks waiting in the queue.
+   *
+   * @return The queue depth.
+   */
+  public int getQueueDepth() {
+    return this.queued.get();
+  }
+
+  public int getMaxQueueDepth() {
+    return (int) this.maxQueued.get();
+  }
+
+  /**
+   * Returns the number of tasks that are running.
+   *
+   * @return The number of busy threads.
+   */
+  public int getActiveCount() {
+    return this.executor.getActiveCount();
+  }
+
+  public long getTaskCount() {
+    return this.tasks.sum();
+  }
+
+  /**
+   * Returns the total time the finished tasks have waited in the queue.
+   *
+   * @return The time in nanoseconds.
+   */
+  public long getWaitTime() {
+    return this.waitNanos.sum();
+  }
+
+  /**
+   * Returns the total time the finished tasks have taken to run.
+   *
+   * @return The time in nanoseconds.
+   */
+  public long getRunTime() {
+    return this.runNanos.sum();
+  }
+
+  /**
+   * Returns a summary of the metrics of the stage.
+   *
+   * @return The summary.
+   */
+  public String getStatistics() {
+    long count = getTaskCount();
+    return String.format(
+            Locale.ROOT,
+            "%s: %d threads, %d tasks, queue %d (max %d of %d), wait %.2f ms/task, run %.2f ms/task",
+            this.name,
+            this.threads,
+            count,
+            getQueueDepth(),
+            getMaxQueueDepth(),
+            this.queueCapacity,
+            count == 0 ? 0.0 : getWaitTime() / 1e6 / count,
+            count == 0 ? 0.0 : getRunTime() / 1e6 / count
+    );
+  }
+
+  @Override
+  public String toString() {
+    return getStatistics();
+  }
+}
@@ -0,0 +1,470 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder with configurable compression level, row filter and deflate
+ * strategy, that can also write palette images (PNG8).
+ * <p>
+ * Unlike the ImageIO writer it reads the pixels of {@code TYPE_INT_ARGB}
+ * images directly from their raster, writes opaque images as RGB instead of
+ * RGBA, and keeps the deflater and the row buffers of each thread for the
+ * next image. With {@link #setMaxColors(int)} the colors are reduced to a
+ * palette by {@link MVTColorQuantizer}; basemap tiles usually have few
+ * colors and their palette images are much smaller and faster to compress.
+ *
+ * @author fdiaz
+ */
+public class MVTPngEncoder extends MVTImageEncoder {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_PALETTE = 3;
+  private static final int COLOR_TYPE_RGBA = 6;
+
+  /**
+   * The PNG row filters. ADAPTIVE chooses for each row the filter with the
+   * smallest sum of absolute differences, as libpng does.
+   */
+  public enum Filter {
+    NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+  }
+
+  private static final class Buffers {
+
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] out = new byte[64 * 1024];
+    private byte[] chunk = new byte[8];
+    private int[] pixels = new int[0];
+    private byte[] indexes = new byte[0];
+    private byte[] previous = new byte[0];
+    private byte[] current = new byte[0];
+    // The filtered row for each filter, with the filter type in front.
+    private final byte[][] filtered = new byte[5][0];
+    private MVTColorQuantizer quantizer;
+  }
+
+  private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+  private volatile int compressionLevel;
+  private volatile Filter filter;
+  private volatile int deflateStrategy;
+  private volatile int maxColors;
+
+  public MVTPngEncoder() {
+    this.compressionLevel = 4;
+    this.filter = Filter.NONE;
+    this.deflateStrategy = Deflater.DEFAULT_STRATEGY;
+    this.maxColors = 0;
+  }
+
+  /**
+   * Sets the deflate compression level, from 0 (none) to 9 (smallest).
+   * Defaults to 4.
+   *
+   * @param compressionLevel The compression level.
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new IllegalArgumentException("The compression level must be between 0 and 9");
+    }
+    this.compressionLevel = compressionLevel;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets the row filter of RGB and RGBA images. Defaults to NONE: rendered
+   * tiles are mostly flat fills, that deflate compresses better unfiltered.
+   * Palette images are always written without filter, as recommended by the
+   * PNG specification.
+   *
+   * @param filter The filter.
+   */
+  public void setFilter(Filter filter) {
+    this.filter = filter;
+  }
+
+  public Filter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Sets the deflate strategy: {@link Deflater#DEFAULT_STRATEGY},
+   * {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+   *
+   * @param deflateStrategy The strategy.
+   */
+  public void setDeflateStrategy(int deflateStrategy) {
+    if (deflateStrategy != Deflater.DEFAULT_STRATEGY && deflateStrategy != Deflater.FILTERED && deflateStrategy != Deflater.HUFFMAN_ONLY) {
+      throw new IllegalArgumentException("Invalid deflate strategy " + deflateStrategy);
+    }
+    this.deflateStrategy = deflateStrategy;
+  }
+
+  public int getDeflateStrategy() {
+    return deflateStrategy;
+  }
+
+  /**
+   * Sets the maximum number of colors of a palette image, from 2 to 256, or
+   * 0 to write true color images. Defaults to 0.
+   *
+   * @param maxColors The maximum number of colors.
+   */
+  public void setMaxColors(int maxColors) {
+    if (maxColors != 0 && (maxColors < 2 || maxColors > 256)) {
+      throw new IllegalArgumentException("The number of colors must be 0 or between 2 and 256");
+    }
+    this.maxColors = maxColors;
+  }
+
+  public int getMaxColors() {
+    return maxColors;
+  }
+
+  @Override
+  public String getFormat() {
+    return this.maxColors > 0 ? "png8" : "png";
+  }
+
+  @Override
+  public String getMimeType() {
+    return "image/png";
+  }
+
+  @Override
+  public String getSettings() {
+    return "level=" + this.compressionLevel
+            + ";filter=" + this.filter
+            + ";strategy=" + this.deflateStrategy
+            + ";colors=" + this.maxColors;
+  }
+
+  @Override
+  protected void write(BufferedImage image, OutputStream os) throws IOException {
+    Buffers theBuffers = this.buffers.get();
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int count = width * height;
+    if (theBuffers.pixels.length < count) {
+      theBuffers.pixels = new int[count];
+    }
+    int[] pixels = theBuffers.pixels;
+    boolean opaque = readPixels(image, pixels);
+
+    if (theBuffers.deflater == null) {
+      theBuffers.deflater = new Deflater();
+    }
+    Deflater deflater = theBuffers.deflater;
+    deflater.reset();
+    deflater.setLevel(this.compressionLevel);
+    deflater.setStrategy(this.deflateStrategy);
+
+    os.write(SIGNATURE);
+    int theMaxColors = this.maxColors;
+    if (theMaxColors > 0) {
+      writePalette(theBuffers, os, pixels, width, height, theMaxColors);
+    } else {
+      writeTrueColor(theBuffers, os, pixels, width, height, opaque);
+    }
+    writeChunk(theBuffers, os, "IEND", new byte[0], 0);
+  }
+
+  /**
+   * Copies the ARGB pixels of the image, with the fully transparent pixels
+   * as 0, and returns whether all of them are opaque.
+   */
+  private static boolean readPixels(BufferedImage image, int[] pixels) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    Raster raster = image.getRaster();
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB
+            && raster.getDataBuffer() instanceof DataBufferInt buffer
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel) {
+      int[] data = buffer.getData();
+      int stride = sampleModel.getScanlineStride();
+      int offset = buffer.getOffset()
+              - raster.getSampleModelTranslateY() * stride
+              - raster.getSampleModelTranslateX();
+      for (int y = 0; y < height; y++) {
+        System.arraycopy(data, offset + y * stride, pixels, y * width, width);
+      }
+    } else {
+      image.getRGB(0, 0, width, height, pixels, 0, width);
+    }
+    boolean opaque = true;
+    for (int i = 0, n = width * height; i < n; i++) {
+      int alpha = pixels[i] >>> 24;
+      if (alpha != 0xFF) {
+        opaque = false;
+        if (alpha == 0) {
+          pixels[i] = 0;
+        }
+      }
+    }
+    return opaque;
+  }
+
+  private void writeTrueColor(Buffers theBuffers, OutputStream os, int[] pixels, int width, int height, boolean opaque) throws IOException {
+    int bpp = opaque ? 3 : 4;
+    writeHeader(theBuffers, os, width, height, 8, opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA);
+    int rowBytes = width * bpp;
+    byte[] previous = ensure(theBuffers.previous, rowBytes);
+    byte[] current = ensure(theBuffers.current, rowBytes);
+    theBuffers.previous = previous;
+    theBuffers.current = current;
+    Arrays.fill(previous, 0, rowBytes, (byte) 0);
+    for (int i = 0; i < theBuffers.filtered.length; i++) {
+      theBuffers.filtered[i] = ensure(theBuffers.filtered[i], rowBytes + 1);
+    }
+    Filter theFilter = this.filter;
+    for (int y = 0; y < height; y++) {
+      int p = y * width;
+      int j = 0;
+      for (int x = 0; x < width; x++) {
+        int argb = pixels[p + x];
+        current[j++] = (byte) (argb >> 16);
+        current[j++] = (byte) (argb >> 8);
+        current[j++] = (byte) argb;
+        if (!opaque) {
+          current[j++] = (byte) (argb >>> 24);
+        }
+      }
+      byte[] row = filter(theBuffers, theFilter, current, previous, rowBytes, bpp);
+      deflate(theBuffers, os, row, rowBytes + 1, false);
+      byte[] tmp = previous;
+      previous = current;
+      current = tmp;
+    }
+    theBuffers.previous = previous;
+    theBuffers.current = current;
+    deflate(theBuffers, os, null, 0, true);
+  }
+
+  private void writePalette(Buffers theBuffers, OutputStream os, int[] pixels, int width, int height, int theMaxColors) throws IOException {
+    int count = width * height;
+    if (theBuffers.indexes.length < count) {
+      theBuffers.indexes = new byte[count];
+    }
+    if (theBuffers.quantizer == null) {
+      theBuffers.quantizer = new MVTColorQuantizer();
+    }
+    byte[] indexes = theBuffers.indexes;
+    int[] palette = theBuffers.quantizer.quantize(pixels, count, theMaxColors, indexes);
+
+    // Translucent colors go first so the tRNS chunk is as short as possible.
+    int[] order = new int[palette.length];
+    int[] remap = new int[palette.length];
+    int translucent = 0;
+    for (int i = 0; i < palette.length; i++) {
+      if ((palette[i] >>> 24) != 0xFF) {
+        order[translucent++] = i;
+      }
+    }
+    int n = translucent;
+    for (int i = 0; i < palette.length; i++) {
+      if ((palette[i] >>> 24) == 0xFF) {
+        order[n++] = i;
+      }
+    }
+    byte[] plte = new byte[palette.length * 3];
+    byte[] trns = new byte[translucent];
+    for (int i = 0; i < order.length; i++) {
+      int argb = palette[order[i]];
+      remap[order[i]] = i;
+      plte[i * 3] = (byte) (argb >> 16);
+      plte[i * 3 + 1] = (byte) (argb >> 8);
+      plte[i * 3 + 2] = (byte) argb;
+      if (i < translucent) {
+        trns[i] = (byte) (argb >>> 24);
+      }
+    }
+
+    int bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+    writeHeader(theBuffers, os, width, height, bitDepth, COLOR_TYPE_PALETTE);
+    writeChunk(theBuffers, os, "PLTE", plte, plte.length);
+    if (translucent > 0) {
+      writeChunk(theBuffers, os, "tRNS", trns, trns.length);
+    }
+    int rowBytes = (width * bitDepth + 7) / 8;
+    byte[] row = ensure(theBuffers.filtered[0], rowBytes + 1);
+    theBuffers.filtered[0] = row;
+    int pixelsPerByte = 8 / bitDepth;
+    for (int y = 0; y < height; y++) {
+      Arrays.fill(row, 0, rowBytes + 1, (byte) 0);
+      int p = y * width;
+      for (int x = 0; x < width; x++) {
+        int index = remap[indexes[p + x] & 0xFF];
+        int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+        row[1 + x / pixelsPerByte] |= (byte) (index << shift);
+      }
+      deflate(theBuffers, os, row, rowBytes + 1, false);
+    }
+    deflate(theBuffers, os, null, 0, true);
+  }
+
+  /**
+   * Filters a row and returns the buffer with the filter type followed by
+   * the filtered bytes.
+   */
+  private static byte[] filter(Buffers theBuffers, Filter theFilter, byte[] current, byte[] previous, int rowBytes, int bpp) {
+    if (theFilter != Filter.ADAPTIVE) {
+      byte[] out = theBuffers.filtered[theFilter.ordinal()];
+      filter(theFilter.ordinal(), current, previous, rowBytes, bpp, out);
+      return out;
+    }
+    byte[] best = null;
+    long bestSum = Long.MAX_VALUE;
+    for (int type = 0; type < 5; type++) {
+      byte[] out = theBuffers.filtered[type];
+      long sum = filter(type, current, previous, rowBytes, bpp, out);
+      if (sum < bestSum) {
+        bestSum = sum;
+        best = out;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Applies a filter type to a row and returns the sum of the absolute
+   * values of the filtered bytes, taken as signed.
+   */
+  private static long filter(int type, byte[] current, byte[] previous, int rowBytes, int bpp, byte[] out) {
+    out[0] = (byte) type;
+    long sum = 0;
+    for (int i = 0; i < rowBytes; i++) {
+      int x = current[i] & 0xFF;
+      int a = i >= bpp ? current[i - bpp] & 0xFF : 0;
+      int b = previous[i] & 0xFF;
+      int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+      int value;
+      switch (type) {
+        case 1:
+          value = x - a;
+          break;
+        case 2:
+          value = x - b;
+          break;
+        case 3:
+          value = x - ((a + b) >> 1);
+          break;
+        case 4:
+          value = x - paeth(a, b, c);
+          break;
+        default:
+          value = x;
+      }
+      out[i + 1] = (byte) value;
+      sum += Math.abs((byte) value);
+    }
+    return sum;
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    return pb <= pc ? b : c;
+  }
+
+  /**
+   * Compresses data and writes the compressed output as IDAT chunks.
+   */
+  private static void deflate(Buffers theBuffers, OutputStream os, byte[] data, int length, boolean finish) throws IOException {
+    Deflater deflater = theBuffers.deflater;
+    if (finish) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        int n = deflater.deflate(theBuffers.out);
+        if (n > 0) {
+          writeChunk(theBuffers, os, "IDAT", theBuffers.out, n);
+        }
+      }
+      return;
+    }
+    deflater.setInput(data, 0, length);
+    while (!deflater.needsInput()) {
+      int n = deflater.deflate(theBuffers.out);
+      if (n > 0) {
+        writeChunk(theBuffers, os, "IDAT", theBuffers.out, n);
+      }
+    }
+  }
+
+  private static void writeHeader(Buffers theBuffers, OutputStream os, int width, int height, int bitDepth, int colorType) throws IOException {
+    byte[] ihdr = new byte[13];
+    putInt(ihdr, 0, width);
+    putInt(ihdr, 4, height);
+    ihdr[8] = (byte) bitDepth;
+    ihdr[9] = (byte) colorType;
+    // compression, filter method and interlace are 0
+    writeChunk(theBuffers, os, "IHDR", ihdr, ihdr.length);
+  }
+
+  private static void writeChunk(Buffers theBuffers, OutputStream os, String type, byte[] data, int length) throws IOException {
+    byte[] header = theBuffers.chunk;
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    putInt(header, 0, length);
+    System.arraycopy(typeBytes, 0, header, 4, 4);
+    os.write(header, 0, 8);
+    os.write(data, 0, length);
+    CRC32 crc = theBuffers.crc;
+    crc.reset();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    putInt(header, 0, (int) crc.getValue());
+    os.write(header, 0, 4);
+  }
+
+  private static void putInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  private static byte[] ensure(byte[] buffer, int length) {
+    return buffer.length < length ? new byte[length] : buffer;
+  }
+}
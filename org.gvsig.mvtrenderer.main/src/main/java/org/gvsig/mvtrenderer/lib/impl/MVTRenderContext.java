@@ -0,0 +1,172 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.RenderListener;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * The GeoTools objects needed to paint a tile: a {@link MapContent}, a
+ * {@link StreamingRenderer} and its rendering hints.
+ * <p>
+ * They are not thread safe but can be reused for any number of renders, so
+ * each thread keeps its own context, returned by
+ * {@link #get(CoordinateReferenceSystem)}, instead of creating them for
+ * every tile. The layers added for a render are removed when it ends.
+ *
+ * @author fdiaz
+ */
+public class MVTRenderContext {
+
+  private static final ThreadLocal<MVTRenderContext> CONTEXTS = new ThreadLocal<>();
+
+  private final CoordinateReferenceSystem mapCRS;
+  private final MapContent mapContent;
+  private final StreamingRenderer renderer;
+
+  private MVTRenderContext(CoordinateReferenceSystem mapCRS) {
+    this.mapCRS = mapCRS;
+    this.mapContent = new MapContent();
+    if (mapCRS != null) {
+      this.mapContent.getViewport().setCoordinateReferenceSystem(mapCRS);
+    }
+    this.renderer = new StreamingRenderer();
+    this.renderer.setMapContent(this.mapContent);
+    // Create smoothing hints
+    RenderingHints hints = new RenderingHints(
+            RenderingHints.KEY_ANTIALIASING,
+            RenderingHints.VALUE_ANTIALIAS_ON
+    );
+    // Also recommended to enable text smoothing if labels are present
+    hints.put(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    this.renderer.setJava2DHints(hints);
+  }
+
+  /**
+   * Returns the render context of the current thread for a map CRS,
+   * creating it if the thread has none or has one for another CRS.
+   *
+   * @param mapCRS The CRS of the map, or null.
+   * @return The context.
+   */
+  public static MVTRenderContext get(CoordinateReferenceSystem mapCRS) {
+    MVTRenderContext context = CONTEXTS.get();
+    if (context == null || !Objects.equals(context.mapCRS, mapCRS)) {
+      if (context != null) {
+        context.mapContent.dispose();
+      }
+      context = new MVTRenderContext(mapCRS);
+      CONTEXTS.set(context);
+    }
+    return context;
+  }
+
+  /**
+   * Paints layers.
+   *
+   * @param g2 The graphics to paint on.
+   * @param drawingArea The area of the graphics to paint.
+   * @param envelope The area of the map to paint.
+   * @param layersToDraw The layers, in drawing order.
+   */
+  public void paint(Graphics2D g2, Rectangle drawingArea, Envelope envelope, List<MVTLayer> layersToDraw) {
+    List<Layer> layers = new ArrayList<>(layersToDraw.size());
+    try {
+      for (MVTLayer layer : layersToDraw) {
+        FeatureLayer featureLayer = new FeatureLayer(layer.getFeatures(), layer.getStyle(), layer.getId());
+        this.mapContent.addLayer(featureLayer);
+        layers.add(featureLayer);
+      }
+      this.renderer.paint(g2, drawingArea, envelope);
+    } finally {
+      for (Layer layer : layers) {
+        this.mapContent.removeLayer(layer);
+        layer.dispose();
+      }
+    }
+  }
+
+  /**
+   * Paints layers one at a time, recording in a profiler the time taken and
+   * the features drawn by each one, see {@link MVTRenderProfiler}.
+   *
+   * @param g2 The graphics to paint on.
+   * @param drawingArea The area of the graphics to paint.
+   * @param envelope The area of the map to paint.
+   * @param layersToDraw The layers, in drawing order.
+   * @param profiler The profiler.
+   * @param zoom The zoom level the paints are recorded under.
+   */
+  public void paint(Graphics2D g2, Rectangle drawingArea, Envelope envelope, List<MVTLayer> layersToDraw, MVTRenderProfiler profiler, int zoom) {
+    FeatureCounter counter = new FeatureCounter();
+    this.renderer.addRenderListener(counter);
+    try {
+      for (MVTLayer layer : layersToDraw) {
+        FeatureLayer featureLayer = new FeatureLayer(layer.getFeatures(), layer.getStyle(), layer.getId());
+        this.mapContent.addLayer(featureLayer);
+        counter.features = 0;
+        long start = System.nanoTime();
+        try {
+          this.renderer.paint(g2, drawingArea, envelope);
+        } finally {
+          this.mapContent.removeLayer(featureLayer);
+          featureLayer.dispose();
+        }
+        profiler.record(zoom, layer.getId(), System.nanoTime() - start, counter.features);
+      }
+    } finally {
+      this.renderer.removeRenderListener(counter);
+    }
+  }
+
+  /**
+   * Counts the features drawn by the renderer.
+   */
+  private static final class FeatureCounter implements RenderListener {
+
+    private long features;
+
+    @Override
+    public void featureRenderer(SimpleFeature feature) {
+      this.features++;
+    }
+
+    @Override
+    public void errorOccurred(Exception e) {
+      // The renderer logs its own errors.
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates the cost of painting each style layer over many renders, per
+ * zoom level, to find the style layers that make the tiles slow.
+ * <p>
+ * When a tile has a profiler, see {@link MVTTile#setProfiler(MVTRenderProfiler)},
+ * its style layers are painted one at a time, timing each paint and counting
+ * the features drawn. The labels of each layer are placed when the layer is
+ * painted, so their cost is charged to their own layer, but they don't
+ * collide with the labels of the other layers; the images are only
+ * approximately the same as the normal renders, so the profiling mode is
+ * not meant for production tiles.
+ *
+ * @author fdiaz
+ */
+public class MVTRenderProfiler {
+
+  /**
+   * The accumulated cost of a style layer at a zoom level.
+   */
+  public static final class Entry {
+
+    private final int zoom;
+    private final String layerId;
+    private final LongAdder renders;
+    private final LongAdder time;
+    private final LongAdder features;
+    private final LongAccumulator maxTime;
+
+    private Entry(int zoom, String layerId) {
+      this.zoom = zoom;
+      this.layerId = layerId;
+      this.renders = new LongAdder();
+      this.time = new LongAdder();
+      this.features = new LongAdder();
+      this.maxTime = new LongAccumulator(Math::max, 0);
+    }
+
+    public int getZoom() {
+      return zoom;
+    }
+
+    public String getLayerId() {
+      return layerId;
+    }
+
+    /**
+     * Returns how many times the layer was painted.
+     *
+     * @return The number of paints.
+     */
+    public long getRenders() {
+      return this.renders.sum();
+    }
+
+    /**
+     * Returns the accumulated paint time.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getTime() {
+      return this.time.sum();
+    }
+
+    /**
+     * Returns the longest paint of the layer.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getMaxTime() {
+      return this.maxTime.get();
+    }
+
+    /**
+     * Returns the accumulated number of features drawn.
+     *
+     * @return The number of features.
+     */
+    public long getFeatures() {
+      return this.features.sum();
+    }
+  }
+
+  private static final class Key {
+
+    private final int zoom;
+    private final String layerId;
+
+    private Key(int zoom, String layerId) {
+      this.zoom = zoom;
+      this.layerId = layerId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key other)) {
+        return false;
+      }
+      return this.zoom == other.zoom && Objects.equals(this.layerId, other.layerId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.zoom + Objects.hashCode(this.layerId);
+    }
+  }
+
+  private final Map<Key, Entry> entries;
+
+  public MVTRenderProfiler() {
+    this.entries = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Records a paint of a style layer.
+   *
+   * @param zoom The zoom level of the tile.
+   * @param layerId The id of the style layer.
+   * @param nanos The time taken in nanoseconds.
+   * @param features The number of features drawn.
+   */
+  public void record(int zoom, String layerId, long nanos, long features) {
+    Entry entry = this.entries.computeIfAbsent(new Key(zoom, layerId), k -> new Entry(k.zoom, k.layerId));
+    entry.renders.increment();
+    entry.time.add(nanos);
+    entry.features.add(features);
+    entry.maxTime.accumulate(nanos);
+  }
+
+  /**
+   * Returns the zoom levels with recorded paints.
+   *
+   * @return The zoom levels in ascending order.
+   */
+  public List<Integer> getZooms() {
+    TreeSet<Integer> zooms = new TreeSet<>();
+    for (Key key : this.entries.keySet()) {
+      zooms.add(key.zoom);
+    }
+    return new ArrayList<>(zooms);
+  }
+
+  /**
+   * Returns the style layers painted at a zoom level, the most expensive
+   * first.
+   *
+   * @param zoom The zoom level.
+   * @return The entries of the zoom level sorted by descending time.
+   */
+  public List<Entry> getEntries(int zoom) {
+    List<Entry> theEntries = new ArrayList<>();
+    for (Entry entry : this.entries.values()) {
+      if (entry.zoom == zoom) {
+        theEntries.add(entry);
+      }
+    }
+    theEntries.sort(Comparator.comparingLong(Entry::getTime).reversed());
+    return theEntries;
+  }
+
+  public void reset() {
+    this.entries.clear();
+  }
+
+  /**
+   * Returns a report with the most expensive style layers of each zoom
+   * level, with their share of the paint time of the level.
+   *
+   * @param limit The maximum number of style layers listed per zoom level.
+   * @return The report, one line per style layer.
+   */
+  public String getReport(int limit) {
+    StringBuilder builder = new StringBuilder();
+    for (int zoom : getZooms()) {
+      List<Entry> theEntries = getEntries(zoom);
+      long total = 0;
+      for (Entry entry : theEntries) {
+        total += entry.getTime();
+      }
+      builder.append(String.format(Locale.ROOT, "z%d: %.1f ms in %d style layers%n", zoom, total / 1e6, theEntries.size()));
+      for (int i = 0; i < Math.min(limit, theEntries.size()); i++) {
+        Entry entry = theEntries.get(i);
+        long renders = entry.getRenders();
+        builder.append(String.format(
+                Locale.ROOT,
+                "  %3d. %-40s %5.1f%% %10.1f ms total %8.2f ms avg %8.2f ms max %8d paints %10d features%n",
+                i + 1,
+                entry.getLayerId(),
+                total == 0 ? 0.0 : 100.0 * entry.getTime() / total,
+                entry.getTime() / 1e6,
+                renders == 0 ? 0.0 : entry.getTime() / 1e6 / renders,
+                entry.getMaxTime() / 1e6,
+                renders,
+                entry.getFeatures()
+        ));
+      }
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return getReport(10);
+  }
+}
@@ -0,0 +1,172 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: while a load is in flight,
+ * the callers asking for the same key wait for it and share its result
+ * instead of starting their own. Nothing is kept once the load finishes;
+ * combine it with a cache such as {@link MVTDecodedTileCache} for that.
+ *
+ * @author fdiaz
+ * @param <K> The type of the keys.
+ * @param <V> The type of the loaded values.
+ */
+public class MVTSingleFlight<K, V> {
+
+  /**
+   * Loads the value of a key.
+   *
+   * @param <V> The type of the value.
+   */
+  public interface Loader<V> {
+
+    V load() throws IOException;
+  }
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong deduplicated = new AtomicLong();
+
+  /**
+   * Returns the value of a key, loading it in the calling thread unless
+   * another thread is already loading it.
+   *
+   * @param key The key.
+   * @param loader Loads the value.
+   * @return The value.
+   * @throws IOException If the load fails, in this thread or in the one
+   * that was loading the key.
+   */
+  public V get(K key, Loader<V> loader) throws IOException {
+    this.requests.incrementAndGet();
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      this.deduplicated.incrementAndGet();
+      return join(existing);
+    }
+    try {
+      V value = loader.load();
+      future.complete(value);
+      return value;
+    } catch (IOException | RuntimeException | Error ex) {
+      future.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      this.inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Returns the value of a key asynchronously, starting a load unless one
+   * is already in flight.
+   *
+   * @param key The key.
+   * @param loader Starts the load of the value.
+   * @return The value.
+   */
+  public CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+    this.requests.incrementAndGet();
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      this.deduplicated.incrementAndGet();
+      return existing.copy();
+    }
+    try {
+      loader.get().whenComplete((value, error) -> {
+        this.inFlight.remove(key, future);
+        if (error != null) {
+          future.completeExceptionally(error);
+        } else {
+          future.complete(value);
+        }
+      });
+    } catch (RuntimeException | Error ex) {
+      this.inFlight.remove(key, future);
+      future.completeExceptionally(ex);
+    }
+    return future.copy();
+  }
+
+  /**
+   * Returns how many values have been requested.
+   *
+   * @return The number of requests.
+   */
+  public long getRequestCount() {
+    return this.requests.get();
+  }
+
+  /**
+   * Returns how many requests were served by a load already in flight.
+   *
+   * @return The number of deduplicated requests.
+   */
+  public long getDeduplicatedCount() {
+    return this.deduplicated.get();
+  }
+
+  public int getInFlightCount() {
+    return this.inFlight.size();
+  }
+
+  private V join(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a load in flight");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException ioe) {
+        throw ioe;
+      }
+      if (cause instanceof RuntimeException re) {
+        throw re;
+      }
+      if (cause instanceof Error err) {
+        throw err;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MVTSingleFlight[requests=" + getRequestCount()
+            + ", deduplicated=" + getDeduplicatedCount()
+            + ", inFlight=" + getInFlightCount() + "]";
+  }
+}
@@ -25,7 +25,6 @@ package org.gvsig.mvtrenderer.lib.impl;
 
 import java.awt.GraphicsEnvironment;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -37,7 +36,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -68,6 +70,8 @@ import org.locationtech.jts.geom.GeometryFactory;
 
 /**
  * Manages Mapbox Vector Tile styles and their conversion to GeoTools styles.
+ * <p>
+ * Once loaded, an instance can be shared by several render threads.
  *
  * @author fdiaz
  */
@@ -76,21 +80,207 @@ public class MVTStyles {
 
   private static final Logger LOGGER = Logger.getLogger(MVTStyles.class.getName());
 
-  private static final Set<String> EXPLICIT_GETTERS = Set.of("get", "has");
+  private static final Set<String> EXPLICIT_GETTERS = Set.of("get", "has", "!has");
   private static final Set<String> IMPLICIT_COMPARISONS = Set.of("==", "!=", ">", ">=", "<", "<=", "in", "!in");
   private static final Set<String> UNARY_OPERATORS = Set.of("downcase", "upcase", "typeof");
+  private static final Set<String> TOKEN_PROPERTIES = Set.of("text-field", "icon-image");
+  private static final Pattern TOKEN_PATTERN = Pattern.compile("\\{([^}]+)\\}");
   private static final Set<String> NON_ATTRIBUTE_EXPRESSIONS = Set.of("zoom", "geometry-type", "id", "properties", "feature-state");
+  // Keys of the legacy filters that are not attributes.
+  private static final Set<String> LEGACY_KEYS = Set.of("$type", "$id");
 
   private static final int BACKGROUND_SIZE = 4096;
 
-  public MBStyle mbStyle;
-  private URL url;
+  /**
+   * The layers drawn at each zoom level up to this one are computed when the
+   * style is loaded.
+   */
+  private static final int MAX_PRECOMPUTED_ZOOM = 24;
+
+  public volatile MBStyle mbStyle;
 
-  private final Map<String, Style> cachedStyles = new HashMap<>();
   private final Polygon background;
-  private Collection<String> usedFontNames = Collections.EMPTY_SET;
-  
-  private Map<String, Set<String>> fieldsByLayer;
+  private volatile CompiledStyle compiledStyle;
+  private final Set<StyleVariant> variants = ConcurrentHashMap.newKeySet();
+  private final List<StyleChangeListener> listeners = new CopyOnWriteArrayList<>();
+  private volatile MVTHttpFetcher fetcher;
+
+  /**
+   * Receives the reloads of the style, e.g. to drop what was rendered with
+   * the previous one.
+   */
+  public interface StyleChangeListener {
+
+    /**
+     * Called after a new style has been published.
+     *
+     * @param oldFingerprint The fingerprint of the replaced style.
+     * @param newFingerprint The fingerprint of the new style.
+     */
+    void styleChanged(String oldFingerprint, String newFingerprint);
+  }
+
+  /**
+   * The render options that produce different GeoTools styles for the same
+   * style layer.
+   */
+  private static final class StyleVariant {
+
+    private final boolean enableTextPartials;
+    private final Double textMaxSizeLimit;
+
+    private StyleVariant(boolean enableTextPartials, Double textMaxSizeLimit) {
+      this.enableTextPartials = enableTextPartials;
+      this.textMaxSizeLimit = textMaxSizeLimit;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof StyleVariant other)) {
+        return false;
+      }
+      return this.enableTextPartials == other.enableTextPartials
+              && Objects.equals(this.textMaxSizeLimit, other.textMaxSizeLimit);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(enableTextPartials, textMaxSizeLimit);
+    }
+
+    @Override
+    public String toString() {
+      return "enableTextPartials=" + enableTextPartials + ", textMaxSizeLimit=" + textMaxSizeLimit;
+    }
+  }
+
+  /**
+   * The values of a style layer needed while rendering, extracted from its JSON
+   * when the style is loaded.
+   */
+  private static final class StyleLayer {
+
+    private final String id;
+    private final String sourceLayer;
+    private final int minZoom;
+    private final int maxZoom;
+    private final Set<String> fields;
+    /**
+     * The filter of the layer compiled to select its features before the
+     * render, or null if the layer draws all the features of its source
+     * layer or its filter can't be compiled.
+     */
+    private final MVTFilter filter;
+
+    private StyleLayer(MBLayer layer, Set<String> fields) {
+      this.id = layer.getId();
+      this.sourceLayer = layer.getSourceLayer();
+      this.minZoom = layer.getMinZoom();
+      this.maxZoom = layer.getMaxZoom();
+      this.fields = fields;
+      this.filter = MVTFilter.compile(layer.getJson().get("filter"));
+    }
+
+    /**
+     * Returns whether the renderer may draw the layer at a scale between
+     * those of a zoom level and the next one, both included. The renderer
+     * selects the rules by the scale it computes, which falls on the zoom
+     * levels only up to rounding, so the layers that start or end at either
+     * end of the range are kept and left to the scale ranges of their rules.
+     */
+    private boolean isVisibleAt(int zoom) {
+      return this.minZoom <= zoom + 1 && this.maxZoom >= zoom;
+    }
+  }
+
+  /**
+   * Immutable snapshot of a loaded style. Everything that is derived from the
+   * style JSON is computed once when the style is loaded, so a snapshot can be
+   * shared by all the render threads. Reloading the style publishes a new
+   * snapshot and leaves the previous one untouched for the renders that are
+   * still using it.
+   */
+  private static final class CompiledStyle {
+
+    private final String fingerprint;
+    private final MBStyle mbStyle;
+    private final List<StyleLayer> visibleLayers;
+    private final Map<String, MBLayer> layersById;
+    private final Collection<String> usedFontNames;
+    private final Map<String, Set<String>> fieldsByLayer;
+    private final Map<StyleVariant, Map<String, Optional<Style>>> styles = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<String, Set<String>>> fieldsByZoom = new ConcurrentHashMap<>();
+    private final List<List<StyleLayer>> layersByZoom;
+
+    private CompiledStyle(String fingerprint, MBStyle mbStyle, Collection<String> usedFontNames, Map<String, Set<String>> fieldsByLayer, Map<String, Set<String>> fieldsByStyleLayer) {
+      this.fingerprint = fingerprint;
+      this.mbStyle = mbStyle;
+      List<StyleLayer> theVisibleLayers = new ArrayList<>();
+      Map<String, MBLayer> theLayersById = new HashMap<>();
+      for (MBLayer layer : mbStyle.layers()) {
+        theLayersById.putIfAbsent(layer.getId(), layer);
+        JSONObject layout = layer.getLayout();
+        if(layout!=null && layout.containsKey("visibility") && StringUtils.equalsIgnoreCase("none",(String)layout.get("visibility"))) {
+          continue;
+        }
+        theVisibleLayers.add(new StyleLayer(layer, fieldsByStyleLayer.getOrDefault(layer.getId(), Collections.emptySet())));
+      }
+      this.visibleLayers = Collections.unmodifiableList(theVisibleLayers);
+      List<List<StyleLayer>> theLayersByZoom = new ArrayList<>();
+      for (int zoom = 0; zoom <= MAX_PRECOMPUTED_ZOOM; zoom++) {
+        theLayersByZoom.add(filterByZoom(theVisibleLayers, zoom));
+      }
+      this.layersByZoom = Collections.unmodifiableList(theLayersByZoom);
+      this.layersById = Collections.unmodifiableMap(theLayersById);
+      this.usedFontNames = Collections.unmodifiableCollection(usedFontNames);
+      this.fieldsByLayer = Collections.unmodifiableMap(fieldsByLayer);
+    }
+
+    /**
+     * Returns the visible layers that may be drawn at a zoom level, in
+     * drawing order, see {@link StyleLayer#isVisibleAt(int)}.
+     *
+     * @param zoom The zoom level, or a negative value for all the visible
+     * layers.
+     */
+    private List<StyleLayer> getVisibleLayers(int zoom) {
+      if (zoom < 0) {
+        return this.visibleLayers;
+      }
+      if (zoom <= MAX_PRECOMPUTED_ZOOM) {
+        return this.layersByZoom.get(zoom);
+      }
+      return filterByZoom(this.visibleLayers, zoom);
+    }
+
+    private static List<StyleLayer> filterByZoom(List<StyleLayer> layers, int zoom) {
+      List<StyleLayer> filtered = new ArrayList<>();
+      for (StyleLayer layer : layers) {
+        if (layer.isVisibleAt(zoom)) {
+          filtered.add(layer);
+        }
+      }
+      return Collections.unmodifiableList(filtered);
+    }
+
+    private Map<String, Set<String>> getFieldsByLayer(int zoom) {
+      return this.fieldsByZoom.computeIfAbsent(zoom < 0 ? -1 : zoom, z -> {
+        Map<String, Set<String>> theFieldsByLayer = new HashMap<>();
+        for (StyleLayer layer : getVisibleLayers(z)) {
+          if (layer.sourceLayer != null) {
+            theFieldsByLayer.computeIfAbsent(layer.sourceLayer, k -> new HashSet<>()).addAll(layer.fields);
+          }
+        }
+        for (Map.Entry<String, Set<String>> entry : theFieldsByLayer.entrySet()) {
+          entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(theFieldsByLayer);
+      });
+    }
+  }
 
   /**
    * Initializes a new instance of MVTStyles and creates the background polygon.
@@ -104,7 +294,26 @@ public class MVTStyles {
       new Coordinate(0, BACKGROUND_SIZE),
       new Coordinate(0, 0)
     });
+    this.variants.add(new StyleVariant(false, null));
+  }
 
+  /**
+   * Registers a combination of render options whose styles are compiled in
+   * advance every time the style is loaded. The default options are always
+   * compiled, and any other combination used while rendering is registered
+   * automatically for the next reloads.
+   *
+   * @param enableTextPartials The value of {@link MVTTile#setEnableTextPartials(boolean)}.
+   * @param textMaxSizeLimit The value of {@link MVTTile#setTextMaxSizeLimit(java.lang.Double)}.
+   */
+  public void addVariant(boolean enableTextPartials, Double textMaxSizeLimit) {
+    StyleVariant variant = new StyleVariant(enableTextPartials, textMaxSizeLimit);
+    if (this.variants.add(variant)) {
+      CompiledStyle theCompiledStyle = this.compiledStyle;
+      if (theCompiledStyle != null) {
+        compile(theCompiledStyle, variant);
+      }
+    }
   }
 
   /**
@@ -115,31 +324,48 @@ public class MVTStyles {
    * @throws IOException If there is a network or parsing error.
    */
   public void download(URL url) throws IOException {
-    this.url = url;
     try {
       String jsonContent = readUrl(url);
       MBStyleParser parser = new MBStyleParser();
-      this.mbStyle = parser.parse(jsonContent);
+      MBStyle theMBStyle = parser.parse(jsonContent);
 
       // Resolve relative sprite URL to absolute
-      String spritePath = (String) this.mbStyle.json.get("sprite");
+      String spritePath = (String) theMBStyle.json.get("sprite");
       if (spritePath != null && !spritePath.startsWith("http")) {
         URL absoluteSpriteUrl = new URL(url, spritePath);
-        this.mbStyle.json.put("sprite", absoluteSpriteUrl.toString());
+        theMBStyle.json.put("sprite", absoluteSpriteUrl.toString());
         LOGGER.log(Level.INFO, "Resolved sprite URL to: {0}", absoluteSpriteUrl);
       }
 
       // Resolve relative glyphs URL to absolute
-      String glyphsPath = (String) this.mbStyle.json.get("glyphs");
+      String glyphsPath = (String) theMBStyle.json.get("glyphs");
       if (glyphsPath != null && !glyphsPath.startsWith("http")) {
         URL absoluteGlyphsUrl = new URL(url, glyphsPath);
-        this.mbStyle.json.put("glyphs", absoluteGlyphsUrl.toString());
+        theMBStyle.json.put("glyphs", absoluteGlyphsUrl.toString());
         LOGGER.log(Level.INFO, "Resolved glyphs URL to: {0}", absoluteGlyphsUrl);
       }
-      this.fixTextPadding();
-      this.cachedStyles.clear();
-      this.usedFontNames = getFontNames(jsonContent);
-      this.fixFontNames();
+      fixTextPadding(theMBStyle);
+      Collection<String> theUsedFontNames = getFontNames(jsonContent);
+      fixFontNames(theMBStyle);
+
+      // The JSON is not modified after this point. Compile the styles before
+      // publishing the snapshot so the first render doesn't pay for it.
+      CompiledStyle theCompiledStyle = new CompiledStyle(
+              MVTFiles.hex("SHA-256", jsonContent),
+              theMBStyle,
+              theUsedFontNames,
+              extractFieldsFromStyles(theMBStyle),
+              extractFieldsByStyleLayer(theMBStyle)
+      );
+      for (StyleVariant variant : this.variants) {
+        compile(theCompiledStyle, variant);
+      }
+      CompiledStyle previous = this.compiledStyle;
+      this.compiledStyle = theCompiledStyle;
+      this.mbStyle = theMBStyle;
+      if (previous != null) {
+        fireStyleChanged(previous.fingerprint, theCompiledStyle.fingerprint);
+      }
 
     } catch (ParseException ex) {
       throw new IOException("Error parsing JSON content from " + url, ex);
@@ -148,6 +374,62 @@ public class MVTStyles {
     }
   }
 
+  /**
+   * Sets the fetcher used to download the style, or null to use
+   * {@link MVTHttpFetcher#getDefault()}.
+   *
+   * @param fetcher The fetcher.
+   */
+  public void setFetcher(MVTHttpFetcher fetcher) {
+    this.fetcher = fetcher;
+  }
+
+  public MVTHttpFetcher getFetcher() {
+    MVTHttpFetcher theFetcher = this.fetcher;
+    return theFetcher == null ? MVTHttpFetcher.getDefault() : theFetcher;
+  }
+
+  public void addStyleChangeListener(StyleChangeListener listener) {
+    this.listeners.add(listener);
+  }
+
+  public void removeStyleChangeListener(StyleChangeListener listener) {
+    this.listeners.remove(listener);
+  }
+
+  private void fireStyleChanged(String oldFingerprint, String newFingerprint) {
+    for (StyleChangeListener listener : this.listeners) {
+      try {
+        listener.styleChanged(oldFingerprint, newFingerprint);
+      } catch (Exception ex) {
+        LOGGER.log(Level.WARNING, "Error notifying style change", ex);
+      }
+    }
+  }
+
+  /**
+   * Returns a hash of the content of the loaded style JSON. Two loads of the
+   * same JSON have the same fingerprint, so it can be used as part of the
+   * key of rendered tiles.
+   *
+   * @return The hex SHA-256 of the style JSON, or null if no style is loaded.
+   */
+  public String getFingerprint() {
+    CompiledStyle theCompiledStyle = this.compiledStyle;
+    if (theCompiledStyle == null) {
+      return null;
+    }
+    return theCompiledStyle.fingerprint;
+  }
+
+  private CompiledStyle getCompiledStyle() {
+    CompiledStyle theCompiledStyle = this.compiledStyle;
+    if (theCompiledStyle == null) {
+      throw new IllegalStateException("Style not loaded. Call download() first.");
+    }
+    return theCompiledStyle;
+  }
+
   /**
    * Builds and returns the list of layers (MVTLayer) ready to be painted,
    * in the correct order (Z-order) defined by the Mapbox style.
@@ -158,24 +440,40 @@ public class MVTStyles {
    * @return Ordered list of MVTLayer objects.
    */
   public List<MVTLayer> getLayersToDraw(Map<String, MVTDataSource> dataSources, Envelope tileEnvelope, CoordinateReferenceSystem tileCRS, boolean enableTextPartials, Double textMaxSizeLimit) {
-    if (mbStyle == null) {
-      throw new IllegalStateException("Style not loaded. Call download() first.");
-    }
+    return getLayersToDraw(dataSources, tileEnvelope, tileCRS, enableTextPartials, textMaxSizeLimit, -1);
+  }
 
-    this.fixTextMaxSize(textMaxSizeLimit);
+  /**
+   * Builds and returns the list of layers (MVTLayer) ready to be painted at
+   * a zoom level, skipping the style layers whose minzoom/maxzoom range is
+   * clear of the scales between that zoom level and the next one. The zoom
+   * level must be that of the scale the renderer computes for the image,
+   * see {@link MVTTile#getRenderZoom(Envelope, CoordinateReferenceSystem, int)},
+   * which is deeper than the zoom of the tile for images wider than 256
+   * pixels.
+   *
+   * @param dataSources Map of available data layers.
+   * @param tileEnvelope The envelope of the tile.
+   * @param tileCRS The coordinate reference system of the tile.
+   * @param zoom The zoom level, or a negative value to not skip any layer.
+   * @return Ordered list of MVTLayer objects.
+   */
+  public List<MVTLayer> getLayersToDraw(Map<String, MVTDataSource> dataSources, Envelope tileEnvelope, CoordinateReferenceSystem tileCRS, boolean enableTextPartials, Double textMaxSizeLimit, int zoom) {
+    CompiledStyle theCompiledStyle = getCompiledStyle();
+    StyleVariant variant = new StyleVariant(enableTextPartials, textMaxSizeLimit);
+    Map<String, Optional<Style>> styles = getStyles(theCompiledStyle, variant);
 
     List<MVTLayer> layersToDraw = new ArrayList<>();
+    // The subsets of each filter, shared by the style layers of this render
+    // with the same source layer and filter.
+    Map<String, Map<String, SimpleFeatureCollection>> subsets = new HashMap<>();
 
     // Iterate through the style layers in the order defined in the style.
-    for (MBLayer layer : mbStyle.layers()) {
-      String styleLayerId = layer.getId();
-      String sourceLayerName = layer.getSourceLayer();
-      JSONObject layout = layer.getLayout();
-      if(layout!=null && layout.containsKey("visibility") && StringUtils.equalsIgnoreCase("none",(String)layout.get("visibility"))) {
-        continue;
-      }
+    for (StyleLayer layer : theCompiledStyle.getVisibleLayers(zoom)) {
+      String styleLayerId = layer.id;
+      String sourceLayerName = layer.sourceLayer;
       
-      Style style = getStyle(styleLayerId, enableTextPartials);
+      Style style = getStyle(theCompiledStyle, styles, variant, styleLayerId);
 
       if (style == null) {
         continue;
@@ -188,8 +486,16 @@ public class MVTStyles {
 
       } else if (dataSources.containsKey(sourceLayerName)) {
         // Exists in the style and we have data for it.
+        // Only the features that may pass the filter of the style layer.
         MVTDataSource dataSource = dataSources.get(sourceLayerName);
-        SimpleFeatureCollection features = dataSource.features;
+        SimpleFeatureCollection features;
+        if (layer.filter == null) {
+          features = dataSource.getFeatures(null);
+        } else {
+          features = subsets
+                  .computeIfAbsent(sourceLayerName, k -> new HashMap<>())
+                  .computeIfAbsent(layer.filter.getKey(), k -> dataSource.getFeatures(layer.filter));
+        }
         if (!features.isEmpty()) {
           layersToDraw.add(new MVTLayer(styleLayerId, features, style, dataSource.envelope));
         }
@@ -208,21 +514,61 @@ public class MVTStyles {
    * doesn't exist.
    */
   public Style getStyle(String styleLayerId, boolean enableTextPartials) {
-    if (mbStyle == null) {
-      throw new IllegalStateException("Style not loaded. Call download() first.");
+    CompiledStyle theCompiledStyle = getCompiledStyle();
+    StyleVariant variant = new StyleVariant(enableTextPartials, null);
+    return getStyle(theCompiledStyle, getStyles(theCompiledStyle, variant), variant, styleLayerId);
+  }
+
+  private Map<String, Optional<Style>> getStyles(CompiledStyle theCompiledStyle, StyleVariant variant) {
+    Map<String, Optional<Style>> styles = theCompiledStyle.styles.get(variant);
+    if (styles == null) {
+      styles = theCompiledStyle.styles.computeIfAbsent(variant, v -> {
+        // Remember it to compile it in advance when the style is reloaded.
+        this.variants.add(v);
+        return new ConcurrentHashMap<>();
+      });
     }
+    return styles;
+  }
 
-    if (cachedStyles.containsKey(styleLayerId)) {
-      return cachedStyles.get(styleLayerId);
+  private Style getStyle(CompiledStyle theCompiledStyle, Map<String, Optional<Style>> styles, StyleVariant variant, String styleLayerId) {
+    // Lock-free lookup; on a miss the style is transformed only once even if
+    // several threads ask for it at the same time.
+    Optional<Style> style = styles.get(styleLayerId);
+    if (style == null) {
+      style = styles.computeIfAbsent(
+              styleLayerId,
+              id -> Optional.ofNullable(createStyle(theCompiledStyle, id, variant.enableTextPartials, variant.textMaxSizeLimit))
+      );
     }
+    return style.orElse(null);
+  }
+
+  /**
+   * Transforms in parallel all the visible layers of the style for the given
+   * render options.
+   */
+  private void compile(CompiledStyle theCompiledStyle, StyleVariant variant) {
+    long t0 = System.currentTimeMillis();
+    Map<String, Optional<Style>> styles = getStyles(theCompiledStyle, variant);
+    theCompiledStyle.visibleLayers.parallelStream().forEach(
+            layer -> getStyle(theCompiledStyle, styles, variant, layer.id)
+    );
+    LOGGER.log(Level.FINE, "Compiled {0} style layers ({1}) in {2} ms", new Object[]{
+      theCompiledStyle.visibleLayers.size(), variant, System.currentTimeMillis() - t0
+    });
+  }
 
-    MBLayer layer = mbStyle.layer(styleLayerId);
+  private Style createStyle(CompiledStyle theCompiledStyle, String styleLayerId, boolean enableTextPartials, Double textMaxSizeLimit) {
+    MBLayer layer = theCompiledStyle.layersById.get(styleLayerId);
     if (layer == null) {
       LOGGER.log(Level.WARNING, "Style layer ID ''{0}'' not found in style definition.", styleLayerId);
       return null;
     }
 
     try {
+      layer = fixTextMaxSize(layer, textMaxSizeLimit);
+
       Double minScale = null;
       Double maxScale = null;
 
@@ -236,7 +582,7 @@ public class MVTStyles {
         maxScale = MBObjectStops.zoomLevelToScaleDenominator(Math.max(-25d, layer.getMinZoom()));
       }
 
-      List<FeatureTypeStyle> ftsList = layer.transform(mbStyle, minScale, maxScale);
+      List<FeatureTypeStyle> ftsList = layer.transform(theCompiledStyle.mbStyle, minScale, maxScale);
 
       // Package in an OGC Style
       StyleFactory sf = CommonFactoryFinder.getStyleFactory();
@@ -254,7 +600,6 @@ public class MVTStyles {
         geoToolsStyle.featureTypeStyles().add(fts);
       }
 
-      cachedStyles.put(styleLayerId, geoToolsStyle);
       return geoToolsStyle;
 
     } catch (Exception e) {
@@ -264,9 +609,7 @@ public class MVTStyles {
   }
 
   private String readUrl(URL url) throws IOException {
-    try (InputStream in = url.openStream()) {
-      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
-    }
+    return new String(getFetcher().get(url), StandardCharsets.UTF_8);
   }
 
   /**
@@ -275,7 +618,11 @@ public class MVTStyles {
    * @return Collection of font names.
    */
   public Collection<String> getUsedFontNames() {
-    return Collections.unmodifiableCollection(usedFontNames);
+    CompiledStyle theCompiledStyle = this.compiledStyle;
+    if (theCompiledStyle == null) {
+      return Collections.emptySet();
+    }
+    return theCompiledStyle.usedFontNames;
   }
 
   /**
@@ -315,9 +662,9 @@ public class MVTStyles {
     return fonts;
   }
 
-  public void fixTextPadding() {
+  private void fixTextPadding(MBStyle theMBStyle) {
     try {
-      Object layersObj = this.mbStyle.json.get("layers");
+      Object layersObj = theMBStyle.json.get("layers");
       if (layersObj instanceof JSONArray layers) {
         for (Object layerObj : layers) {
           if (layerObj instanceof JSONObject layer) {
@@ -343,15 +690,28 @@ public class MVTStyles {
    * @return A map of source layer names to sets of field names.
    */
   public Map<String, Set<String>> extractFieldsFromStyles() {
-    if(fieldsByLayer != null) {
-      return fieldsByLayer;
-    }
+    return getCompiledStyle().fieldsByLayer;
+  }
+
+  /**
+   * Returns the fields needed by the visible style layers that may be drawn
+   * at a zoom level, by source layer, with the same zoom ranges as
+   * {@link #getLayersToDraw(Map, Envelope, CoordinateReferenceSystem, boolean, Double, int)}.
+   * Source layers that no visible style layer draws at that zoom are not in
+   * the map.
+   *
+   * @param zoom The zoom level, or a negative value for any zoom level.
+   * @return Map where the key is the source layer and the value the fields.
+   */
+  public Map<String, Set<String>> extractFieldsFromStyles(int zoom) {
+    return getCompiledStyle().getFieldsByLayer(zoom);
+  }
+
+  private Map<String, Set<String>> extractFieldsFromStyles(MBStyle theMBStyle) {
     Map<String, Set<String>> theFieldsByLayer = new HashMap<>();
-    Object layersObj = this.mbStyle.json.get("layers");
+    Object layersObj = theMBStyle.json.get("layers");
 
     if (layersObj instanceof JSONArray layers) {
-      Pattern pattern = Pattern.compile("\\{([^}]+)\\}");
-
       for (Object layerObj : layers) {
         if (layerObj instanceof JSONObject layer) {
           String sourceLayer = (String) layer.get("source-layer");
@@ -362,30 +722,70 @@ public class MVTStyles {
               layerFields = new HashSet<>();
               theFieldsByLayer.put(sourceLayer, layerFields);
             }
-            Object filterObj = layer.get("filter");
-            if (filterObj instanceof JSONArray) {
-              findAttributesRecursive(filterObj, layerFields);
-            }
-            JSONObject layout = (JSONObject) layer.get("layout");
-            if (layout != null) {
-              Object textFieldObj = layout.get("text-field");
-              if (textFieldObj instanceof String textField) {
-                Matcher matcher = pattern.matcher(textField);
-
-                while (matcher.find()) {
-                  layerFields.add(matcher.group(1));
-                }
-              }
-            }
+            layerFields.addAll(extractLayerFields(layer));
           }
         }
       }
     }
-    this.fieldsByLayer = theFieldsByLayer;
-    return this.fieldsByLayer;
+    for (Map.Entry<String, Set<String>> entry : theFieldsByLayer.entrySet()) {
+      entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+    }
+    return theFieldsByLayer;
   }
-  
-  private void findAttributesRecursive(Object expression, Set<String> attributes) {
+
+  private Map<String, Set<String>> extractFieldsByStyleLayer(MBStyle theMBStyle) {
+    Map<String, Set<String>> fieldsByStyleLayer = new HashMap<>();
+    Object layersObj = theMBStyle.json.get("layers");
+    if (layersObj instanceof JSONArray layers) {
+      for (Object layerObj : layers) {
+        if (layerObj instanceof JSONObject layer && layer.get("id") instanceof String id) {
+          fieldsByStyleLayer.putIfAbsent(id, Collections.unmodifiableSet(extractLayerFields(layer)));
+        }
+      }
+    }
+    return fieldsByStyleLayer;
+  }
+
+  /**
+   * Returns the attributes used by a style layer: in its filter, in the
+   * {field} tokens of text-field and icon-image, and in the data driven
+   * (expression or property function) paint and layout properties.
+   */
+  static Set<String> extractLayerFields(JSONObject layer) {
+    Set<String> layerFields = new HashSet<>();
+    Object filterObj = layer.get("filter");
+    if (filterObj instanceof JSONArray) {
+      findAttributesRecursive(filterObj, layerFields);
+    }
+    findDataDrivenAttributes((JSONObject) layer.get("layout"), layerFields);
+    findDataDrivenAttributes((JSONObject) layer.get("paint"), layerFields);
+    return layerFields;
+  }
+
+  private static void findDataDrivenAttributes(JSONObject properties, Set<String> attributes) {
+    if (properties == null) {
+      return;
+    }
+    for (Object entryObj : properties.entrySet()) {
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entryObj;
+      Object value = entry.getValue();
+      if (value instanceof JSONArray) {
+        findAttributesRecursive(value, attributes);
+      } else if (value instanceof JSONObject function) {
+        // Legacy property and zoom-and-property functions
+        if (function.get("property") instanceof String property) {
+          attributes.add(property);
+        }
+      } else if (value instanceof String s && TOKEN_PROPERTIES.contains(entry.getKey())) {
+        Matcher matcher = TOKEN_PATTERN.matcher(s);
+        while (matcher.find()) {
+          attributes.add(matcher.group(1));
+        }
+      }
+    }
+  }
+
+  private static void findAttributesRecursive(Object expression, Set<String> attributes) {
     if (!(expression instanceof JSONArray)) {
       return;
     }
@@ -402,8 +802,8 @@ public class MVTStyles {
     }
 
     if (EXPLICIT_GETTERS.contains(operator)) {
-      if (exprArray.size()> 1 && exprArray.get(1) instanceof String) {
-        attributes.add((String) exprArray.get(1));
+      if (exprArray.size()> 1 && exprArray.get(1) instanceof String attr && !LEGACY_KEYS.contains(attr)) {
+        attributes.add(attr);
       }
       return;
     }
@@ -425,7 +825,7 @@ public class MVTStyles {
       // Decidir qué atributos añadir.
       if (explicitAttrsFound.isEmpty()) {
         // Si no se encontraron atributos explícitos, la suposición inicial era correcta.
-        if (potentialImplicitAttr != null) {
+        if (potentialImplicitAttr != null && !LEGACY_KEYS.contains(potentialImplicitAttr)) {
           attributes.add(potentialImplicitAttr);
         }
       } else {
@@ -449,10 +849,10 @@ public class MVTStyles {
     }
   }
 
-  private void fixFontNames() {
+  private void fixFontNames(MBStyle theMBStyle) {
     String[] ss = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
     List<String> families = Arrays.asList(ss);
-    JSONArray layersObj = (JSONArray) this.mbStyle.json.get("layers");
+    JSONArray layersObj = (JSONArray) theMBStyle.json.get("layers");
 
     try {
       for (Object layerObj : layersObj) {
@@ -516,31 +916,38 @@ public class MVTStyles {
   }
   
   
-  private void fixTextMaxSize(Double textMaxSizeLimit ){
+  /**
+   * Applies the text size limit to a copy of the layer. The JSON of the
+   * loaded style is shared by all the renders and is never modified.
+   *
+   * @param layer The style layer.
+   * @param textMaxSizeLimit The limit to apply as "text-max-width", or null.
+   * @return The layer to transform, the original one if nothing changes.
+   */
+  private MBLayer fixTextMaxSize(MBLayer layer, Double textMaxSizeLimit) {
     if(textMaxSizeLimit == null) {
-      return;
+      return layer;
     }
-    JSONArray layersObj = (JSONArray) this.mbStyle.json.get("layers");
-
     try {
-      for (Object layerObj : layersObj) {
-        if (layerObj instanceof JSONObject layer) {
-          JSONObject layout = (JSONObject) layer.get("layout");
-          if (layout != null) {
-            Object textSize = layout.get("text-size");
-            if(!(textSize instanceof JSONArray) && !(textSize instanceof JSONObject)) {
-              //MBStyle library accept only "text-max-width" for literal values of "text-size"
-              Object symbolPlacementObj = layout.get("symbol-placement");
-              if(symbolPlacementObj == null || symbolPlacementObj.toString().trim().equals("point")) {
-                layout.put("text-max-width", textMaxSizeLimit);
-              }
-            }
+      JSONObject layout = layer.getLayout();
+      if (layout != null) {
+        Object textSize = layout.get("text-size");
+        if(!(textSize instanceof JSONArray) && !(textSize instanceof JSONObject)) {
+          //MBStyle library accept only "text-max-width" for literal values of "text-size"
+          Object symbolPlacementObj = layout.get("symbol-placement");
+          if(symbolPlacementObj == null || symbolPlacementObj.toString().trim().equals("point")) {
+            JSONObject json = new JSONObject(layer.getJson());
+            JSONObject fixedLayout = new JSONObject(layout);
+            fixedLayout.put("text-max-width", textMaxSizeLimit);
+            json.put("layout", fixedLayout);
+            return MBLayer.create(json);
           }
         }
       }
     } catch (Exception e) {
-      LOGGER.log(Level.SEVERE, "Error extracting font names from style", e);
+      LOGGER.log(Level.SEVERE, "Can't apply text size limit to layer " + layer.getId(), e);
     }
+    return layer;
   }
   
   
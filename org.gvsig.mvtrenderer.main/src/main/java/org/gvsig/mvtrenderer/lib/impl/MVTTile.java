@@ -23,56 +23,30 @@
  */
 package org.gvsig.mvtrenderer.lib.impl;
 
-import com.google.common.collect.Multimap;
-import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.MvtReader;
-import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.TagKeyValueMapConverter;
-import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsLayer;
-import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsMvt;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
-import java.io.Writer;
-import java.net.URI;
+import java.io.OutputStream;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Properties;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
-import org.apache.commons.io.IOUtils;
-import org.geotools.api.feature.simple.SimpleFeature;
-import org.geotools.api.feature.simple.SimpleFeatureType;
-import org.geotools.api.feature.type.AttributeDescriptor;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
-import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.filter.function.EnvFunction;
-import org.geotools.map.FeatureLayer;
-import org.geotools.map.MapContent;
-import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.mbstyle.parse.MBObjectStops;
+import org.geotools.renderer.lite.RendererUtilities;
 import org.locationtech.jts.geom.Envelope;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.util.AffineTransformation;
 
 /**
  * Represents a Mapbox Vector Tile and provides methods to download, parse, and render it.
@@ -81,10 +55,13 @@ import org.locationtech.jts.geom.util.AffineTransformation;
  */
 public class MVTTile {
 
-  private static final Logger LOGGER = Logger.getLogger(MVTTile.class.getName());
+  /**
+   * The margin around an overzoomed tile, as a fraction of its size, kept
+   * when its data is clipped from the ancestor tile.
+   */
+  static final double OVERZOOM_BUFFER = 1.0 / 16;
 
   private final Map<String, MVTDataSource> sourceLayers = new HashMap<>();
-  public boolean debugMode = false;
 
   private int tileX;
   private int tileY;
@@ -96,6 +73,16 @@ public class MVTTile {
   private boolean assignScaleDenominator;
   private Double textMaxSizeLimit;
   private boolean showTileLimits;
+  private boolean strictProjection;
+  private int sourceMaxZoom;
+  private int clipBuffer;
+  private MVTTileCache tileCache;
+  private MVTDecodedTileCache decodedCache;
+  private MVTHttpFetcher fetcher;
+  private MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> singleFlight;
+  private MVTImagePool imagePool;
+  private MVTMetrics metrics;
+  private MVTRenderProfiler profiler;
 
   /**
    * Default constructor. Only for test.
@@ -105,6 +92,9 @@ public class MVTTile {
     assignScaleDenominator = true;
     textMaxSizeLimit = null;
     showTileLimits = false;
+    strictProjection = false;
+    sourceMaxZoom = Integer.MAX_VALUE;
+    clipBuffer = -1;
   }
   
   /**
@@ -143,6 +133,22 @@ public class MVTTile {
       this.envelope = envelope;
     }
 
+    /**
+     * Returns the features that may pass a filter. The subset is not kept
+     * with the data source, that may be shared through the decoded tile
+     * cache, whose weight doesn't account for it.
+     *
+     * @param filter The filter, or null.
+     * @return The features that may pass the filter, or all the features if
+     * the filter is null or they are not a {@link MVTFeatureCollection}.
+     */
+    public SimpleFeatureCollection getFeatures(MVTFilter filter) {
+      if (filter == null || !(this.features instanceof MVTFeatureCollection collection)) {
+        return this.features;
+      }
+      return filter.filter(collection);
+    }
+
   }
 
   public void setEnableTextPartials(boolean enableTextPartials) {
@@ -168,6 +174,200 @@ public class MVTTile {
   public Double getTextMaxSizeLimit() {
     return textMaxSizeLimit;
   }
+
+  /**
+   * Sets whether only the source layers and attributes requested to the
+   * download methods are decoded. By default all the attributes of the tile
+   * are decoded. Use {@link #getFieldsByLayer(MVTStyles, Envelope, int)} to
+   * get the fields to request.
+   *
+   * @param strictProjection true to decode only the requested fields.
+   */
+  public void setStrictProjection(boolean strictProjection) {
+    this.strictProjection = strictProjection;
+  }
+
+  public boolean isStrictProjection() {
+    return strictProjection;
+  }
+
+  /**
+   * Sets the deepest zoom level served by the tile sources. The tiles of
+   * deeper zoom levels are not requested to the source: their data is taken
+   * from their ancestor at that zoom level, clipped to the tile, and they
+   * are rendered at their own scale ("overzoom"). Defaults to no limit.
+   *
+   * @param sourceMaxZoom The maximum zoom level of the source.
+   */
+  public void setSourceMaxZoom(int sourceMaxZoom) {
+    if (sourceMaxZoom < 0) {
+      throw new IllegalArgumentException("The source max zoom must not be negative");
+    }
+    this.sourceMaxZoom = sourceMaxZoom;
+  }
+
+  public int getSourceMaxZoom() {
+    return sourceMaxZoom;
+  }
+
+  /**
+   * Sets the buffer around the tile to which the geometries are clipped
+   * when the tile is decoded, see {@link MVTDecoder#setClipBuffer(double)}.
+   * As in the tile generators, it is measured in pixels of a 256 pixels
+   * tile, whatever the size of the rendered images. It should be wide
+   * enough for the strokes and for the labels that cross the tile edges.
+   * Defaults to not clipping the geometries.
+   *
+   * @param clipBuffer The buffer in pixels, or a negative value to not clip
+   * the geometries.
+   */
+  public void setClipBuffer(int clipBuffer) {
+    this.clipBuffer = clipBuffer;
+  }
+
+  public int getClipBuffer() {
+    return clipBuffer;
+  }
+
+  /**
+   * Returns the fields to request when downloading a tile for a style. In
+   * strict projection mode they are only those of the style layers that may
+   * be drawn at the scale the tile is rendered at, which the renderer
+   * computes from the envelope, the map CRS and the width of the image, see
+   * {@link #getRenderZoom(Envelope, CoordinateReferenceSystem, int)}.
+   *
+   * @param mvtStyle The style the tile will be rendered with.
+   * @param envelope The envelope that will be rendered, in the map CRS.
+   * @param widthInPixels The width in pixels of the image it is rendered in.
+   * @return A map of field names for each source layer.
+   */
+  public Map<String, Set<String>> getFieldsByLayer(MVTStyles mvtStyle, Envelope envelope, int widthInPixels) {
+    if (!this.strictProjection) {
+      return mvtStyle.extractFieldsFromStyles();
+    }
+    return mvtStyle.extractFieldsFromStyles(getRenderZoom(envelope, this.mapCRS, widthInPixels));
+  }
+
+  /**
+   * Returns the zoom level of the scale at which the renderer draws an
+   * envelope in an image. The renderer computes the OGC scale from the
+   * width of the envelope and of the image, and selects the rules of the
+   * style layers by it, so a tile drawn in an image of 512 pixels is at the
+   * scale of the next zoom level. The zoom levels are counted for tiles of
+   * 256 pixels, as the scales of the rules.
+   *
+   * @param envelope The envelope that is drawn.
+   * @param crs The CRS of the map, or null.
+   * @param widthInPixels The width of the image.
+   * @return The zoom level, rounded down, and not below 0.
+   */
+  static int getRenderZoom(Envelope envelope, CoordinateReferenceSystem crs, int widthInPixels) {
+    double scale = RendererUtilities.calculateOGCScale(new ReferencedEnvelope(envelope, crs), widthInPixels, null);
+    double zoom = Math.log(MBObjectStops.zoomLevelToScaleDenominator(0d) / scale) / Math.log(2);
+    // The rounding keeps a tile and the metatile holding it at the same zoom.
+    return Math.max(0, (int) Math.floor(zoom + 1e-6));
+  }
+
+  /**
+   * Sets the cache used by {@link #download(java.net.URL, int, int, int, org.locationtech.jts.geom.Envelope, java.util.Map)}
+   * for the downloaded tiles, or null to always download them.
+   *
+   * @param tileCache The tile cache.
+   */
+  public void setTileCache(MVTTileCache tileCache) {
+    this.tileCache = tileCache;
+  }
+
+  public MVTTileCache getTileCache() {
+    return tileCache;
+  }
+
+  /**
+   * Sets the cache of decoded tiles used when reading from a
+   * {@link MVTTileSource}, or null to always decode them.
+   *
+   * @param decodedCache The decoded tile cache.
+   */
+  public void setDecodedCache(MVTDecodedTileCache decodedCache) {
+    this.decodedCache = decodedCache;
+  }
+
+  public MVTDecodedTileCache getDecodedCache() {
+    return decodedCache;
+  }
+
+  /**
+   * Sets the object that coalesces the concurrent reads of the same tile
+   * from a {@link MVTTileSource}, or null to read each one on its own. It is
+   * meant to be shared by all the tiles.
+   *
+   * @param singleFlight The request coalescer.
+   */
+  public void setSingleFlight(MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> singleFlight) {
+    this.singleFlight = singleFlight;
+  }
+
+  public MVTSingleFlight<MVTTileKey, Map<String, MVTDataSource>> getSingleFlight() {
+    return singleFlight;
+  }
+
+  /**
+   * Sets the fetcher used to download the tiles from URLs, or null to use
+   * {@link MVTHttpFetcher#getDefault()}.
+   *
+   * @param fetcher The fetcher.
+   */
+  public void setFetcher(MVTHttpFetcher fetcher) {
+    this.fetcher = fetcher;
+  }
+
+  public MVTHttpFetcher getFetcher() {
+    return this.fetcher == null ? MVTHttpFetcher.getDefault() : this.fetcher;
+  }
+
+  /**
+   * Sets the pool of the images used by
+   * {@link #render(MVTStyles, int, int, MVTImageEncoder, OutputStream)}, or
+   * null to create a new image for each render.
+   *
+   * @param imagePool The image pool.
+   */
+  public void setImagePool(MVTImagePool imagePool) {
+    this.imagePool = imagePool;
+  }
+
+  public MVTImagePool getImagePool() {
+    return imagePool;
+  }
+
+  /**
+   * Sets the metrics that record the time of the phases of the downloads
+   * and renders of this tile, or null to not measure them.
+   *
+   * @param metrics The metrics.
+   */
+  public void setMetrics(MVTMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public MVTMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets a profiler to record the cost of each style layer of the renders of
+   * this tile, or null to render normally. With a profiler the style layers
+   * are painted one at a time, see {@link MVTRenderProfiler}.
+   *
+   * @param profiler The profiler.
+   */
+  public void setProfiler(MVTRenderProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  public MVTRenderProfiler getProfiler() {
+    return profiler;
+  }
   
   public void setParams(Map<String, String> params) {
     if(params == null || params.isEmpty()) {
@@ -189,6 +389,18 @@ public class MVTTile {
     if(x != null) {
       this.showTileLimits = Boolean.parseBoolean(x);
     }
+    x = params.get("strictProjection");
+    if(x != null) {
+      this.strictProjection = Boolean.parseBoolean(x);
+    }
+    x = params.get("sourceMaxZoom");
+    if(x != null) {
+      this.setSourceMaxZoom(Integer.parseInt(x));
+    }
+    x = params.get("clipBuffer");
+    if(x != null) {
+      this.setClipBuffer(Integer.parseInt(x));
+    }
   }
 
   
@@ -201,9 +413,8 @@ public class MVTTile {
    * @throws IOException If an I/O error occurs.
    */
   public void download(URL url, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
-    try (InputStream is = url.openStream()) {
-      this.download(is, envelope, fieldsByLayer);
-    }
+    byte[] data = getFetcher().get(url);
+    this.download(new ByteArrayInputStream(data), envelope, fieldsByLayer);
   }
 
   /**
@@ -218,13 +429,174 @@ public class MVTTile {
    * @throws IOException If an I/O error occurs.
    */
   public void download(URL url, int z, int y, int x, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    MVTUrlTileSource source = new MVTUrlTileSource(url);
+    source.setCache(this.tileCache);
+    source.setFetcher(this.fetcher);
+    this.download(source, z, y, x, envelope, fieldsByLayer);
+  }
+
+  /**
+   * Reads and parses a tile from a tile source. The tiles deeper than the
+   * maximum zoom level of the source are taken from their ancestor, see
+   * {@link #setSourceMaxZoom(int)}.
+   *
+   * @param source The tile source.
+   * @param z The zoom level.
+   * @param y The tile Y coordinate.
+   * @param x The tile X coordinate.
+   * @param envelope The envelope of the tile.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void download(MVTTileSource source, int z, int y, int x, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    MVTTileId tile = new MVTTileId(z, x, y);
+    String cacheId = getDecodedCacheId(source.getId(), fieldsByLayer);
+    if (z > this.sourceMaxZoom) {
+      MVTTileId ancestor = tile.getAncestor(this.sourceMaxZoom);
+      Map<String, MVTDataSource> ancestorLayers = this.getSourceLayers(
+              source,
+              cacheId,
+              ancestor,
+              tile.getAncestorEnvelope(this.sourceMaxZoom, envelope),
+              fieldsByLayer
+      );
+      long start = System.nanoTime();
+      Map<String, MVTDataSource> clipped = clipSourceLayers(ancestorLayers, envelope);
+      if (this.metrics != null) {
+        this.metrics.record(tile, MVTMetrics.Phase.CONVERT, System.nanoTime() - start, 0);
+      }
+      this.setSourceLayers(z, y, x, envelope, clipped);
+      return;
+    }
+    this.setSourceLayers(z, y, x, envelope, this.getSourceLayers(source, cacheId, tile, envelope, fieldsByLayer));
+  }
+
+  /**
+   * Returns the decoded layers of a tile, from the decoded cache if
+   * possible.
+   */
+  private Map<String, MVTDataSource> getSourceLayers(MVTTileSource source, String cacheId, MVTTileId tile, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    if (this.decodedCache != null) {
+      Map<String, MVTDataSource> cached = this.decodedCache.get(cacheId, tile);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    if (this.singleFlight == null) {
+      return this.load(source, cacheId, tile, envelope, fieldsByLayer);
+    }
+    return this.singleFlight.get(
+            new MVTTileKey(cacheId, tile),
+            () -> this.load(source, cacheId, tile, envelope, fieldsByLayer)
+    );
+  }
+
+  private Map<String, MVTDataSource> load(MVTTileSource source, String cacheId, MVTTileId tile, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    long start = System.nanoTime();
+    ByteBuffer data = source.getTileBuffer(tile);
+    if (this.metrics != null) {
+      this.metrics.record(tile, MVTMetrics.Phase.FETCH, System.nanoTime() - start, data.remaining());
+    }
+    this.download(data, tile.getZ(), tile.getY(), tile.getX(), envelope, fieldsByLayer);
+    Map<String, MVTDataSource> loaded = new HashMap<>(this.sourceLayers);
+    if (this.decodedCache != null) {
+      this.decodedCache.put(cacheId, tile, loaded);
+    }
+    return loaded;
+  }
+
+  /**
+   * Returns the identifier under which the tiles of a source decoded by this
+   * tile are kept in the decoded cache and coalesced while they load. The
+   * decoded layers depend on the decode options as well as on the source:
+   * the fields decoded with strict projection, the clip buffer and the CRS
+   * of the tile. So tiles decoded with other options are kept apart.
+   *
+   * @param sourceId The identifier of the tile source.
+   * @param fieldsByLayer The fields to decode for each layer, or null.
+   * @return The identifier for the decoded cache.
+   */
+  public String getDecodedCacheId(String sourceId, Map<String, Set<String>> fieldsByLayer) {
+    StringBuilder builder = new StringBuilder(sourceId);
+    if (this.strictProjection) {
+      builder.append("|fields=");
+      if (fieldsByLayer == null) {
+        builder.append("*");
+      } else {
+        Map<String, Set<String>> sorted = new TreeMap<>();
+        for (Map.Entry<String, Set<String>> entry : fieldsByLayer.entrySet()) {
+          sorted.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+        }
+        builder.append(sorted);
+      }
+    }
+    if (this.clipBuffer >= 0) {
+      builder.append("|clipBuffer=").append(this.clipBuffer);
+    }
+    if (this.tileCRS != null) {
+      builder.append("|crs=").append(this.tileCRS.getName());
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Clips the decoded layers of an ancestor tile to the envelope of one of
+   * its descendants, plus a margin of {@link #OVERZOOM_BUFFER} of the tile
+   * size so the lines and outlines don't end at the tile edges.
+   *
+   * @param ancestorLayers The decoded layers of the ancestor.
+   * @param envelope The envelope of the descendant tile.
+   * @return The layers of the descendant.
+   */
+  static Map<String, MVTDataSource> clipSourceLayers(Map<String, MVTDataSource> ancestorLayers, Envelope envelope) {
+    Envelope clipEnvelope = new Envelope(envelope);
+    clipEnvelope.expandBy(envelope.getWidth() * OVERZOOM_BUFFER, envelope.getHeight() * OVERZOOM_BUFFER);
+    Map<String, MVTDataSource> layers = new HashMap<>();
+    for (MVTDataSource dataSource : ancestorLayers.values()) {
+      SimpleFeatureCollection features = dataSource.features;
+      if (features instanceof MVTFeatureCollection collection) {
+        features = collection.clip(clipEnvelope);
+      }
+      layers.put(dataSource.name, new MVTDataSource(features, dataSource.name, envelope));
+    }
+    return layers;
+  }
+
+  /**
+   * Parses a tile from an input stream, setting the tile coordinates used
+   * to calculate the render scale.
+   *
+   * @param is The input stream containing the tile data.
+   * @param z The zoom level.
+   * @param y The tile Y coordinate.
+   * @param x The tile X coordinate.
+   * @param envelope The envelope of the tile.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void download(InputStream is, int z, int y, int x, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    this.tileX = x;
+    this.tileY = y;
+    this.tileZ = z;
+    this.download(is, envelope, fieldsByLayer);
+  }
+
+  /**
+   * Parses a tile, optionally gzipped, from a buffer.
+   *
+   * @param data The tile, between the position and the limit of the buffer.
+   * @param z The zoom level.
+   * @param y The tile Y coordinate.
+   * @param x The tile X coordinate.
+   * @param envelope The envelope of the tile.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If the tile is corrupt.
+   */
+  public void download(ByteBuffer data, int z, int y, int x, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
     this.tileX = x;
     this.tileY = y;
     this.tileZ = z;
-    String s = url.toString().replace("{z}", String.valueOf(this.tileZ));
-    s = s.replace("{y}", String.valueOf(this.tileY));
-    s = s.replace("{x}", String.valueOf(this.tileX));
-    this.download(URI.create(s).toURL(), envelope, fieldsByLayer);
+    this.download(data, envelope, fieldsByLayer);
   }
 
   /**
@@ -236,39 +608,72 @@ public class MVTTile {
    * @throws IOException If an I/O error occurs.
    */
   public void download(InputStream is, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
-    final GeometryFactory geometryFactory = new GeometryFactory();
-    try (PushbackInputStream pbIs = new PushbackInputStream(is, 2)) {
-      
-      // Check for GZIP "Magic Numbers" (0x1f, 0x8b)
-      byte[] signature = new byte[2];
-      int len = pbIs.read(signature);
-      pbIs.unread(signature, 0, len); 
-
-      InputStream finalIs = pbIs;
-      if (len == 2 && signature[0] == (byte) 0x1f && signature[1] == (byte) 0x8b) {
-        finalIs = new GZIPInputStream(pbIs);
+    this.download(ByteBuffer.wrap(is.readAllBytes()), envelope, fieldsByLayer);
+  }
+
+  /**
+   * Parses a tile, optionally gzipped, from a buffer.
+   *
+   * @param data The tile, between the position and the limit of the buffer.
+   * @param envelope The envelope of the tile.
+   * @param fieldsByLayer A map of field names to add for each layer.
+   * @throws IOException If the tile is corrupt.
+   */
+  public void download(ByteBuffer data, Envelope envelope, Map<String, Set<String>> fieldsByLayer) throws IOException {
+    MVTDecoder decoder = new MVTDecoder();
+    decoder.setCRS(this.tileCRS);
+    decoder.setOnlyRequestedFields(this.strictProjection);
+    decoder.setClipBuffer(this.clipBuffer < 0 ? -1 : this.clipBuffer / 256.0);
+    long start = System.nanoTime();
+    Map<String, MVTFeatureCollection> layers = decoder.decode(data, envelope, fieldsByLayer);
+    long decodeTime = System.nanoTime() - start;
+    this.envelope = envelope;
+    this.sourceLayers.clear();
+    for (Map.Entry<String, MVTFeatureCollection> layer : layers.entrySet()) {
+      this.sourceLayers.put(layer.getKey(), new MVTDataSource(layer.getValue(), layer.getKey(), envelope));
+    }
+    if (this.metrics != null) {
+      MVTTileId tile = new MVTTileId(this.tileZ, this.tileX, this.tileY);
+      if (decoder.getUncompressTime() > 0) {
+        this.metrics.record(tile, MVTMetrics.Phase.GUNZIP, decoder.getUncompressTime(), decoder.getUncompressedSize());
       }
-      
-      JtsMvt mvt = MvtReader.loadMvt(finalIs, geometryFactory, new TagKeyValueMapConverter());
-      this.envelope = envelope;
-      this.sourceLayers.clear();
+      this.metrics.record(tile, MVTMetrics.Phase.DECODE, decodeTime - decoder.getUncompressTime(), data.remaining());
+      for (Map.Entry<String, MVTFeatureCollection> layer : layers.entrySet()) {
+        this.metrics.recordLayer(tile, layer.getKey(), layer.getValue().size(), layer.getValue().getNumPoints());
+      }
+    }
+  }
 
-      for (JtsLayer layer : mvt.getLayers()) {
-        int tileSize = layer.getExtent();
-        double scaleX = envelope.getWidth() / tileSize;
-        double scaleY = envelope.getHeight()/ tileSize;
+  /**
+   * Returns the decoded source layers of the tile, keyed by source layer name.
+   *
+   * @return The source layers.
+   */
+  Map<String, MVTDataSource> getSourceLayers() {
+    return this.sourceLayers;
+  }
 
-        AffineTransformation t = new AffineTransformation();
-        t.scale(scaleX, -scaleY);
-        t.translate(envelope.getMinX(), envelope.getMaxY());
+  /**
+   * Replaces the data of the tile with already decoded source layers, e.g.
+   * the combined data of a metatile.
+   *
+   * @param z The zoom level.
+   * @param y The tile Y coordinate.
+   * @param x The tile X coordinate.
+   * @param envelope The envelope covered by the data.
+   * @param sourceLayers The source layers, keyed by name.
+   */
+  void setSourceLayers(int z, int y, int x, Envelope envelope, Map<String, MVTDataSource> sourceLayers) {
+    this.tileX = x;
+    this.tileY = y;
+    this.tileZ = z;
+    this.envelope = envelope;
+    this.sourceLayers.clear();
+    this.sourceLayers.putAll(sourceLayers);
+  }
 
-        Set<String> fields = fieldsByLayer.get(layer.getName());
-        SimpleFeatureCollection collection = convertToFeatureCollection(layer, fields, t);
-        MVTDataSource theLayer = new MVTDataSource(collection, layer.getName(), envelope);
-        
-        this.sourceLayers.put(layer.getName(), theLayer);
-      }
-    }
+  boolean isShowTileLimits() {
+    return this.showTileLimits;
   }
 
   /**
@@ -281,35 +686,74 @@ public class MVTTile {
    */
   public BufferedImage render(MVTStyles mvtStyle, int widthInPixels, int heightInPixels) {
     BufferedImage image = new BufferedImage(widthInPixels, heightInPixels, BufferedImage.TYPE_INT_ARGB);
+    render(mvtStyle, image);
+    return image;
+  }
+
+  /**
+   * Renders the tile and writes it encoded to a stream. The image is taken
+   * from the image pool, if there is one, and given back once encoded.
+   *
+   * @param mvtStyle The MVT style definition.
+   * @param widthInPixels The width of the image in pixels.
+   * @param heightInPixels The height of the image in pixels.
+   * @param encoder The encoder of the image.
+   * @param os The stream to write to. It is not closed.
+   * @return The number of bytes written.
+   * @throws IOException If the image can't be encoded or written.
+   */
+  public long render(MVTStyles mvtStyle, int widthInPixels, int heightInPixels, MVTImageEncoder encoder, OutputStream os) throws IOException {
+    MVTImagePool pool = this.imagePool;
+    BufferedImage image = pool == null
+            ? new BufferedImage(widthInPixels, heightInPixels, BufferedImage.TYPE_INT_ARGB)
+            : pool.acquire(widthInPixels, heightInPixels);
+    try {
+      render(mvtStyle, image);
+      long start = System.nanoTime();
+      long size = encoder.encode(image, os);
+      if (this.metrics != null) {
+        this.metrics.record(new MVTTileId(this.tileZ, this.tileX, this.tileY), MVTMetrics.Phase.ENCODE, System.nanoTime() - start, size);
+      }
+      return size;
+    } finally {
+      if (pool != null) {
+        pool.release(image);
+      }
+    }
+  }
+
+  /**
+   * Renders the tile into a caller supplied image, for instance one taken
+   * from a {@link MVTImagePool}. The tile is drawn over the current content
+   * of the image, which is not cleared.
+   *
+   * @param mvtStyle The MVT style definition.
+   * @param image The image to draw on; the tile covers the whole image.
+   */
+  public void render(MVTStyles mvtStyle, BufferedImage image) {
+    int widthInPixels = image.getWidth();
+    int heightInPixels = image.getHeight();
     Graphics2D g2 = image.createGraphics();
 
     Object previousWmsScaleDenominator = null;
     boolean hasWmsScaleDenominator = false;
-    MapContent mapContent = null;
     try {
       Rectangle drawingArea = new Rectangle(0, 0, widthInPixels, heightInPixels);
 
-      List<MVTLayer> layersToDraw = mvtStyle.getLayersToDraw(sourceLayers, envelope, this.tileCRS, this.enableTextPartials, this.textMaxSizeLimit);
-      mapContent = new MapContent();
-      if( this.mapCRS != null ) {
-        mapContent.getViewport().setCoordinateReferenceSystem(this.mapCRS);
-      }
-      StreamingRenderer renderer = new StreamingRenderer();
-      renderer.setMapContent(mapContent);
-      // Create smoothing hints
-      RenderingHints hints = new RenderingHints(
-              RenderingHints.KEY_ANTIALIASING,
-              RenderingHints.VALUE_ANTIALIAS_ON
+      // The rules always carry the scale ranges of the zoom ranges of their
+      // style layers, so the layers out of the scale of the image are skipped.
+      long start = System.nanoTime();
+      List<MVTLayer> layersToDraw = mvtStyle.getLayersToDraw(
+              sourceLayers,
+              envelope,
+              this.tileCRS,
+              this.enableTextPartials,
+              this.textMaxSizeLimit,
+              getRenderZoom(envelope, this.mapCRS, widthInPixels)
       );
-      // Also recommended to enable text smoothing if labels are present
-      hints.put(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
-      // Apply hints to the renderer
-      renderer.setJava2DHints(hints);
 
-      for (MVTLayer layer : layersToDraw) {
-          FeatureLayer featureLayer = new FeatureLayer(layer.getFeatures(), layer.getStyle(), layer.getId());
-          mapContent.addLayer(featureLayer);
+      if (this.metrics != null) {
+        this.metrics.record(new MVTTileId(this.tileZ, this.tileX, this.tileY), MVTMetrics.Phase.STYLE, System.nanoTime() - start, 0);
       }
 
       Map<String, Object> envLocalValues = EnvFunction.getLocalValues();
@@ -322,7 +766,16 @@ public class MVTTile {
         EnvFunction.setLocalValue("wms_scale_denominator", scaleDenominator);
       }
 
-      renderer.paint(g2, drawingArea, envelope);
+      // The map content and the renderer are reused by the renders of this thread.
+      start = System.nanoTime();
+      if (this.profiler == null) {
+        MVTRenderContext.get(this.mapCRS).paint(g2, drawingArea, envelope, layersToDraw);
+      } else {
+        MVTRenderContext.get(this.mapCRS).paint(g2, drawingArea, envelope, layersToDraw, this.profiler, this.tileZ);
+      }
+      if (this.metrics != null) {
+        this.metrics.record(new MVTTileId(this.tileZ, this.tileX, this.tileY), MVTMetrics.Phase.PAINT, System.nanoTime() - start, 0);
+      }
       
       if(this.showTileLimits) {
         g2.setColor(Color.red);
@@ -341,167 +794,6 @@ public class MVTTile {
         }
       }
       g2.dispose();
-      if(mapContent != null) {
-        mapContent.dispose();
-      }
-    }
-
-    return image;
-  }
-
-  private SimpleFeatureCollection convertToFeatureCollection(JtsLayer layer, Set<String> fieldNames,AffineTransformation t) {
-    Writer[] writers = null;
-    try {
-      Set<String> attributeNames = new HashSet<>();
-      if(fieldNames != null) {
-        attributeNames.addAll(fieldNames);
-      }
-      for (Geometry geom : layer.getGeometries()) {
-        Object userData = geom.getUserData();
-        if (userData instanceof Map) {
-          attributeNames.addAll(((Map<String, Object>) userData).keySet());
-        }
-      }
-      SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
-      tb.setName(layer.getName());
-      tb.add("geometry", Geometry.class); // GeoTools handles geometric polymorphism
-      for (String attr : attributeNames) {
-        tb.add(attr, Object.class);
-      }
-      if( this.tileCRS!=null ) {
-        tb.setCRS(this.tileCRS);
-      }
-      SimpleFeatureType type = tb.buildFeatureType();
-      writers = prepareCSV(layer, type);
-      
-      List<SimpleFeature> features = new ArrayList<>();
-      SimpleFeatureBuilder fb = new SimpleFeatureBuilder(type);
-      for (Geometry geom : layer.getGeometries()) {
-        fb.set("geometry", t.transform(geom));
-
-        Object userData = geom.getUserData();
-        if (userData instanceof Map) {
-          Map<String, Object> attributes = (Map<String, Object>) userData;
-          for (String attr : attributeNames) {
-            Object val = attributes.get(attr);
-            if (val != null) {
-              fb.set(attr, val);
-            }
-          }
-        }
-        SimpleFeature f = fb.buildFeature(null);
-        addRowToCSV(writers, f, geom);
-        features.add(f);
-      }
-      return new ListFeatureCollection(type, features);
-    } catch (IOException ex) {
-      LOGGER.log(Level.WARNING, "Can't convert to FeatureCollection", ex);
-      return null;
-    } finally {
-      closeCSV(writers);
-    }
-  }
-
-  /* 
-  =========================================================
-  The following methods are only for debugging from main   
-  =========================================================
-  */
-  private Writer[] prepareCSV(JtsLayer layer, SimpleFeatureType type) {
-    if (!this.debugMode) {
-      return null;
-    }
-    FileWriter fileWriter = null;
-    BufferedWriter csvWriter = null;
-    try {
-      saveInfo(layer);
-      String folder = getFolder();
-      String fname = folder + layer.getName().replace('/', '_').replace(':', '_') + ".csv";
-      fileWriter = new FileWriter(fname, false);
-      csvWriter = new BufferedWriter(fileWriter, 8096);
-      for (AttributeDescriptor attributeDescriptor : type.getAttributeDescriptors()) {
-        csvWriter.append("\"");
-        csvWriter.append(attributeDescriptor.getLocalName());
-        csvWriter.append("\";");
-      }
-      csvWriter.append("\"geom\"\n");    
-      return new Writer[] {fileWriter, csvWriter}; 
-    } catch(Exception ex) {
-      IOUtils.closeQuietly(csvWriter);
-      IOUtils.closeQuietly(fileWriter);
-      return null;
-    }
-  }
-  
-  private void addRowToCSV(Writer[] writers, SimpleFeature f, Geometry geom) throws IOException {
-    if (!this.debugMode) {
-      return;
-    }
-    Writer writer = writers[1];
-    SimpleFeatureType type = f.getFeatureType();
-    for (AttributeDescriptor attributeDescriptor : type.getAttributeDescriptors()) {
-      writer.append("\"");
-      writer.append(Objects.toString(f.getAttribute(attributeDescriptor.getLocalName())));
-      writer.append("\";");
-    }
-    writer.append("\"");
-    writer.append(geom.toText());
-    writer.append("\"\n");
-  }
-
-  private void closeCSV(Writer[] writers) {
-    if (!this.debugMode) {
-      return;
-    }
-    try {
-      writers[0].flush();
-      writers[1].flush();
-      IOUtils.close(writers[0]);
-      IOUtils.close(writers[1]);
-    } catch (IOException ex) {
-      LOGGER.log(Level.INFO, "Can't close debug CSV files", ex);
-    }
-  }
-
-  /**
-   * Returns the folder path where tile data is stored. Creates the folder if it doesn't exist.
-   * Only for test (see main).
-   *
-   * @return The folder path string.
-   */
-  public String getFolder() {
-    String s = "../tmp/tiles/tile_" + this.tileZ + "_" + this.tileY + "_" + this.tileX + "/";
-    File f = new File(s);
-    try {
-      f.mkdirs();
-      f.mkdir();
-    } catch (Exception ex) {
-
-    }
-    return s;
-  }
-
-  private void saveInfo(JtsLayer layer) {
-    FileReader reader = null;
-    FileWriter writer = null;
-    try {
-      Properties props = new Properties();
-      String filename = getFolder() + "tile.properties";
-      File file = new File(filename);
-      if (file.exists()) {
-        reader = new FileReader(file);
-        props.load(reader);
-      }
-      props.setProperty(layer.getName() + ".features", String.valueOf(layer.getGeometries().size()));
-      props.setProperty(layer.getName() + ".extent", String.valueOf(layer.getExtent()));
-      writer = new FileWriter(file);
-      props.store(writer, "");
-    } catch (Exception ex) {
-      LOGGER.log(Level.WARNING, "Can't save tile information", ex);
-    } finally {
-      IOUtils.closeQuietly(reader);
-      IOUtils.closeQuietly(writer);
     }
   }
- 
-}
\ No newline at end of file
+}
@@ -0,0 +1,115 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+
+/**
+ * Stores the raw bytes of vector tiles together with the HTTP validators
+ * needed to revalidate them.
+ * <p>
+ * Implementations must be safe to use from several threads at the same time.
+ *
+ * @author fdiaz
+ */
+public interface MVTTileCache {
+
+  /**
+   * A cached tile.
+   */
+  public static class Entry {
+
+    private final byte[] data;
+    private final String etag;
+    private final String lastModified;
+    private final long expires;
+
+    /**
+     * Creates a cache entry.
+     *
+     * @param data The raw bytes of the tile.
+     * @param etag The ETag returned by the server, or null.
+     * @param lastModified The Last-Modified returned by the server, or null.
+     * @param expires The time, in milliseconds since the epoch, until which
+     * the entry can be used without revalidating it.
+     */
+    public Entry(byte[] data, String etag, String lastModified, long expires) {
+      this.data = data;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+
+    public boolean isExpired(long now) {
+      return now >= expires;
+    }
+
+    /**
+     * Returns a copy of the entry with a new expiration time, e.g. after a
+     * successful revalidation.
+     *
+     * @param expires The new expiration time.
+     * @return The new entry.
+     */
+    public Entry withExpires(long expires) {
+      return new Entry(data, etag, lastModified, expires);
+    }
+  }
+
+  /**
+   * Returns the cached entry of a tile, fresh or expired.
+   *
+   * @param sourceId The identifier of the tile source (see {@link MVTTileSource#getId()}).
+   * @param tile The tile.
+   * @return The entry, or null if the tile is not cached.
+   * @throws IOException If the cache can't be read.
+   */
+  Entry get(String sourceId, MVTTileId tile) throws IOException;
+
+  /**
+   * Stores or replaces the entry of a tile.
+   *
+   * @param sourceId The identifier of the tile source.
+   * @param tile The tile.
+   * @param entry The entry to store.
+   * @throws IOException If the cache can't be written.
+   */
+  void put(String sourceId, MVTTileId tile, Entry entry) throws IOException;
+}
@@ -0,0 +1,174 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Identifies a tile of the Web Mercator (EPSG:3857) tile matrix by its zoom
+ * level, column and row, with the row 0 at the north (XYZ/OSM scheme).
+ *
+ * @author fdiaz
+ */
+public final class MVTTileId {
+
+  // La circunferencia de la Tierra en el Ecuador para EPSG:3857
+  // Corresponde a 2 * PI * 6378137 metros
+  private static final double WORLD_SIZE = 40075016.68557849;
+  private static final double ORIGIN_SHIFT = WORLD_SIZE / 2.0; // 20037508.34...
+
+  private final int z;
+  private final int x;
+  private final int y;
+
+  /**
+   * Creates a tile identifier.
+   *
+   * @param z The zoom level.
+   * @param x The tile X coordinate (column).
+   * @param y The tile Y coordinate (row).
+   */
+  public MVTTileId(int z, int x, int y) {
+    this.z = z;
+    this.x = x;
+    this.y = y;
+  }
+
+  public int getZ() {
+    return z;
+  }
+
+  public int getX() {
+    return x;
+  }
+
+  public int getY() {
+    return y;
+  }
+
+  /**
+   * Calcula el Envelope del tile en coordenadas Web Mercator (EPSG:3857).
+   * Las unidades resultantes están en metros.
+   *
+   * @return Envelope en metros [minX, maxX, minY, maxY]
+   */
+  public Envelope getEnvelope() {
+    // Tamaño de una tesela en metros para el nivel de zoom actual
+    double numTiles = Math.pow(2, z);
+    double tileSizeMeters = WORLD_SIZE / numTiles;
+
+    // Cálculo de las coordenadas X (Oeste a Este)
+    // El origen X (0) en metros está en el meridiano de Greenwich. 
+    // Los tiles empiezan en el borde izquierdo (-originShift)
+    double minX = -ORIGIN_SHIFT + (x * tileSizeMeters);
+    double maxX = -ORIGIN_SHIFT + ((x + 1) * tileSizeMeters);
+
+    // Cálculo de las coordenadas Y (Sur a Norte)
+    // En el sistema de tiles de OSM, y=0 es el Norte.
+    // En EPSG:3857, el eje Y positivo va hacia el Norte.
+    double maxY = ORIGIN_SHIFT - (y * tileSizeMeters);
+    double minY = ORIGIN_SHIFT - ((y + 1) * tileSizeMeters);
+
+    return new Envelope(minX, maxX, minY, maxY);
+  }
+
+  /**
+   * Returns the tile of a lower zoom level that contains this tile.
+   *
+   * @param zoom The zoom level of the ancestor, not greater than the zoom
+   * level of this tile.
+   * @return The ancestor tile, or this tile if the zoom level is the same.
+   */
+  public MVTTileId getAncestor(int zoom) {
+    if (zoom > this.z || zoom < 0) {
+      throw new IllegalArgumentException("Invalid ancestor zoom level " + zoom + " for tile " + this);
+    }
+    int d = this.z - zoom;
+    return d == 0 ? this : new MVTTileId(zoom, this.x >> d, this.y >> d);
+  }
+
+  /**
+   * Returns the envelope of an ancestor of this tile, see
+   * {@link #getAncestor(int)}, given the envelope of this tile in any map
+   * units whose axes are aligned with the tile matrix.
+   *
+   * @param zoom The zoom level of the ancestor.
+   * @param envelope The envelope of this tile.
+   * @return The envelope of the ancestor, in the units of the given one.
+   */
+  public Envelope getAncestorEnvelope(int zoom, Envelope envelope) {
+    MVTTileId ancestor = getAncestor(zoom);
+    int d = this.z - zoom;
+    double width = envelope.getWidth();
+    double height = envelope.getHeight();
+    // The rows go from north to south.
+    double minX = envelope.getMinX() - (this.x - ((long) ancestor.x << d)) * width;
+    double maxY = envelope.getMaxY() + (this.y - ((long) ancestor.y << d)) * height;
+    return new Envelope(minX, minX + width * (1L << d), maxY - height * (1L << d), maxY);
+  }
+
+  /**
+   * Returns all the tiles of a zoom level in the given column and row
+   * ranges, both inclusive, ordered by row and then by column.
+   *
+   * @param z The zoom level.
+   * @param minX The first column.
+   * @param maxX The last column.
+   * @param minY The first row.
+   * @param maxY The last row.
+   * @return The list of tiles.
+   */
+  public static List<MVTTileId> range(int z, int minX, int maxX, int minY, int maxY) {
+    List<MVTTileId> tiles = new ArrayList<>();
+    for (int row = minY; row <= maxY; row++) {
+      for (int col = minX; col <= maxX; col++) {
+        tiles.add(new MVTTileId(z, col, row));
+      }
+    }
+    return tiles;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MVTTileId other)) {
+      return false;
+    }
+    return this.z == other.z && this.x == other.x && this.y == other.y;
+  }
+
+  @Override
+  public int hashCode() {
+    return (31 * (31 * z + x)) + y;
+  }
+
+  @Override
+  public String toString() {
+    return z + "/" + x + "/" + y;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Objects;
+
+/**
+ * Identifies a tile of a given tile source, see {@link MVTTileSource#getId()}.
+ *
+ * @author fdiaz
+ */
+public final class MVTTileKey {
+
+  private final String sourceId;
+  private final MVTTileId tile;
+
+  public MVTTileKey(String sourceId, MVTTileId tile) {
+    this.sourceId = sourceId;
+    this.tile = tile;
+  }
+
+  public String getSourceId() {
+    return sourceId;
+  }
+
+  public MVTTileId getTile() {
+    return tile;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MVTTileKey other)) {
+      return false;
+    }
+    return this.tile.equals(other.tile) && this.sourceId.equals(other.sourceId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(sourceId, tile);
+  }
+
+  @Override
+  public String toString() {
+    return sourceId + "@" + tile;
+  }
+}
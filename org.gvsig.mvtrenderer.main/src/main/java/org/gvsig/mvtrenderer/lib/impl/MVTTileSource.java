@@ -0,0 +1,99 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A provider of raw (possibly gzipped) vector tile bytes.
+ * <p>
+ * Implementations must be safe to use from several threads at the same time.
+ *
+ * @author fdiaz
+ */
+public interface MVTTileSource {
+
+  /**
+   * Returns an identifier of the source, for example the URL template. Tiles
+   * with the same id and coordinates are expected to hold the same data.
+   *
+   * @return The identifier of the source.
+   */
+  String getId();
+
+  /**
+   * Reads the bytes of a tile.
+   *
+   * @param tile The tile to read.
+   * @return The bytes of the tile.
+   * @throws IOException If the tile can't be read.
+   */
+  byte[] getTile(MVTTileId tile) throws IOException;
+
+  /**
+   * Reads the bytes of a tile as a buffer, between its position and its
+   * limit. Sources that keep the tiles in memory or in mapped files return
+   * a read only view of them, so the decoder reads them without copying.
+   *
+   * @param tile The tile to read.
+   * @return The bytes of the tile.
+   * @throws IOException If the tile can't be read.
+   */
+  default ByteBuffer getTileBuffer(MVTTileId tile) throws IOException {
+    return ByteBuffer.wrap(getTile(tile));
+  }
+
+  /**
+   * Reads the bytes of several tiles. The default implementation reads them
+   * one by one; sources that can read a block of tiles at once, see
+   * {@link #hasBatchReads()}, override it.
+   *
+   * @param tiles The tiles to read.
+   * @return The bytes of each tile. Tiles that don't exist in the source can
+   * be missing from the map.
+   * @throws IOException If the tiles can't be read.
+   */
+  default Map<MVTTileId, byte[]> getTiles(List<MVTTileId> tiles) throws IOException {
+    Map<MVTTileId, byte[]> data = new LinkedHashMap<>();
+    for (MVTTileId tile : tiles) {
+      data.put(tile, getTile(tile));
+    }
+    return data;
+  }
+
+  /**
+   * Returns true if {@link #getTiles(java.util.List)} is cheaper than reading
+   * the tiles one by one, so the tiles of a metatile should be read at once
+   * instead of concurrently.
+   *
+   * @return true if the source reads blocks of tiles efficiently.
+   */
+  default boolean hasBatchReads() {
+    return false;
+  }
+}
@@ -0,0 +1,243 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tile source that downloads the tiles from a template URL with {z}, {x}
+ * and {y} placeholders.
+ * <p>
+ * Optionally the tiles are kept in a {@link MVTTileCache}. Cached tiles are
+ * served without contacting the server until they expire; expired tiles are
+ * revalidated with a conditional request (If-None-Match/If-Modified-Since)
+ * and only downloaded again if they changed.
+ *
+ * @author fdiaz
+ */
+public class MVTUrlTileSource implements MVTTileSource {
+
+  private static final Logger LOGGER = Logger.getLogger(MVTUrlTileSource.class.getName());
+
+  private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+  private final String template;
+  private MVTTileCache cache;
+  private long defaultTimeToLive;
+  private MVTHttpFetcher fetcher;
+
+  /**
+   * Creates a tile source for a template URL.
+   *
+   * @param template The template URL, with {z}, {x} and {y} placeholders.
+   */
+  public MVTUrlTileSource(URL template) {
+    this(template.toString());
+  }
+
+  /**
+   * Creates a tile source for a template URL.
+   *
+   * @param template The template URL, with {z}, {x} and {y} placeholders.
+   */
+  public MVTUrlTileSource(String template) {
+    this.template = template;
+    this.cache = null;
+    this.defaultTimeToLive = TimeUnit.HOURS.toMillis(24);
+    this.fetcher = null;
+  }
+
+  /**
+   * Sets the fetcher used to download the tiles, or null to use
+   * {@link MVTHttpFetcher#getDefault()}.
+   *
+   * @param fetcher The fetcher.
+   */
+  public void setFetcher(MVTHttpFetcher fetcher) {
+    this.fetcher = fetcher;
+  }
+
+  public MVTHttpFetcher getFetcher() {
+    return this.fetcher == null ? MVTHttpFetcher.getDefault() : this.fetcher;
+  }
+
+  /**
+   * Sets the cache of the downloaded tiles, or null to disable it.
+   *
+   * @param cache The tile cache.
+   */
+  public void setCache(MVTTileCache cache) {
+    this.cache = cache;
+  }
+
+  public MVTTileCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Sets how long a cached tile is used without revalidating it when the
+   * server doesn't send Cache-Control or Expires headers. Defaults to 24
+   * hours.
+   *
+   * @param timeToLive The time to live in milliseconds.
+   */
+  public void setDefaultTimeToLive(long timeToLive) {
+    this.defaultTimeToLive = timeToLive;
+  }
+
+  public long getDefaultTimeToLive() {
+    return defaultTimeToLive;
+  }
+
+  @Override
+  public String getId() {
+    return this.template;
+  }
+
+  /**
+   * Returns the URL of a tile by replacing the placeholders of the template.
+   *
+   * @param tile The tile.
+   * @return The URL of the tile.
+   * @throws IOException If the resulting URL is malformed.
+   */
+  public URL getURL(MVTTileId tile) throws IOException {
+    String s = this.template.replace("{z}", String.valueOf(tile.getZ()));
+    s = s.replace("{y}", String.valueOf(tile.getY()));
+    s = s.replace("{x}", String.valueOf(tile.getX()));
+    return URI.create(s).toURL();
+  }
+
+  @Override
+  public byte[] getTile(MVTTileId tile) throws IOException {
+    URL url = getURL(tile);
+    if (this.cache == null) {
+      return getFetcher().get(url);
+    }
+    MVTTileCache.Entry entry = null;
+    try {
+      entry = this.cache.get(this.template, tile);
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Can't read tile " + tile + " from the cache", ex);
+    }
+    long now = System.currentTimeMillis();
+    if (entry != null && !entry.isExpired(now)) {
+      return entry.getData();
+    }
+    try {
+      return this.revalidate(url, tile, entry, now);
+    } catch (IOException ex) {
+      if (entry == null) {
+        throw ex;
+      }
+      LOGGER.log(Level.WARNING, "Can't revalidate tile " + tile + ", using the expired cached copy", ex);
+      return entry.getData();
+    }
+  }
+
+  private byte[] revalidate(URL url, MVTTileId tile, MVTTileCache.Entry entry, long now) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    if (entry != null) {
+      if (entry.getETag() != null) {
+        headers.put("If-None-Match", entry.getETag());
+      }
+      if (entry.getLastModified() != null) {
+        headers.put("If-Modified-Since", entry.getLastModified());
+      }
+    }
+    MVTHttpFetcher.Response response = getFetcher().send(url, headers);
+    int status = response.getStatusCode();
+    String cacheControl = response.getHeader("Cache-Control");
+    boolean noStore = cacheControl != null && cacheControl.contains("no-store");
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+      MVTTileCache.Entry revalidated = entry.withExpires(getExpires(response, cacheControl, now));
+      if (!noStore) {
+        store(tile, revalidated);
+      }
+      return revalidated.getData();
+    }
+    // Many servers answer 204 for the empty tiles, cached as an empty body
+    if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_NO_CONTENT) {
+      throw new IOException("Server returned HTTP " + status + " for " + url);
+    }
+    byte[] data = response.getBody();
+    if (!noStore) {
+      store(tile, new MVTTileCache.Entry(
+              data,
+              response.getHeader("ETag"),
+              response.getHeader("Last-Modified"),
+              getExpires(response, cacheControl, now)
+      ));
+    }
+    return data;
+  }
+
+  private long getExpires(MVTHttpFetcher.Response response, String cacheControl, long now) {
+    if (cacheControl != null) {
+      if (cacheControl.contains("no-cache")) {
+        return now;
+      }
+      Matcher matcher = MAX_AGE.matcher(cacheControl);
+      if (matcher.find()) {
+        return now + TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1)));
+      }
+    }
+    String expires = response.getHeader("Expires");
+    if (expires != null) {
+      try {
+        return ZonedDateTime.parse(expires.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+      } catch (DateTimeParseException ex) {
+        // Invalid dates, e.g. "0", mean already expired
+        return now;
+      }
+    }
+    return now + this.defaultTimeToLive;
+  }
+
+  private void store(MVTTileId tile, MVTTileCache.Entry entry) {
+    try {
+      this.cache.put(this.template, tile, entry);
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Can't store tile " + tile + " in the cache", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return this.template;
+  }
+}
@@ -23,18 +23,21 @@
  */
 package org.gvsig.mvtrenderer.main;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
-import javax.imageio.ImageIO;
 import org.apache.commons.lang3.StringUtils;
+import org.gvsig.mvtrenderer.lib.impl.MVTBatchRenderer;
+import org.gvsig.mvtrenderer.lib.impl.MVTFileTileCache;
+import org.gvsig.mvtrenderer.lib.impl.MVTImageCache;
+import org.gvsig.mvtrenderer.lib.impl.MVTMetrics;
+import org.gvsig.mvtrenderer.lib.impl.MVTPipelineStage;
 import org.gvsig.mvtrenderer.lib.impl.MVTStyles;
-import org.gvsig.mvtrenderer.lib.impl.MVTTile;
-import org.locationtech.jts.geom.Envelope;
+import org.gvsig.mvtrenderer.lib.impl.MVTTileId;
+import org.gvsig.mvtrenderer.lib.impl.MVTUrlTileSource;
 
 /**
  *
@@ -61,66 +64,54 @@ public class Main {
 //    System.out.println("Style downloaded and parsed successfully.");
 //  }
 
-  /**
-   * Calcula el Envelope de un tile de OSM en coordenadas Web Mercator
-   * (EPSG:3857). Las unidades resultantes están en metros.
-   *
-   * @param x Coordenada X del tile
-   * @param y Coordenada Y del tile
-   * @param z Nivel de zoom
-   * @return Envelope en metros [minX, maxX, minY, maxY]
-   */
-  private static Envelope getOSMTileEnvelope(int x, int y, int z) {
-    // La circunferencia de la Tierra en el Ecuador para EPSG:3857
-    // Corresponde a 2 * PI * 6378137 metros
-    double worldSize = 40075016.68557849;
-    double originShift = worldSize / 2.0; // 20037508.34...
-
-    // Tamaño de una tesela en metros para el nivel de zoom actual
-    double numTiles = Math.pow(2, z);
-    double tileSizeMeters = worldSize / numTiles;
-
-    // Cálculo de las coordenadas X (Oeste a Este)
-    // El origen X (0) en metros está en el meridiano de Greenwich. 
-    // Los tiles empiezan en el borde izquierdo (-originShift)
-    double minX = -originShift + (x * tileSizeMeters);
-    double maxX = -originShift + ((x + 1) * tileSizeMeters);
-
-    // Cálculo de las coordenadas Y (Sur a Norte)
-    // En el sistema de tiles de OSM, y=0 es el Norte.
-    // En EPSG:3857, el eje Y positivo va hacia el Norte.
-    double maxY = originShift - (y * tileSizeMeters);
-    double minY = originShift - ((y + 1) * tileSizeMeters);
-
-    return new Envelope(minX, maxX, minY, maxY);
-  }
-
   public static void main(String[] args) throws Exception {
     URL urlStyles = new URL("https://gvagis.icv.gva.es/server/rest/services/Hosted/MapabaseBasico/VectorTileServer/resources/styles/root.json");
 //    URL urlStyles = new URL("https://icvficherosweb.icv.gva.es/00/geovisorgva/vt_estilos/Basico_ICV.json");
     MVTStyles mvtStyle = new MVTStyles();
+    mvtStyle.addVariant(false, 10.0);
     mvtStyle.download(urlStyles);
     int z = 16;
-    for (int y = 24933; y <= 24934; y++) {
-      for (int x = 32663; x <= 32666; x++) {
-        URL urlTile = new URL("https://gvagis.icv.gva.es/server/rest/services/Hosted/MapabaseBasico/VectorTileServer/tile/{z}/{y}/{x}.pbf");
-//        URL urlTile = URI.create("https://gvagis.icv.gva.es/server/rest/services/Hosted/MapabaseBasico/VectorTileServer/tile/{z}/{y}/{x}.pbf").toURL();
-        MVTTile mvtTile = new MVTTile(); //CRS.decode("EPSG:3857"),CRS.decode("EPSG:3857"));
-        mvtTile.setAssignScaleDenominator(true);
-        mvtTile.setTextMaxSizeLimit(10.0);
-//        mvtTile.setEnableTextPartials(true);
-        Map<String, String> params = new HashMap<>();
-        params.put("assignScaleDenominator", "true");
-        params.put("textMaxSizeLimits", "10.0");
-        params.put("showTileLimits", "true");
-        mvtTile.setParams(params);
-        mvtTile.debugMode = false;
-        mvtTile.download(urlTile, z, y, x, getOSMTileEnvelope(x, y, z), mvtStyle.extractFieldsFromStyles());
-        BufferedImage image = mvtTile.render(mvtStyle, 512, 512);
-        ImageIO.write(image, "png", new File(mvtTile.getFolder() + "tile_" + y + "_" + x + ".png"));
+    MVTUrlTileSource source = new MVTUrlTileSource("https://gvagis.icv.gva.es/server/rest/services/Hosted/MapabaseBasico/VectorTileServer/tile/{z}/{y}/{x}.pbf");
+    source.setCache(new MVTFileTileCache(new File("../tmp/cache")));
+    MVTBatchRenderer renderer = new MVTBatchRenderer(mvtStyle, source);
+    Map<String, String> params = new HashMap<>();
+    params.put("assignScaleDenominator", "true");
+    params.put("textMaxSizeLimit", "10.0");
+    params.put("showTileLimits", "true");
+    params.put("strictProjection", "true");
+//    params.put("enableTextPartials", "true");
+    renderer.setParams(params);
+    renderer.setTileSize(512, 512);
+    renderer.setFormat("png");
+    MVTImageCache imageCache = new MVTImageCache(64 * 1024 * 1024, new File("../tmp/images"));
+    mvtStyle.addStyleChangeListener(imageCache);
+    renderer.setImageCache(imageCache);
+    MVTMetrics metrics = new MVTMetrics();
+    metrics.register("main");
+    renderer.setMetrics(metrics);
+
+    File folder = new File("../tmp/tiles");
+    folder.mkdirs();
+    renderer.render(MVTTileId.range(z, 32663, 32666, 24933, 24934), (MVTBatchRenderer.Result result) -> {
+      MVTTileId tile = result.getTile();
+      if (!result.isOk()) {
+        System.err.println("Can't render tile " + tile + ": " + result.getError());
+        return;
       }
-    }
+      File f = new File(folder, "tile_" + tile.getZ() + "_" + tile.getY() + "_" + tile.getX() + ".png");
+      try {
+        Files.write(f.toPath(), result.getData());
+      } catch (IOException ex) {
+        System.err.println("Can't write " + f + ": " + ex);
+      }
+    });
     System.out.println("Required fonts: " + StringUtils.join(mvtStyle.getUsedFontNames(), ","));
+    System.out.println("Encoded " + renderer.getEncoder().getStatistics());
+    System.out.println("Metrics " + metrics.getStatistics());
+    System.out.println("Features " + metrics.getLayerFeatures() + ", vertices " + metrics.getLayerVertices());
+    for (MVTPipelineStage stage : renderer.getStages()) {
+      System.out.println("Stage " + stage.getStatistics());
+    }
   }
   
 }
@@ -0,0 +1,512 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.gvsig.mvtrenderer.lib.impl.MVTBatchRenderer;
+import org.gvsig.mvtrenderer.lib.impl.MVTDecodedTileCache;
+import org.gvsig.mvtrenderer.lib.impl.MVTFileTileCache;
+import org.gvsig.mvtrenderer.lib.impl.MVTFiles;
+import org.gvsig.mvtrenderer.lib.impl.MVTImageEncoder;
+import org.gvsig.mvtrenderer.lib.impl.MVTMBTilesSource;
+import org.gvsig.mvtrenderer.lib.impl.MVTMetrics;
+import org.gvsig.mvtrenderer.lib.impl.MVTPMTilesSource;
+import org.gvsig.mvtrenderer.lib.impl.MVTRenderProfiler;
+import org.gvsig.mvtrenderer.lib.impl.MVTSingleFlight;
+import org.gvsig.mvtrenderer.lib.impl.MVTStyles;
+import org.gvsig.mvtrenderer.lib.impl.MVTTileId;
+import org.gvsig.mvtrenderer.lib.impl.MVTTileSource;
+import org.gvsig.mvtrenderer.lib.impl.MVTUrlTileSource;
+
+/**
+ * Command line tool that renders all the tiles of a bounding box and a
+ * range of zoom levels to a folder tree {@code <output>/<z>/<x>/<y>.<ext>}.
+ * <p>
+ * The tiles are rendered on all the processors with a
+ * {@link MVTBatchRenderer}. The rendered tiles are recorded in a checkpoint
+ * file in the output folder, named after the style and the render settings,
+ * so an interrupted run resumes where it stopped and the tiles already
+ * rendered with the same style and settings are skipped. Files whose
+ * content doesn't change are not rewritten. The progress, throughput, ETA
+ * and error count are printed periodically.
+ * <p>
+ * Run without arguments to see the options.
+ *
+ * @author fdiaz
+ */
+public class Seeder {
+
+  private static final double MAX_LATITUDE = 85.05112878;
+
+  private static final String USAGE = String.join("\n",
+          "Usage: Seeder --style <url> --tiles <url template> --bbox <minLon,minLat,maxLon,maxLat>",
+          "              --zoom <min>[-<max>] --output <folder> [options]",
+          "",
+          "  --style <url>            Mapbox style.",
+          "  --tiles <template>       Tile URL template with {z}, {x} and {y}, or a .mbtiles or .pmtiles file.",
+          "  --bbox <bbox>            Bounding box in WGS84 degrees.",
+          "  --zoom <min>-<max>       Zoom levels to render.",
+          "  --output <folder>        Output folder.",
+          "  --format <format>        png, png8, jpeg... Defaults to png.",
+          "  --size <pixels>          Tile size. Defaults to 512.",
+          "  --threads <n>            Render threads. Defaults to the number of processors.",
+          "  --metatile <n>           Render blocks of n x n tiles. Defaults to 4.",
+          "  --source-max-zoom <z>    Deepest zoom level of the source; deeper tiles are overzoomed.",
+          "                           Defaults to the max zoom of a .mbtiles or .pmtiles file.",
+          "  --cache <folder>         Cache of the downloaded tiles.",
+          "  --param <key=value>      Render parameter, see MVTTile.setParams. Can be repeated.",
+          "  --progress <seconds>     Interval between progress reports. Defaults to 10.",
+          "  --profile <n>            Paint the style layers one at a time and print the n most",
+          "                           expensive of each zoom level at the end.",
+          "  --force                  Render all the tiles, ignoring the checkpoint."
+  );
+
+  private String style;
+  private String tiles;
+  private double[] bbox;
+  private int minZoom;
+  private int maxZoom;
+  private boolean hasZoom = false;
+  private File output;
+  private String format = "png";
+  private int size = 512;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int metaTile = 4;
+  private Integer sourceMaxZoom;
+  private File cache;
+  private final Map<String, String> params = new TreeMap<>();
+  private int progressInterval = 10;
+  private boolean force = false;
+  private int profile = 0;
+
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong rendered = new AtomicLong();
+  private final AtomicLong unchanged = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile int currentZoom;
+  private long startTime;
+
+  public static void main(String[] args) throws Exception {
+    Seeder seeder = new Seeder();
+    try {
+      seeder.parse(args);
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+    seeder.run();
+    System.exit(seeder.errors.get() == 0 ? 0 : 1);
+  }
+
+  private void parse(String[] args) {
+    if (args.length == 0) {
+      throw new IllegalArgumentException("Missing arguments");
+    }
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ("--force".equals(arg)) {
+        this.force = true;
+        continue;
+      }
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value of " + arg);
+      }
+      String value = args[++i];
+      try {
+        switch (arg) {
+          case "--style":
+            this.style = value;
+            break;
+          case "--tiles":
+            this.tiles = value;
+            break;
+          case "--bbox":
+            this.bbox = Arrays.stream(StringUtils.split(value, ',')).mapToDouble(Double::parseDouble).toArray();
+            if (this.bbox.length != 4) {
+              throw new IllegalArgumentException("The bbox must be minLon,minLat,maxLon,maxLat");
+            }
+            break;
+          case "--zoom":
+            String[] range = StringUtils.split(value, '-');
+            if (range.length == 0 || range.length > 2) {
+              throw new IllegalArgumentException("The zoom must be <min>[-<max>]");
+            }
+            this.minZoom = Integer.parseInt(range[0]);
+            this.maxZoom = range.length > 1 ? Integer.parseInt(range[1]) : this.minZoom;
+            this.hasZoom = true;
+            break;
+          case "--output":
+            this.output = new File(value);
+            break;
+          case "--format":
+            this.format = value;
+            break;
+          case "--size":
+            this.size = Integer.parseInt(value);
+            break;
+          case "--threads":
+            this.threads = Integer.parseInt(value);
+            break;
+          case "--metatile":
+            this.metaTile = Integer.parseInt(value);
+            break;
+          case "--source-max-zoom":
+            this.sourceMaxZoom = Integer.valueOf(value);
+            break;
+          case "--cache":
+            this.cache = new File(value);
+            break;
+          case "--param":
+            this.params.put(StringUtils.substringBefore(value, "="), StringUtils.substringAfter(value, "="));
+            break;
+          case "--progress":
+            this.progressInterval = Integer.parseInt(value);
+            break;
+          case "--profile":
+            this.profile = Integer.parseInt(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+      }
+    }
+    if (this.style == null || this.tiles == null || this.bbox == null || !this.hasZoom || this.output == null) {
+      throw new IllegalArgumentException("The options --style, --tiles, --bbox, --zoom and --output are required");
+    }
+    if (this.minZoom < 0 || this.maxZoom < this.minZoom || this.maxZoom > 28) {
+      throw new IllegalArgumentException("Invalid zoom range " + this.minZoom + "-" + this.maxZoom);
+    }
+    if (this.sourceMaxZoom != null) {
+      this.params.put("sourceMaxZoom", String.valueOf(this.sourceMaxZoom));
+    }
+  }
+
+  private void run() throws Exception {
+    MVTStyles mvtStyles = new MVTStyles();
+    mvtStyles.download(new URL(this.style));
+
+    MVTTileSource source;
+    if (StringUtils.endsWithIgnoreCase(this.tiles, ".mbtiles")) {
+      MVTMBTilesSource mbtiles = new MVTMBTilesSource(new File(this.tiles));
+      mbtiles.setMaxConnections(this.threads);
+      if (this.sourceMaxZoom == null) {
+        this.params.put("sourceMaxZoom", String.valueOf(mbtiles.getMaxZoom()));
+      }
+      source = mbtiles;
+    } else if (StringUtils.endsWithIgnoreCase(this.tiles, ".pmtiles")) {
+      MVTPMTilesSource pmtiles = new MVTPMTilesSource(new File(this.tiles));
+      if (this.sourceMaxZoom == null) {
+        this.params.put("sourceMaxZoom", String.valueOf(pmtiles.getMaxZoom()));
+      }
+      source = pmtiles;
+    } else {
+      MVTUrlTileSource urlSource = new MVTUrlTileSource(this.tiles);
+      if (this.cache != null) {
+        urlSource.setCache(new MVTFileTileCache(this.cache));
+      }
+      source = urlSource;
+    }
+    MVTImageEncoder encoder = MVTImageEncoder.get(this.format);
+    MVTBatchRenderer renderer = new MVTBatchRenderer(mvtStyles, source);
+    renderer.setParams(this.params);
+    renderer.setTileSize(this.size, this.size);
+    renderer.setEncoder(encoder);
+    renderer.setConcurrency(this.threads);
+    renderer.setMetaTileSize(this.metaTile, this.metaTile);
+    // Overzoomed tiles and metatile neighbours share decoded tiles.
+    renderer.setDecodedCache(new MVTDecodedTileCache(256L * 1024 * 1024));
+    renderer.setSingleFlight(new MVTSingleFlight<>());
+    MVTMetrics metrics = new MVTMetrics();
+    metrics.register("seeder");
+    renderer.setMetrics(metrics);
+    MVTRenderProfiler profiler = null;
+    if (this.profile > 0) {
+      profiler = new MVTRenderProfiler();
+      renderer.setProfiler(profiler);
+    }
+
+    String extension = encoder.getFormat().startsWith("png") ? "png" : "jpeg".equals(encoder.getFormat()) ? "jpg" : encoder.getFormat();
+    Checkpoint checkpoint = new Checkpoint(new File(new File(this.output, ".seed"), getSettingsHash(mvtStyles, encoder) + ".done"));
+    if (!this.force) {
+      checkpoint.load();
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(checkpoint::close));
+
+    Map<Integer, int[]> ranges = new LinkedHashMap<>();
+    for (int z = this.minZoom; z <= this.maxZoom; z++) {
+      int[] range = getTileRange(z);
+      ranges.put(z, range);
+      this.total.addAndGet((long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1));
+    }
+    System.out.println("Seeding " + this.total.get() + " tiles of zoom levels " + this.minZoom + "-" + this.maxZoom + " to " + this.output);
+
+    this.startTime = System.nanoTime();
+    ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "mvt-seed-progress");
+      t.setDaemon(true);
+      return t;
+    });
+    progress.scheduleAtFixedRate(this::printProgress, this.progressInterval, this.progressInterval, TimeUnit.SECONDS);
+    try {
+      for (Map.Entry<Integer, int[]> entry : ranges.entrySet()) {
+        seedZoom(renderer, entry.getKey(), entry.getValue(), extension, checkpoint);
+      }
+    } finally {
+      progress.shutdownNow();
+      checkpoint.close();
+    }
+    printProgress();
+    System.out.println("Encoded " + encoder.getStatistics());
+    System.out.println("Metrics " + metrics.getStatistics());
+    if (profiler != null) {
+      System.out.print(profiler.getReport(this.profile));
+    }
+  }
+
+  /**
+   * Renders the tiles of a zoom level in bands of rows aligned with the
+   * metatiles, so the tiles in flight don't depend on the size of the level.
+   */
+  private void seedZoom(MVTBatchRenderer renderer, int z, int[] range, String extension, Checkpoint checkpoint) throws InterruptedException {
+    this.currentZoom = z;
+    int columns = range[2] - range[0] + 1;
+    int bandRows = this.metaTile * Math.max(1, 4096 / (columns * this.metaTile));
+    for (int bandStart = (range[1] / this.metaTile) * this.metaTile; bandStart <= range[3]; bandStart += bandRows) {
+      List<MVTTileId> band = new ArrayList<>();
+      for (int y = Math.max(bandStart, range[1]); y <= Math.min(bandStart + bandRows - 1, range[3]); y++) {
+        for (int x = range[0]; x <= range[2]; x++) {
+          MVTTileId tile = new MVTTileId(z, x, y);
+          if (checkpoint.contains(tile) && getFile(tile, extension).exists()) {
+            this.skipped.incrementAndGet();
+          } else {
+            band.add(tile);
+          }
+        }
+      }
+      if (band.isEmpty()) {
+        continue;
+      }
+      renderer.render(band, (MVTBatchRenderer.Result result) -> {
+        MVTTileId tile = result.getTile();
+        if (!result.isOk()) {
+          this.errors.incrementAndGet();
+          System.err.println("Can't render tile " + tile + ": " + result.getError());
+          return;
+        }
+        try {
+          if (write(getFile(tile, extension).toPath(), result.getData())) {
+            this.rendered.incrementAndGet();
+          } else {
+            this.unchanged.incrementAndGet();
+          }
+          checkpoint.add(tile);
+        } catch (IOException ex) {
+          this.errors.incrementAndGet();
+          System.err.println("Can't write tile " + tile + ": " + ex);
+        }
+      });
+    }
+  }
+
+  private File getFile(MVTTileId tile, String extension) {
+    return new File(this.output, tile.getZ() + File.separator + tile.getX() + File.separator + tile.getY() + "." + extension);
+  }
+
+  /**
+   * Writes a file unless it already has the same content.
+   *
+   * @return false if the file was unchanged.
+   */
+  private static boolean write(Path path, byte[] data) throws IOException {
+    try {
+      if (Files.size(path) == data.length && Arrays.equals(Files.readAllBytes(path), data)) {
+        return false;
+      }
+    } catch (NoSuchFileException ex) {
+      // A new tile
+    }
+    MVTFiles.writeAtomically(path, data);
+    return true;
+  }
+
+  /**
+   * Returns the range of tiles of a zoom level that cover the bounding box,
+   * as {minX, minY, maxX, maxY}.
+   */
+  private int[] getTileRange(int z) {
+    int n = 1 << z;
+    int minX = lonToTile(this.bbox[0], n);
+    int maxX = lonToTile(this.bbox[2], n);
+    // The rows go from north to south.
+    int minY = latToTile(this.bbox[3], n);
+    int maxY = latToTile(this.bbox[1], n);
+    return new int[]{minX, minY, maxX, maxY};
+  }
+
+  private static int lonToTile(double lon, int n) {
+    int x = (int) Math.floor((lon + 180) / 360 * n);
+    return Math.max(0, Math.min(n - 1, x));
+  }
+
+  private static int latToTile(double lat, int n) {
+    double rad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+    int y = (int) Math.floor((1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2 * n);
+    return Math.max(0, Math.min(n - 1, y));
+  }
+
+  /**
+   * Returns a hash of everything that changes the rendered tiles, to name
+   * the checkpoint file.
+   */
+  private String getSettingsHash(MVTStyles mvtStyles, MVTImageEncoder encoder) {
+    String settings = mvtStyles.getFingerprint()
+            + "|" + this.tiles
+            + "|" + this.params
+            + "|" + encoder
+            + "|" + this.size
+            + "|" + this.metaTile
+            + (this.profile > 0 ? "|profile" : "");
+    return MVTFiles.hex("SHA-1", settings, 8);
+  }
+
+  private void printProgress() {
+    long done = this.rendered.get() + this.unchanged.get() + this.errors.get();
+    long remaining = this.total.get() - done - this.skipped.get();
+    double seconds = (System.nanoTime() - this.startTime) / 1e9;
+    double rate = seconds > 0 ? done / seconds : 0;
+    long eta = rate > 0 ? (long) (remaining / rate) : -1;
+    System.out.println(String.format(
+            Locale.ROOT,
+            "z%d: %d/%d tiles (%.1f%%), %d rendered, %d unchanged, %d skipped, %d errors, %.1f tiles/s, ETA %s",
+            this.currentZoom,
+            done + this.skipped.get(),
+            this.total.get(),
+            this.total.get() == 0 ? 100.0 : 100.0 * (done + this.skipped.get()) / this.total.get(),
+            this.rendered.get(),
+            this.unchanged.get(),
+            this.skipped.get(),
+            this.errors.get(),
+            rate,
+            eta < 0 ? "-" : String.format(Locale.ROOT, "%d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60)
+    ));
+  }
+
+  /**
+   * The log of the rendered tiles, one "z/x/y" line per tile.
+   */
+  private static final class Checkpoint {
+
+    private final File file;
+    private final Set<Long> tiles = new HashSet<>();
+    private Writer writer;
+    private long lastFlush;
+
+    private Checkpoint(File file) {
+      this.file = file;
+      this.lastFlush = System.nanoTime();
+    }
+
+    private void load() throws IOException {
+      if (!this.file.exists()) {
+        return;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] parts = StringUtils.split(line, '/');
+          // A truncated last line of an interrupted run is ignored.
+          if (parts.length == 3) {
+            try {
+              this.tiles.add(key(new MVTTileId(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]))));
+            } catch (NumberFormatException ex) {
+              // Ignore
+            }
+          }
+        }
+      }
+      System.out.println("Resuming from " + this.file + ": " + this.tiles.size() + " tiles done");
+    }
+
+    private boolean contains(MVTTileId tile) {
+      return this.tiles.contains(key(tile));
+    }
+
+    private synchronized void add(MVTTileId tile) throws IOException {
+      if (this.writer == null) {
+        Files.createDirectories(this.file.getParentFile().toPath());
+        this.writer = new BufferedWriter(Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+      }
+      this.writer.write(tile.toString());
+      this.writer.write('\n');
+      if (System.nanoTime() - this.lastFlush > TimeUnit.SECONDS.toNanos(1)) {
+        this.writer.flush();
+        this.lastFlush = System.nanoTime();
+      }
+    }
+
+    private synchronized void close() {
+      if (this.writer != null) {
+        try {
+          this.writer.close();
+        } catch (IOException ex) {
+          System.err.println("Can't write the checkpoint " + this.file + ": " + ex);
+        }
+        this.writer = null;
+      }
+    }
+
+    private static long key(MVTTileId tile) {
+      return ((long) tile.getZ() << 58) | ((long) tile.getX() << 29) | tile.getY();
+    }
+  }
+}
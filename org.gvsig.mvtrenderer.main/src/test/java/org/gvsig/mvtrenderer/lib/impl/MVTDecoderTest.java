@@ -0,0 +1,414 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.MvtReader;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.TagKeyValueMapConverter;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsLayer;
+import io.github.sebasbaumh.mapbox.vectortile.adapt.jts.model.JtsMvt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.geotools.api.feature.simple.SimpleFeature;
+import org.geotools.api.feature.type.AttributeDescriptor;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.AffineTransformation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link MVTDecoder} against {@code MvtReader}, the library it
+ * replaced, on the benchmark fixtures, and on small tiles written by hand
+ * for the cases the fixtures don't have.
+ *
+ * @author fdiaz
+ */
+public class MVTDecoderTest {
+
+  private static final int EXTENT = 4096;
+
+  /**
+   * An envelope with the size of the extent, so the map coordinates are
+   * the tile coordinates with the y axis flipped.
+   */
+  private static final Envelope ENVELOPE = new Envelope(0, EXTENT, 0, EXTENT);
+
+  private static final int CMD_MOVE_TO = 1;
+  private static final int CMD_LINE_TO = 2;
+  private static final int CMD_CLOSE_PATH = 7;
+
+  private static final int GEOM_POINT = 1;
+  private static final int GEOM_LINESTRING = 2;
+  private static final int GEOM_POLYGON = 3;
+
+  /**
+   * Minimal protobuf wire format writer.
+   */
+  private static class ProtoWriter {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    ProtoWriter varint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        this.out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      this.out.write((int) value);
+      return this;
+    }
+
+    ProtoWriter varint(int field, long value) {
+      return varint(field << 3).varint(value);
+    }
+
+    ProtoWriter fixed(int field, long value, int bytes) {
+      varint((field << 3) | (bytes == 4 ? 5 : 1));
+      for (int i = 0; i < bytes; i++) {
+        this.out.write((int) (value >>> (8 * i)) & 0xFF);
+      }
+      return this;
+    }
+
+    ProtoWriter bytes(int field, byte[] bytes) {
+      varint((field << 3) | 2).varint(bytes.length);
+      this.out.writeBytes(bytes);
+      return this;
+    }
+
+    ProtoWriter string(int field, String s) {
+      return bytes(field, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    ProtoWriter packed(int field, int... values) {
+      ProtoWriter packed = new ProtoWriter();
+      for (int value : values) {
+        packed.varint(value & 0xFFFFFFFFL);
+      }
+      return bytes(field, packed.toByteArray());
+    }
+
+    byte[] toByteArray() {
+      return this.out.toByteArray();
+    }
+  }
+
+  private static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  /**
+   * Encodes the geometry commands of some parts, each one a sequence of x,
+   * y tile coordinates, closing them for polygons.
+   */
+  private static int[] geometry(boolean close, int[]... parts) {
+    List<Integer> commands = new ArrayList<>();
+    int cx = 0;
+    int cy = 0;
+    for (int[] part : parts) {
+      for (int i = 0; i < part.length; i += 2) {
+        if (i == 0) {
+          commands.add(CMD_MOVE_TO | (1 << 3));
+        } else if (i == 2) {
+          commands.add(CMD_LINE_TO | ((part.length / 2 - 1) << 3));
+        }
+        commands.add(zigzag(part[i] - cx));
+        commands.add(zigzag(part[i + 1] - cy));
+        cx = part[i];
+        cy = part[i + 1];
+      }
+      if (close) {
+        commands.add(CMD_CLOSE_PATH | (1 << 3));
+      }
+    }
+    return commands.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private static byte[] feature(int type, int[] geometry, int... tags) {
+    ProtoWriter feature = new ProtoWriter();
+    if (tags.length > 0) {
+      feature.packed(2, tags);
+    }
+    return feature.varint(3, type).packed(4, geometry).toByteArray();
+  }
+
+  private static byte[] layer(String name, List<String> keys, List<byte[]> values, byte[]... features) {
+    ProtoWriter layer = new ProtoWriter().varint(15, 2).string(1, name);
+    for (byte[] feature : features) {
+      layer.bytes(2, feature);
+    }
+    for (String key : keys) {
+      layer.string(3, key);
+    }
+    for (byte[] value : values) {
+      layer.bytes(4, value);
+    }
+    return layer.varint(5, EXTENT).toByteArray();
+  }
+
+  private static byte[] tile(byte[]... layers) {
+    ProtoWriter tile = new ProtoWriter();
+    for (byte[] layer : layers) {
+      tile.bytes(3, layer);
+    }
+    return tile.toByteArray();
+  }
+
+  /**
+   * A tile with a layer "shapes" with all the geometry types and value
+   * types, and a layer "other" with a point.
+   */
+  private static byte[] shapesTile() {
+    List<String> keys = List.of("name", "float", "double", "int", "uint", "sint", "bool");
+    List<byte[]> values = List.of(
+            new ProtoWriter().string(1, "a").toByteArray(),
+            new ProtoWriter().fixed(2, Float.floatToIntBits(1.5f), 4).toByteArray(),
+            new ProtoWriter().fixed(3, Double.doubleToLongBits(2.25), 8).toByteArray(),
+            new ProtoWriter().varint(4, -3L).toByteArray(),
+            new ProtoWriter().varint(5, 4L).toByteArray(),
+            new ProtoWriter().varint(6, 9L).toByteArray(), // zigzag of -5
+            new ProtoWriter().varint(7, 1L).toByteArray()
+    );
+    byte[] shapes = layer("shapes", keys, values,
+            // Exterior rings are clockwise with the y axis down, holes the opposite
+            feature(GEOM_POLYGON, geometry(true,
+                    new int[]{100, 100, 1000, 100, 1000, 1000, 100, 1000},
+                    new int[]{200, 200, 200, 800, 800, 800, 800, 200}
+            ), 0, 0, 3, 3),
+            feature(GEOM_POLYGON, geometry(true,
+                    new int[]{2000, 100, 2500, 100, 2500, 600, 2000, 600},
+                    new int[]{3000, 100, 3500, 100, 3500, 600, 3000, 600}
+            ), 1, 1, 2, 2),
+            feature(GEOM_LINESTRING, geometry(false,
+                    new int[]{0, 2000, 500, 2500},
+                    new int[]{1000, 2000, 1500, 2500}
+            ), 4, 4, 5, 5, 6, 6),
+            feature(GEOM_POINT, new int[]{CMD_MOVE_TO | (2 << 3), zigzag(10), zigzag(4000), zigzag(10), zigzag(10)}),
+            feature(GEOM_POINT, geometry(false, new int[]{-10, -20}), 0, 0)
+    );
+    byte[] other = layer("other", List.of("kind"), List.of(new ProtoWriter().string(1, "b").toByteArray()),
+            feature(GEOM_POINT, geometry(false, new int[]{50, 50}), 0, 0)
+    );
+    return tile(shapes, other);
+  }
+
+  private static byte[] load(String fixture) throws IOException {
+    try (InputStream is = MVTDecoderTest.class.getResourceAsStream("/fixtures/" + fixture)) {
+      return is.readAllBytes();
+    }
+  }
+
+  @Test
+  public void testGeometries() throws IOException {
+    Map<String, MVTFeatureCollection> layers = new MVTDecoder().decode(ByteBuffer.wrap(shapesTile()), ENVELOPE, null);
+    assertEquals(List.of("shapes", "other"), new ArrayList<>(layers.keySet()));
+    MVTFeatureCollection shapes = layers.get("shapes");
+    assertEquals(5, shapes.size());
+
+    Polygon polygon = assertInstanceOf(Polygon.class, shapes.getGeometry(0));
+    assertEquals(1, polygon.getNumInteriorRing());
+    assertEquals(new Envelope(100, 1000, EXTENT - 1000, EXTENT - 100), polygon.getEnvelopeInternal());
+    assertEquals(900 * 900 - 600 * 600, polygon.getArea(), 1e-9);
+
+    MultiPolygon multiPolygon = assertInstanceOf(MultiPolygon.class, shapes.getGeometry(1));
+    assertEquals(2, multiPolygon.getNumGeometries());
+    assertEquals(2 * 500 * 500, multiPolygon.getArea(), 1e-9);
+
+    MultiLineString lines = assertInstanceOf(MultiLineString.class, shapes.getGeometry(2));
+    assertEquals(2, lines.getNumGeometries());
+    LineString second = (LineString) lines.getGeometryN(1);
+    assertEquals(1000, second.getCoordinateN(0).x, 1e-9);
+    assertEquals(EXTENT - 2000, second.getCoordinateN(0).y, 1e-9);
+
+    MultiPoint points = assertInstanceOf(MultiPoint.class, shapes.getGeometry(3));
+    assertEquals(2, points.getNumGeometries());
+    assertEquals(20, points.getGeometryN(1).getCoordinate().x, 1e-9);
+    assertEquals(EXTENT - 4010, points.getGeometryN(1).getCoordinate().y, 1e-9);
+
+    // Negative deltas and coordinates out of the extent
+    Point point = assertInstanceOf(Point.class, shapes.getGeometry(4));
+    assertEquals(-10, point.getX(), 1e-9);
+    assertEquals(EXTENT + 20, point.getY(), 1e-9);
+  }
+
+  @Test
+  public void testValueTypes() throws IOException {
+    MVTFeatureCollection shapes = new MVTDecoder().decode(ByteBuffer.wrap(shapesTile()), ENVELOPE, null).get("shapes");
+    SimpleFeature polygon = shapes.getFeature(0);
+    assertEquals("a", polygon.getAttribute("name"));
+    assertEquals(-3L, polygon.getAttribute("int"));
+    assertNull(polygon.getAttribute("float"));
+    SimpleFeature multiPolygon = shapes.getFeature(1);
+    assertEquals(1.5f, multiPolygon.getAttribute("float"));
+    assertEquals(2.25, multiPolygon.getAttribute("double"));
+    SimpleFeature lines = shapes.getFeature(2);
+    assertEquals(4L, lines.getAttribute("uint"));
+    assertEquals(-5L, lines.getAttribute("sint"));
+    assertEquals(Boolean.TRUE, lines.getAttribute("bool"));
+    SimpleFeature points = shapes.getFeature(3);
+    for (String key : List.of("name", "float", "double", "int", "uint", "sint", "bool")) {
+      assertNull(points.getAttribute(key), key);
+    }
+  }
+
+  @Test
+  public void testOnlyRequestedFields() throws IOException {
+    MVTDecoder decoder = new MVTDecoder();
+    decoder.setOnlyRequestedFields(true);
+    Map<String, MVTFeatureCollection> layers = decoder.decode(
+            ByteBuffer.wrap(shapesTile()),
+            ENVELOPE,
+            Map.of("shapes", Set.of("name", "missing"))
+    );
+    assertEquals(Set.of("shapes"), layers.keySet());
+    MVTFeatureCollection shapes = layers.get("shapes");
+    List<String> attributes = new ArrayList<>();
+    for (AttributeDescriptor descriptor : shapes.getSchema().getAttributeDescriptors()) {
+      attributes.add(descriptor.getLocalName());
+    }
+    attributes.sort(null);
+    assertEquals(Arrays.asList(MVTFeatureCollection.GEOMETRY, "missing", "name"), attributes);
+    assertEquals("a", shapes.getFeature(4).getAttribute("name"));
+    assertNull(shapes.getFeature(4).getAttribute("missing"));
+    assertEquals(5, shapes.size());
+  }
+
+  @Test
+  public void testIds() throws IOException {
+    byte[] withId = new ProtoWriter().varint(1, 1L << 40).varint(3, GEOM_POINT)
+            .packed(4, geometry(false, new int[]{10, 10})).toByteArray();
+    byte[] data = tile(layer("ids", List.of(), List.of(),
+            withId,
+            feature(GEOM_POINT, geometry(false, new int[]{20, 20}))
+    ));
+    MVTFeatureCollection ids = new MVTDecoder().decode(ByteBuffer.wrap(data), ENVELOPE, null).get("ids");
+    assertEquals(1L << 40, ids.getId(0));
+    assertNull(ids.getId(1));
+    assertEquals(1L << 40, ids.subset(new int[]{0}).getId(0));
+  }
+
+  @Test
+  public void testClipBuffer() throws IOException {
+    byte[] data = tile(layer("clip", List.of(), List.of(),
+            feature(GEOM_LINESTRING, geometry(false, new int[]{-1000, 2048, 5096, 2048})),
+            feature(GEOM_POLYGON, geometry(true, new int[]{-1000, -1000, 1000, -1000, 1000, 1000, -1000, 1000})),
+            feature(GEOM_POINT, geometry(false, new int[]{5000, 5000})),
+            feature(GEOM_POINT, geometry(false, new int[]{10, 10}))
+    ));
+    MVTFeatureCollection unclipped = new MVTDecoder().decode(ByteBuffer.wrap(data), ENVELOPE, null).get("clip");
+    assertEquals(4, unclipped.size());
+    assertEquals(new Envelope(-1000, 5096, 2048, 2048), unclipped.getGeometry(0).getEnvelopeInternal());
+
+    MVTDecoder decoder = new MVTDecoder();
+    decoder.setClipBuffer(0);
+    MVTFeatureCollection clipped = decoder.decode(ByteBuffer.wrap(data), ENVELOPE, null).get("clip");
+    assertEquals(3, clipped.size());
+    assertEquals(new Envelope(0, EXTENT, 2048, 2048), clipped.getGeometry(0).getEnvelopeInternal());
+    assertEquals(new Envelope(0, 1000, EXTENT - 1000, EXTENT), clipped.getGeometry(1).getEnvelopeInternal());
+    assertEquals(1000 * 1000, clipped.getGeometry(1).getArea(), 1e-9);
+    assertEquals(new Envelope(10, 10, EXTENT - 10, EXTENT - 10), clipped.getGeometry(2).getEnvelopeInternal());
+  }
+
+  @Test
+  public void testCorruptTiles() {
+    byte[] data = shapesTile();
+    MVTDecoder decoder = new MVTDecoder();
+    assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 3)), ENVELOPE, null));
+    // A length that overflows the position
+    byte[] huge = new ProtoWriter().varint((3 << 3) | 2).varint(Integer.MAX_VALUE).varint(0).toByteArray();
+    assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(huge), ENVELOPE, null));
+    // A length beyond the int range, 5 if truncated to int
+    byte[] wide = new ProtoWriter().varint((3 << 3) | 2).varint(0x1_0000_0005L).varint(0).varint(0).toByteArray();
+    assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(wide), ENVELOPE, null));
+  }
+
+  @Test
+  public void testSameAsMvtReader() throws IOException {
+    assertSameAsMvtReader("rural_z14.pbf", new MVTTileId(14, 8166, 6233));
+    assertSameAsMvtReader("urban_z16_gzip.pbf", new MVTTileId(16, 32663, 24933));
+  }
+
+  private static void assertSameAsMvtReader(String fixture, MVTTileId tile) throws IOException {
+    byte[] data = load(fixture);
+    Envelope envelope = tile.getEnvelope();
+    Map<String, MVTFeatureCollection> decoded = new MVTDecoder().decode(ByteBuffer.wrap(data), envelope, null);
+
+    ByteBuffer uncompressed = MVTDecoder.uncompress(ByteBuffer.wrap(data));
+    byte[] raw = new byte[uncompressed.remaining()];
+    uncompressed.get(uncompressed.position(), raw);
+    JtsMvt mvt = MvtReader.loadMvt(new ByteArrayInputStream(raw), new GeometryFactory(), new TagKeyValueMapConverter());
+
+    Set<String> names = new HashSet<>();
+    for (JtsLayer layer : mvt.getLayers()) {
+      names.add(layer.getName());
+    }
+    assertEquals(names, decoded.keySet(), fixture);
+
+    for (JtsLayer layer : mvt.getLayers()) {
+      MVTFeatureCollection features = decoded.get(layer.getName());
+      List<Geometry> expected = new ArrayList<>(layer.getGeometries());
+      assertEquals(expected.size(), features.size(), layer.getName());
+      AffineTransformation transformation = new AffineTransformation();
+      transformation.scale(envelope.getWidth() / layer.getExtent(), -envelope.getHeight() / layer.getExtent());
+      transformation.translate(envelope.getMinX(), envelope.getMaxY());
+      for (int row = 0; row < expected.size(); row++) {
+        Geometry geometry = expected.get(row);
+        String message = layer.getName() + " feature " + row;
+        assertTrue(
+                transformation.transform(geometry).norm().equalsExact(features.getGeometry(row).norm(), 1e-6),
+                message
+        );
+        Map<?, ?> attributes = (Map<?, ?>) geometry.getUserData();
+        SimpleFeature feature = features.getFeature(row);
+        for (AttributeDescriptor descriptor : feature.getFeatureType().getAttributeDescriptors()) {
+          String name = descriptor.getLocalName();
+          if (!MVTFeatureCollection.GEOMETRY.equals(name)) {
+            assertEquals(attributes == null ? null : attributes.get(name), feature.getAttribute(name), message + " " + name);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the file and hashing utilities shared by the caches and the seeder.
+ *
+ * @author fdiaz
+ */
+public class MVTFilesTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testHex() {
+    assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", MVTFiles.hex("SHA-1", "abc"));
+    assertEquals("a9993e364706816a", MVTFiles.hex("SHA-1", "abc", 8));
+    assertEquals(64, MVTFiles.hex("SHA-256", "abc").length());
+  }
+
+  @Test
+  public void testWriteAtomically() throws IOException {
+    Path path = this.tempDir.resolve("a").resolve("b").resolve("file.bin");
+    MVTFiles.writeAtomically(path, new byte[]{1, 2, 3});
+    assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(path));
+    MVTFiles.writeAtomically(path, new byte[]{4});
+    assertArrayEquals(new byte[]{4}, Files.readAllBytes(path));
+    try (var files = Files.list(path.getParent())) {
+      assertEquals(1, files.count());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import org.geotools.api.filter.Filter;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.mbstyle.parse.MBFilter;
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the prefilter of the style layers: it must never leave out a
+ * feature the GeoTools filter of the style accepts, and it should leave out
+ * the ones it can tell don't match.
+ *
+ * @author fdiaz
+ */
+public class MVTFilterTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  /**
+   * The filters and the features each one may match, see
+   * {@link #createFeatures()}.
+   */
+  private static final Object[][] FILTERS = {
+    {"[\"==\", \"class\", \"park\"]", new boolean[]{true, false, false, true, false}},
+    {"[\"==\", [\"get\", \"class\"], \"park\"]", new boolean[]{true, false, false, true, false}},
+    {"[\"!=\", \"class\", \"park\"]", new boolean[]{false, true, true, true, true}},
+    {"[\"==\", \"rank\", 1]", new boolean[]{false, true, false, true, false}},
+    {"[\">=\", \"rank\", 2]", new boolean[]{true, false, false, true, true}},
+    {"[\"<\", \"name\", \"m\"]", new boolean[]{true, false, false, false, true}},
+    {"[\"in\", \"class\", \"park\", \"water\"]", new boolean[]{true, false, false, true, true}},
+    {"[\"!in\", \"class\", \"park\"]", new boolean[]{false, true, true, true, true}},
+    {"[\"has\", \"name\"]", new boolean[]{true, true, true, true, true}},
+    {"[\"!has\", \"name\"]", new boolean[]{false, true, false, true, false}},
+    {"[\"==\", \"oneway\", true]", new boolean[]{true, false, false, false, true}},
+    {"[\"all\", [\"==\", \"class\", \"park\"], [\">\", \"rank\", 2]]", new boolean[]{true, false, false, true, false}},
+    {"[\"any\", [\"==\", \"class\", \"forest\"], [\"==\", \"rank\", 2]]", new boolean[]{false, true, false, true, true}},
+    {"[\"none\", [\"==\", \"class\", \"park\"], [\"has\", \"name\"]]", new boolean[]{false, true, false, true, false}}
+  };
+
+  /**
+   * Creates the features the filters are evaluated on. The last ones have
+   * null values and values of other types than the literals of the filters,
+   * whose comparison is left to GeoTools.
+   */
+  private static MVTFeatureCollection createFeatures() {
+    SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+    tb.setName("test");
+    tb.add(MVTFeatureCollection.GEOMETRY, Geometry.class);
+    for (String attr : new String[]{"class", "rank", "name", "oneway"}) {
+      tb.add(attr, Object.class);
+    }
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(tb.buildFeatureType());
+    Geometry point = GEOMETRY_FACTORY.createPoint(new Coordinate(0, 0));
+    Geometry line = GEOMETRY_FACTORY.createLineString(new Coordinate[]{new Coordinate(0, 0), new Coordinate(1, 1)});
+    Geometry polygon = GEOMETRY_FACTORY.createPolygon(new Coordinate[]{
+      new Coordinate(0, 0), new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 0)
+    });
+    add(builder, point, "park", 3L, "Parc", true);
+    add(builder, line, "forest", 1L, null, false);
+    add(builder, polygon, null, null, "x", null);
+    add(builder, point, 1L, "3", null, null);
+    add(builder, polygon, "water", 2.0, "Aigua", true);
+    return builder.build();
+  }
+
+  private static void add(MVTFeatureCollection.Builder builder, Geometry geometry, Object featureClass, Object rank, Object name, Object oneway) {
+    builder.add(geometry);
+    builder.set("class", featureClass);
+    builder.set("rank", rank);
+    builder.set("name", name);
+    builder.set("oneway", oneway);
+  }
+
+  private static JSONArray parse(String filter) throws ParseException {
+    return (JSONArray) new JSONParser().parse(filter);
+  }
+
+  private static boolean[] mayMatch(MVTFilter filter, MVTFeatureCollection features) {
+    boolean[] result = new boolean[features.size()];
+    for (int row = 0; row < result.length; row++) {
+      result[row] = filter.mayMatch(features, row);
+    }
+    return result;
+  }
+
+  @Test
+  public void testNeverRejectsWhatGeoToolsAccepts() throws ParseException {
+    MVTFeatureCollection features = createFeatures();
+    for (Object[] test : FILTERS) {
+      String json = (String) test[0];
+      MVTFilter filter = MVTFilter.compile(parse(json));
+      Filter geotoolsFilter = new MBFilter(parse(json)).filter();
+      for (int row = 0; row < features.size(); row++) {
+        if (geotoolsFilter.evaluate(features.getFeature(row))) {
+          assertTrue(filter.mayMatch(features, row), json + " rejects feature " + row);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRejectsWhatCanNotMatch() throws ParseException {
+    MVTFeatureCollection features = createFeatures();
+    for (Object[] test : FILTERS) {
+      String json = (String) test[0];
+      assertArrayEquals((boolean[]) test[1], mayMatch(MVTFilter.compile(parse(json)), features), json);
+    }
+  }
+
+  @Test
+  public void testGeometryType() throws ParseException {
+    MVTFeatureCollection features = createFeatures();
+    assertArrayEquals(
+            new boolean[]{false, false, true, false, true},
+            mayMatch(MVTFilter.compile(parse("[\"==\", \"$type\", \"Polygon\"]")), features)
+    );
+    assertArrayEquals(
+            new boolean[]{false, true, true, false, true},
+            mayMatch(MVTFilter.compile(parse("[\"!=\", \"$type\", \"Point\"]")), features)
+    );
+    assertArrayEquals(
+            new boolean[]{true, true, false, true, false},
+            mayMatch(MVTFilter.compile(parse("[\"in\", \"$type\", \"Point\", \"LineString\"]")), features)
+    );
+  }
+
+  @Test
+  public void testFilterKeepsTheRowsThatMayMatch() throws ParseException {
+    MVTFeatureCollection features = createFeatures();
+    MVTFeatureCollection parks = MVTFilter.compile(parse("[\"==\", \"class\", \"park\"]")).filter(features);
+    assertEquals(2, parks.size());
+    assertEquals("park", parks.getFeature(0).getAttribute("class"));
+    assertEquals(1L, parks.getFeature(1).getAttribute("class"));
+    MVTFeatureCollection all = MVTFilter.compile(parse("[\"has\", \"name\"]")).filter(features);
+    assertEquals(features, all);
+  }
+
+  @Test
+  public void testUnsupportedFilters() throws ParseException {
+    assertNull(MVTFilter.compile(parse("[\"==\", [\"zoom\"], 5]")));
+    assertNull(MVTFilter.compile(parse("[\"==\", \"$id\", 5]")));
+    assertNull(MVTFilter.compile(parse("[\"==\", [\"get\", \"class\"], [\"get\", \"name\"]]")));
+    assertNull(MVTFilter.compile(null));
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link MVTHttpFetcher} against a local HTTP server.
+ *
+ * @author fdiaz
+ */
+public class MVTHttpFetcherTest {
+
+  private static final byte[] BODY = "tile".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Answers the n-th request (from 0) of a test.
+   */
+  private interface Handler {
+
+    void handle(int request, HttpExchange exchange) throws Exception;
+  }
+
+  private HttpServer server;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private volatile Handler handler;
+  private MVTHttpFetcher fetcher;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    this.handler = (request, exchange) -> reply(exchange, 200, BODY);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/", exchange -> {
+      this.clientPorts.add(exchange.getRemoteAddress().getPort());
+      try (exchange) {
+        this.handler.handle(this.requests.getAndIncrement(), exchange);
+      } catch (Exception ex) {
+        // The client went away, e.g. after a timeout
+      }
+    });
+    this.server.setExecutor(Executors.newCachedThreadPool());
+    this.server.start();
+    this.fetcher = new MVTHttpFetcher();
+    this.fetcher.setRetryDelay(10);
+  }
+
+  @AfterEach
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  private URL getURL() throws IOException {
+    return new URL("http://localhost:" + this.server.getAddress().getPort() + "/tile.pbf");
+  }
+
+  private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  @Test
+  public void testRetriesServiceUnavailable() throws IOException {
+    this.handler = (request, exchange) -> reply(exchange, request < 2 ? 503 : 200, request < 2 ? null : BODY);
+    assertArrayEquals(BODY, this.fetcher.get(getURL()));
+    assertEquals(3, this.requests.get());
+  }
+
+  @Test
+  public void testRetriesTooManyRequestsAfterRetryAfter() throws IOException {
+    this.handler = (request, exchange) -> {
+      if (request == 0) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        reply(exchange, 429, null);
+      } else {
+        reply(exchange, 200, BODY);
+      }
+    };
+    long start = System.nanoTime();
+    assertArrayEquals(BODY, this.fetcher.get(getURL()));
+    assertEquals(2, this.requests.get());
+    assertTrue(System.nanoTime() - start >= 900_000_000L, "Waited the Retry-After");
+  }
+
+  @Test
+  public void testLongRetryAfterFailsFast() throws IOException {
+    this.fetcher.setMaxRetryDelay(1000);
+    this.handler = (request, exchange) -> {
+      exchange.getResponseHeaders().set("Retry-After", "3600");
+      reply(exchange, 503, null);
+    };
+    long start = System.nanoTime();
+    assertThrows(IOException.class, () -> this.fetcher.get(getURL()));
+    assertEquals(503, this.fetcher.send(getURL(), Collections.emptyMap()).getStatusCode());
+    CompletionException ex = assertThrows(CompletionException.class, () -> this.fetcher.getAsync(getURL()).join());
+    assertTrue(ex.getCause() instanceof IOException);
+    assertEquals(3, this.requests.get());
+    assertTrue(System.nanoTime() - start < 1_000_000_000L, "Didn't wait the Retry-After");
+  }
+
+  @Test
+  public void testGivesUpAfterMaxRetries() throws IOException {
+    this.fetcher.setMaxRetries(2);
+    this.handler = (request, exchange) -> reply(exchange, 502, null);
+    IOException ex = assertThrows(IOException.class, () -> this.fetcher.get(getURL()));
+    assertTrue(ex.getMessage().contains("502"));
+    assertEquals(3, this.requests.get());
+  }
+
+  @Test
+  public void testDoesNotRetryClientErrors() throws IOException {
+    this.handler = (request, exchange) -> reply(exchange, 404, null);
+    assertThrows(IOException.class, () -> this.fetcher.get(getURL()));
+    assertEquals(404, this.fetcher.send(getURL(), Collections.emptyMap()).getStatusCode());
+    assertEquals(2, this.requests.get());
+  }
+
+  @Test
+  public void testAsyncRetries() throws IOException {
+    this.handler = (request, exchange) -> reply(exchange, request < 2 ? 504 : 200, request < 2 ? null : BODY);
+    assertArrayEquals(BODY, this.fetcher.getAsync(getURL()).join());
+    assertEquals(3, this.requests.get());
+  }
+
+  @Test
+  public void testReusesConnections() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(BODY, this.fetcher.get(getURL()));
+    }
+    assertEquals(10, this.requests.get());
+    assertEquals(1, this.clientPorts.size(), "Connections opened");
+  }
+
+  @Test
+  public void testUncompressesGzip() throws IOException {
+    this.handler = (request, exchange) -> {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (OutputStream os = new GZIPOutputStream(bytes)) {
+        os.write(BODY);
+      }
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      reply(exchange, 200, bytes.toByteArray());
+    };
+    assertArrayEquals(BODY, this.fetcher.get(getURL()));
+  }
+
+  @Test
+  public void testRequestTimeout() throws IOException {
+    this.fetcher.setRequestTimeout(Duration.ofMillis(200));
+    this.fetcher.setMaxRetries(1);
+    this.handler = (request, exchange) -> {
+      Thread.sleep(2000);
+      reply(exchange, 200, BODY);
+    };
+    long start = System.nanoTime();
+    assertThrows(HttpTimeoutException.class, () -> this.fetcher.get(getURL()));
+    assertEquals(2, this.requests.get());
+    assertTrue(System.nanoTime() - start < 1_500_000_000L, "Timed out before the response");
+    CompletionException ex = assertThrows(CompletionException.class, () -> this.fetcher.getAsync(getURL()).join());
+    assertTrue(ex.getCause() instanceof HttpTimeoutException);
+  }
+
+  @Test
+  public void testBodyTimeout() throws IOException {
+    this.fetcher.setRequestTimeout(Duration.ofMillis(200));
+    this.fetcher.setMaxRetries(0);
+    this.handler = (request, exchange) -> {
+      exchange.sendResponseHeaders(200, BODY.length * 2);
+      OutputStream os = exchange.getResponseBody();
+      os.write(BODY);
+      os.flush();
+      Thread.sleep(2000);
+      os.write(BODY);
+      os.close();
+    };
+    long start = System.nanoTime();
+    assertThrows(HttpTimeoutException.class, () -> this.fetcher.get(getURL()));
+    assertTrue(System.nanoTime() - start < 1_500_000_000L, "Timed out before the end of the body");
+    CompletionException ex = assertThrows(CompletionException.class, () -> this.fetcher.getAsync(getURL()).join());
+    assertTrue(ex.getCause() instanceof HttpTimeoutException);
+  }
+
+  @Test
+  public void testNoContent() throws IOException {
+    this.handler = (request, exchange) -> reply(exchange, 204, null);
+    assertArrayEquals(new byte[0], this.fetcher.get(getURL()));
+    assertArrayEquals(new byte[0], this.fetcher.getAsync(getURL()).join());
+    assertEquals(2, this.requests.get());
+  }
+
+  @Test
+  public void testConnectionRefused() throws IOException {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = socket.getLocalPort();
+    }
+    URL url = new URL("http://localhost:" + port + "/tile.pbf");
+    this.fetcher.setMaxRetries(2);
+    assertThrows(IOException.class, () -> this.fetcher.get(url));
+    CompletionException ex = assertThrows(CompletionException.class, () -> this.fetcher.getAsync(url).join());
+    assertTrue(ex.getCause() instanceof IOException);
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.geotools.api.feature.simple.SimpleFeatureType;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.gvsig.mvtrenderer.lib.impl.MVTTile.MVTDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the features the tiles of a metatile share are painted once
+ * and whole, as when the tiles are rendered alone.
+ *
+ * @author fdiaz
+ */
+public class MVTMetaTileTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  private static final String STYLE = "{\"version\": 8,"
+          + " \"sources\": {\"s\": {\"type\": \"vector\", \"tiles\": [\"tile/{z}/{y}/{x}.pbf\"]}},"
+          + " \"layers\": ["
+          + "  {\"id\": \"fill\", \"type\": \"fill\", \"source\": \"s\", \"source-layer\": \"landuse\","
+          + "   \"paint\": {\"fill-color\": \"#ffffff\"}},"
+          + "  {\"id\": \"outline\", \"type\": \"line\", \"source\": \"s\", \"source-layer\": \"landuse\","
+          + "   \"paint\": {\"line-color\": \"#000000\", \"line-width\": 2}}"
+          + " ]}";
+
+  private static final MVTTileId LEFT = new MVTTileId(14, 8000, 6000);
+  private static final MVTTileId RIGHT = new MVTTileId(14, 8001, 6000);
+
+  @TempDir
+  Path tempDir;
+
+  private static SimpleFeatureType createType() {
+    SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+    tb.setName("landuse");
+    tb.add(MVTFeatureCollection.GEOMETRY, Geometry.class);
+    tb.add("class", Object.class);
+    return tb.buildFeatureType();
+  }
+
+  /**
+   * Creates the data of a tile with a feature, as decoded with a buffer that
+   * holds the whole geometry.
+   */
+  private static Map<String, MVTDataSource> createTile(MVTTileId tile, Geometry geometry, Long id) {
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(createType());
+    builder.add(geometry);
+    if (id != null) {
+      builder.setId(id);
+    }
+    builder.set("class", "park");
+    return Map.of("landuse", new MVTDataSource(builder.build(), "landuse", tile.getEnvelope()));
+  }
+
+  private static boolean isDark(int argb) {
+    return (argb >>> 24) > 0 && ((argb >> 16) & 0xFF) < 128;
+  }
+
+  @Test
+  public void testNoOutlineOnTheInnerEdge() throws IOException {
+    Path style = this.tempDir.resolve("style.json");
+    Files.writeString(style, STYLE, StandardCharsets.UTF_8);
+    MVTStyles styles = new MVTStyles();
+    styles.download(style.toUri().toURL());
+
+    // A polygon from the middle of the left tile to the middle of the right
+    // one, in the middle rows.
+    Envelope left = LEFT.getEnvelope();
+    Envelope right = RIGHT.getEnvelope();
+    double minX = left.getMinX() + left.getWidth() / 4;
+    double maxX = right.getMaxX() - right.getWidth() / 4;
+    double minY = left.getMinY() + left.getHeight() / 4;
+    double maxY = left.getMaxY() - left.getHeight() / 4;
+    Geometry polygon = GEOMETRY_FACTORY.createPolygon(new Coordinate[]{
+      new Coordinate(minX, minY), new Coordinate(maxX, minY), new Coordinate(maxX, maxY),
+      new Coordinate(minX, maxY), new Coordinate(minX, minY)
+    });
+
+    MVTMetaTile metaTile = new MVTMetaTile(LEFT, 2, 1);
+    metaTile.setSourceLayers(Map.of(
+            LEFT, createTile(LEFT, polygon, 7L),
+            RIGHT, createTile(RIGHT, polygon, 7L)
+    ));
+    Map<MVTTileId, BufferedImage> images = metaTile.render(styles, 256, 256);
+    BufferedImage leftImage = images.get(LEFT);
+    BufferedImage rightImage = images.get(RIGHT);
+
+    // The outline is drawn on the edges of the polygon...
+    assertTrue(isDark(leftImage.getRGB(64, 128)));
+    assertTrue(isDark(rightImage.getRGB(192, 128)));
+    // ...but not on the inner edge of the metatile, that crosses it.
+    for (int y = 72; y < 184; y++) {
+      assertFalse(isDark(leftImage.getRGB(255, y)), "Outline on the left of the edge at row " + y);
+      assertFalse(isDark(rightImage.getRGB(0, y)), "Outline on the right of the edge at row " + y);
+      assertFalse(isDark(rightImage.getRGB(1, y)), "Outline on the right of the edge at row " + y);
+    }
+  }
+
+  @Test
+  public void testPointOnTheInnerEdgeIsKeptOnce() {
+    Envelope left = LEFT.getEnvelope();
+    double edge = left.getMaxX();
+    MVTFeatureCollection.Builder builder = new MVTFeatureCollection.Builder(createType());
+    builder.add(GEOMETRY_FACTORY.createPoint(new Coordinate(edge, left.centre().y)));
+    builder.add(GEOMETRY_FACTORY.createMultiPoint(new Point[]{
+      GEOMETRY_FACTORY.createPoint(new Coordinate(edge, left.centre().y)),
+      GEOMETRY_FACTORY.createPoint(new Coordinate(left.centre().x, left.centre().y))
+    }));
+    MVTFeatureCollection points = builder.build();
+
+    MVTFeatureCollection leftPoints = points.clip(left, true);
+    assertEquals(1, leftPoints.size());
+    assertEquals(1, leftPoints.getGeometry(0).getNumGeometries());
+    assertEquals(left.centre().x, leftPoints.getGeometry(0).getCoordinate().x);
+    MVTFeatureCollection rightPoints = points.clip(RIGHT.getEnvelope(), true);
+    assertEquals(2, rightPoints.size());
+    assertEquals(1, rightPoints.getGeometry(1).getNumGeometries());
+    assertEquals(2, points.clip(left).size());
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.util.Set;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the extraction of the attributes used by the style layers, that
+ * decides which fields are decoded in strict projection mode.
+ *
+ * @author fdiaz
+ */
+public class MVTStylesTest {
+
+  private static Set<String> fields(String layer) throws ParseException {
+    return MVTStyles.extractLayerFields((JSONObject) new JSONParser().parse(layer));
+  }
+
+  @Test
+  public void testLegacyFilters() throws ParseException {
+    assertEquals(Set.of("a"), fields("{\"filter\": [\"has\", \"a\"]}"));
+    assertEquals(Set.of("a"), fields("{\"filter\": [\"!has\", \"a\"]}"));
+    assertEquals(Set.of("a", "b", "c", "d"), fields("{\"filter\": [\"all\", [\"==\", \"a\", 1], [\">=\", \"b\", 2], [\"in\", \"c\", \"x\", \"y\"], [\"!in\", \"d\", \"z\"]]}"));
+    assertEquals(Set.of("a", "b"), fields("{\"filter\": [\"none\", [\"!has\", \"a\"], [\"!=\", \"b\", \"x\"]]}"));
+  }
+
+  @Test
+  public void testLegacyKeysAreNotFields() throws ParseException {
+    assertEquals(Set.of(), fields("{\"filter\": [\"==\", \"$type\", \"Polygon\"]}"));
+    assertEquals(Set.of(), fields("{\"filter\": [\"in\", \"$type\", \"Point\", \"LineString\"]}"));
+    assertEquals(Set.of(), fields("{\"filter\": [\"has\", \"$id\"]}"));
+    assertEquals(Set.of("a"), fields("{\"filter\": [\"all\", [\"==\", \"$type\", \"Point\"], [\"!has\", \"a\"]]}"));
+  }
+
+  @Test
+  public void testExpressions() throws ParseException {
+    assertEquals(Set.of("a", "b"), fields("{\"filter\": [\"all\", [\"==\", [\"get\", \"a\"], 1], [\"!\", [\"has\", \"b\"]]]}"));
+    assertEquals(Set.of("c"), fields("{\"filter\": [\"==\", [\"geometry-type\"], \"Polygon\"], \"paint\": {\"fill-color\": [\"match\", [\"get\", \"c\"], \"x\", \"#f00\", \"#00f\"]}}"));
+  }
+
+  @Test
+  public void testDataDrivenProperties() throws ParseException {
+    assertEquals(Set.of("name", "icon", "rank"), fields("{\"layout\": {\"text-field\": \"{name}\", \"icon-image\": \"{icon}-15\"}, \"paint\": {\"text-opacity\": {\"property\": \"rank\", \"stops\": [[1, 1], [9, 0.5]]}}}"));
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Envelope;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the zoom level of the scale the tiles are rendered at, by which the
+ * style layers out of their zoom range are skipped and their fields are not
+ * requested in strict projection mode.
+ *
+ * @author fdiaz
+ */
+public class MVTTileTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testRenderZoomFollowsTheImageWidth() {
+    for (int z : new int[]{0, 5, 14, 20}) {
+      Envelope envelope = new MVTTileId(z, 0, 0).getEnvelope();
+      assertEquals(z, MVTTile.getRenderZoom(envelope, null, 256));
+      assertEquals(z, MVTTile.getRenderZoom(envelope, null, 300));
+      assertEquals(z + 1, MVTTile.getRenderZoom(envelope, null, 512));
+      assertEquals(z + 2, MVTTile.getRenderZoom(envelope, null, 1024));
+      assertEquals(Math.max(0, z - 1), MVTTile.getRenderZoom(envelope, null, 128));
+    }
+  }
+
+  @Test
+  public void testRenderZoomOfMetaTile() {
+    Envelope envelope = new MVTTileId(14, 8000, 6000).getEnvelope();
+    envelope.expandToInclude(new MVTTileId(14, 8003, 6003).getEnvelope());
+    assertEquals(15, MVTTile.getRenderZoom(envelope, null, 4 * 512));
+  }
+
+  @Test
+  public void testFieldsOfGeographicMap() throws IOException {
+    Path style = this.tempDir.resolve("style.json");
+    Files.writeString(style, "{\"version\": 8,"
+            + " \"sources\": {\"s\": {\"type\": \"vector\", \"tiles\": [\"tile/{z}/{y}/{x}.pbf\"]}},"
+            + " \"layers\": [{\"id\": \"park\", \"type\": \"fill\", \"source\": \"s\", \"source-layer\": \"landuse\","
+            + "  \"minzoom\": 10, \"filter\": [\"==\", \"class\", \"park\"], \"paint\": {\"fill-color\": \"#00ff00\"}}]}",
+            StandardCharsets.UTF_8);
+    MVTStyles styles = new MVTStyles();
+    styles.download(style.toUri().toURL());
+
+    // A tile of zoom level 14 on the equator, in degrees.
+    double size = 360.0 / (1 << 14);
+    Envelope envelope = new Envelope(0, size, 0, size);
+    MVTTile tile = new MVTTile(DefaultGeographicCRS.WGS84, DefaultGeographicCRS.WGS84);
+    tile.setStrictProjection(true);
+    int zoom = MVTTile.getRenderZoom(envelope, DefaultGeographicCRS.WGS84, 256);
+    assertEquals(14.0, zoom, 1.0);
+    Map<String, Set<String>> fields = tile.getFieldsByLayer(styles, envelope, 256);
+    assertEquals(Set.of("class"), fields.get("landuse"));
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * gvSIG. Desktop Geographic Information System.
+ *
+ * Copyright (C) 2007-2026 gvSIG Association.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ *
+ * For any additional information, do not hesitate to contact us
+ * at info AT gvsig.com, or visit our website www.gvsig.com.
+ */
+package org.gvsig.mvtrenderer.lib.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests the tile cache of {@link MVTUrlTileSource} against a local HTTP
+ * server that counts the requests.
+ *
+ * @author fdiaz
+ */
+public class MVTUrlTileSourceTest {
+
+  private static final List<MVTTileId> TILES = MVTTileId.range(14, 8166, 8167, 6232, 6233);
+
+  @TempDir
+  File folder;
+
+  private HttpServer server;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger notModified = new AtomicInteger();
+  private volatile String cacheControl;
+  private volatile String etag;
+  private volatile int status;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    this.cacheControl = "max-age=3600";
+    this.etag = "\"v1\"";
+    this.status = 200;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/tiles/", this::handle);
+    this.server.start();
+  }
+
+  @AfterEach
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    this.requests.incrementAndGet();
+    try (exchange) {
+      if (this.cacheControl != null) {
+        exchange.getResponseHeaders().set("Cache-Control", this.cacheControl);
+      }
+      if (this.etag != null) {
+        exchange.getResponseHeaders().set("ETag", this.etag);
+        if (this.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          this.notModified.incrementAndGet();
+          exchange.sendResponseHeaders(304, -1);
+          return;
+        }
+      }
+      if (this.status != 200) {
+        exchange.sendResponseHeaders(this.status, -1);
+        return;
+      }
+      byte[] body = getBody(exchange.getRequestURI().getPath());
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    }
+  }
+
+  private static byte[] getBody(String path) {
+    return ("tile " + path).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private MVTUrlTileSource createSource() {
+    MVTUrlTileSource source = new MVTUrlTileSource(
+            "http://localhost:" + this.server.getAddress().getPort() + "/tiles/{z}/{x}/{y}.pbf"
+    );
+    MVTHttpFetcher fetcher = new MVTHttpFetcher();
+    fetcher.setMaxRetries(0);
+    source.setFetcher(fetcher);
+    source.setCache(new MVTFileTileCache(this.folder));
+    return source;
+  }
+
+  private static byte[] getBody(MVTTileId tile) {
+    return getBody("/tiles/" + tile.getZ() + "/" + tile.getX() + "/" + tile.getY() + ".pbf");
+  }
+
+  @Test
+  public void testWarmCacheServesWithoutRequests() throws IOException {
+    MVTUrlTileSource source = createSource();
+    for (MVTTileId tile : TILES) {
+      assertArrayEquals(getBody(tile), source.getTile(tile));
+    }
+    assertEquals(TILES.size(), this.requests.get());
+
+    // A new source over the same folder, as in a later run
+    MVTUrlTileSource again = createSource();
+    for (MVTTileId tile : TILES) {
+      assertArrayEquals(getBody(tile), again.getTile(tile));
+    }
+    assertEquals(TILES.size(), this.requests.get(), "Requests after the warm run");
+  }
+
+  @Test
+  public void testExpiredTileIsRevalidatedWithETag() throws IOException {
+    this.cacheControl = "no-cache";
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertEquals(2, this.requests.get());
+    assertEquals(1, this.notModified.get(), "Responses 304");
+
+    // Revalidated with a max-age, it is fresh again
+    this.cacheControl = "max-age=3600";
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertEquals(3, this.requests.get());
+    assertEquals(2, this.notModified.get(), "Responses 304");
+  }
+
+  @Test
+  public void testChangedTileIsDownloadedAgain() throws IOException {
+    this.cacheControl = "no-cache";
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    source.getTile(tile);
+    this.etag = "\"v2\"";
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertEquals(2, this.requests.get());
+    assertEquals(0, this.notModified.get(), "Responses 304");
+    assertEquals("\"v2\"", source.getCache().get(source.getId(), tile).getETag());
+  }
+
+  @Test
+  public void testNoStoreIsNotCached() throws IOException {
+    this.cacheControl = "no-store";
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertEquals(2, this.requests.get());
+    assertNull(source.getCache().get(source.getId(), tile));
+  }
+
+  @Test
+  public void testNoContentIsCachedAsAnEmptyTile() throws IOException {
+    this.status = 204;
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    assertArrayEquals(new byte[0], source.getTile(tile));
+    assertArrayEquals(new byte[0], source.getTile(tile));
+    assertEquals(1, this.requests.get());
+    assertArrayEquals(new byte[0], source.getCache().get(source.getId(), tile).getData());
+  }
+
+  @Test
+  public void testDamagedCacheFileIsDownloadedAgain() throws IOException {
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    byte[] body = getBody(tile);
+    source.getTile(tile);
+    Path path = ((MVTFileTileCache) source.getCache()).getPath(source.getId(), tile);
+    byte[] content = Files.readAllBytes(path);
+    // The tile length is just before the tile.
+    ByteBuffer length = ByteBuffer.wrap(content, content.length - body.length - 4, 4);
+    for (int invalid : new int[]{-1, Integer.MAX_VALUE, body.length + 1, body.length - 1}) {
+      length.putInt(length.position(), invalid);
+      Files.write(path, content);
+      assertNull(source.getCache().get(source.getId(), tile), "Length " + invalid);
+    }
+    assertArrayEquals(body, source.getTile(tile));
+    assertEquals(2, this.requests.get());
+    assertArrayEquals(body, source.getCache().get(source.getId(), tile).getData());
+  }
+
+  @Test
+  public void testExpiredTileIsUsedWhenTheServerFails() throws IOException {
+    this.cacheControl = "no-cache";
+    this.etag = null;
+    MVTUrlTileSource source = createSource();
+    MVTTileId tile = TILES.get(0);
+    source.getTile(tile);
+    this.status = 500;
+    assertArrayEquals(getBody(tile), source.getTile(tile));
+    assertEquals(2, this.requests.get());
+    assertNotNull(source.getCache().get(source.getId(), tile));
+  }
+}